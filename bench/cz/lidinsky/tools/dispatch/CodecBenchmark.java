@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.UnaryOperator;
+import org.json.JSONObject;
+
+/**
+ * Compares the wire formats on typical signal messages. For each format it
+ * reports the average number of bytes per message and the number of
+ * messages encoded and decoded per second by one thread. The same updates
+ * are then measured as pooled {@link Signal} records.
+ *
+ * <p>Usage: <code>CodecBenchmark [messages] [signals]</code>.
+ */
+public class CodecBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int signals = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        JSONObject[] messages = new JSONObject[signals];
+        Signal[] records = new Signal[signals];
+        for (int i = 0; i < signals; i++) {
+            messages[i] = new JSONObject()
+                    .put("class", "control4j.Signal")
+                    .put("name", "plant1.boiler" + (i % 10) + ".signal" + i)
+                    .put("valid", true)
+                    .put("value", 45.689d + i);
+            records[i] = Signal.obtain().set(messages[i].getString("name"),
+                    System.currentTimeMillis(), true, 45.689d + i);
+        }
+        System.out.println("format      bytes/msg   encode[msg/s]   decode[msg/s]");
+        for (WireFormat format : WireFormat.values()) {
+            // warm up twice, then measure
+            for (int round = 0; round < 3; round++) {
+                String result = run(format, messages, count);
+                if (round == 2) {
+                    System.out.println(result);
+                }
+            }
+        }
+        System.out.println("signals");
+        for (WireFormat format : WireFormat.values()) {
+            for (int round = 0; round < 3; round++) {
+                String result = run(format, records, count);
+                if (round == 2) {
+                    System.out.println(result);
+                }
+            }
+        }
+    }
+
+    private static String run(WireFormat format, Object[] messages,
+            int count) throws IOException {
+        Codec codec = format.newCodec();
+        UnaryOperator<byte[]> writer = codec.newWriter();
+        byte[][] encoded = new byte[count][];
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            encoded[i] = writer.apply(codec.encode(messages[i % messages.length]));
+            bytes += encoded[i].length;
+        }
+        long encodeTime = System.nanoTime() - start;
+        Codec.Decoder decoder = codec.newDecoder();
+        int decoded = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Object message = decoder.decode(ByteBuffer.wrap(encoded[i]));
+            if (message != null) {
+                Signal.release(message);
+                decoded++;
+            }
+        }
+        long decodeTime = System.nanoTime() - start;
+        if (decoded != count) {
+            throw new IllegalStateException("Decoded " + decoded + " of " + count);
+        }
+        return String.format("%-10s %10.1f %15.0f %15.0f", format,
+                (double)bytes / count, count * 1e9 / encodeTime,
+                count * 1e9 / decodeTime);
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONObject;
+
+/**
+ * End to end benchmark: one publisher sends signal messages through the
+ * dispatcher to N subscribers, all of them in this process on localhost.
+ * It reports the number of delivered messages per second and the
+ * percentiles of the latency between the send call and the consumer of the
+ * subscriber. Each configuration is run twice; the first run is a warm up.
+ *
+ * <p>Usage: <code>FanOutBenchmark [port] [messages] [rate] [event
+ * loops]</code>. The rate is the number of messages sent per second, zero
+ * means as fast as possible; the latency then includes the queueing. Zero
+ * event loops means the thread per client mode.
+ */
+public class FanOutBenchmark {
+
+    private static final int[] SUBSCRIBERS = {1, 10, 100};
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 23550;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int loops = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        Logger.getLogger("cz.lidinsky.tools.dispatch").setLevel(Level.OFF);
+        System.out.println("subscribers   messages   delivered[msg/s]"
+                + "   p50[us]   p99[us]   p99.9[us]   max[us]");
+        for (int subscribers : SUBSCRIBERS) {
+            String result = null;
+            for (int round = 0; round < 2; round++) {
+                result = run(port++, subscribers, messages, rate, loops);
+            }
+            System.out.println(String.format("%11d %10d %s",
+                    subscribers, messages, result));
+        }
+        System.exit(0);
+    }
+
+    private static String run(int port, int count, int messages, int rate,
+            int loops) throws Exception {
+        Dispatcher dispatcher = new Dispatcher(port, loops);
+        dispatcher.start();
+        dispatcher.listen();
+        Thread.sleep(200);
+        List<Client> clients = new ArrayList<>();
+        Histogram latency = new Histogram();
+        try {
+            CountDownLatch ready = new CountDownLatch(count);
+            CountDownLatch done = new CountDownLatch(count * messages);
+            for (int i = 0; i < count; i++) {
+                Client client = new Client("localhost", port);
+                AtomicBoolean first = new AtomicBoolean(true);
+                client.addConsumer(object -> {
+                    JSONObject message = (JSONObject)object;
+                    if (message.has("ping")) {
+                        if (first.compareAndSet(true, false)) {
+                            ready.countDown();
+                        }
+                    } else if (message.has("sent")) {
+                        latency.record(System.nanoTime() - message.getLong("sent"));
+                        done.countDown();
+                    }
+                });
+                client.start();
+                clients.add(client);
+            }
+            Client publisher = new Client("localhost", port);
+            clients.add(publisher);
+            while (!ready.await(100, TimeUnit.MILLISECONDS)) {
+                publisher.send(new JSONObject().put("ping", true));
+            }
+            long period = rate > 0 ? 1_000_000_000L / rate : 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                if (period > 0) {
+                    long next = start + i * period;
+                    while (System.nanoTime() - next < 0) {
+                        LockSupport.parkNanos(next - System.nanoTime());
+                    }
+                }
+                publisher.send(new JSONObject()
+                        .put("class", "control4j.Signal")
+                        .put("name", "plant1.boiler.signal" + (i % 100))
+                        .put("valid", true)
+                        .put("value", (double)i)
+                        .put("sent", System.nanoTime()));
+            }
+            if (!done.await(5, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Timeout");
+            }
+            long time = System.nanoTime() - start;
+            return String.format("%18.0f %9.1f %9.1f %11.1f %9.1f",
+                    (double)count * messages * 1e9 / time,
+                    latency.getValueAtPercentile(50.0) / 1e3,
+                    latency.getValueAtPercentile(99.0) / 1e3,
+                    latency.getValueAtPercentile(99.9) / 1e3,
+                    latency.getMax() / 1e3);
+        } finally {
+            for (Client client : clients) {
+                client.close();
+            }
+            dispatcher.close();
+        }
+    }
+
+}
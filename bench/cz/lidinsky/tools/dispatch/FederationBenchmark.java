@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONObject;
+
+/**
+ * Throughput of connected dispatchers, see {@link Dispatcher#addPeer}, all
+ * of them in this process on localhost. Each dispatcher has one publisher
+ * and one subscriber client; the publishers send at the same time. In the
+ * local mode, each subscriber is interested in the messages of its own
+ * dispatcher, so nothing is forwarded and the throughput should grow with
+ * the number of dispatchers, given enough cores. In the remote mode, each
+ * subscriber is interested in the messages of the next dispatcher, so
+ * every message goes through a link between peers. It reports the number
+ * of delivered messages per second; each configuration is run twice, the
+ * first run is a warm up.
+ *
+ * <p>Usage: <code>FederationBenchmark [port] [messages] [event
+ * loops]</code>. The number of messages is per publisher.
+ */
+public class FederationBenchmark {
+
+    private static final int[] NODES = {1, 2, 4};
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 23650;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int loops = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        Logger.getLogger("cz.lidinsky.tools.dispatch").setLevel(Level.OFF);
+        System.out.println("nodes   mode     messages   delivered[msg/s]");
+        for (int nodes : NODES) {
+            for (boolean remote : new boolean[] {false, true}) {
+                if (remote && nodes == 1) {
+                    continue;
+                }
+                double result = 0;
+                for (int round = 0; round < 2; round++) {
+                    result = run(port, nodes, remote, messages, loops);
+                    port += nodes;
+                }
+                System.out.println(String.format("%5d   %-6s %10d %18.0f",
+                        nodes, remote ? "remote" : "local", messages, result));
+            }
+        }
+        System.exit(0);
+    }
+
+    private static double run(int port, int nodes, boolean remote,
+            int messages, int loops) throws Exception {
+        List<Dispatcher> dispatchers = new ArrayList<>();
+        List<Client> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < nodes; i++) {
+                Dispatcher dispatcher = new Dispatcher(port + i, loops)
+                        .setNodeId("node" + i);
+                for (int j = 0; j < i; j++) {
+                    dispatcher.addPeer("localhost", port + j);
+                }
+                dispatcher.start();
+                dispatcher.listen();
+                dispatchers.add(dispatcher);
+            }
+            Thread.sleep(200);
+            CountDownLatch ready = new CountDownLatch(nodes);
+            CountDownLatch done = new CountDownLatch(nodes * messages);
+            Client[] publishers = new Client[nodes];
+            for (int i = 0; i < nodes; i++) {
+                Client subscriber = new Client("localhost", port + i);
+                subscriber.subscribe("node" + (remote ? (i + 1) % nodes : i) + ".*");
+                AtomicBoolean first = new AtomicBoolean(true);
+                subscriber.addConsumer(object -> {
+                    JSONObject message = (JSONObject)object;
+                    if (message.has("ping")) {
+                        if (first.compareAndSet(true, false)) {
+                            ready.countDown();
+                        }
+                    } else {
+                        done.countDown();
+                    }
+                });
+                subscriber.start();
+                clients.add(subscriber);
+                publishers[i] = new Client("localhost", port + i);
+                // a client which has not subscribed anything gets everything
+                publishers[i].subscribe("none");
+                clients.add(publishers[i]);
+            }
+            while (!ready.await(100, TimeUnit.MILLISECONDS)) {
+                for (int i = 0; i < nodes; i++) {
+                    publishers[i].send(new JSONObject()
+                            .put("name", "node" + i + ".ping").put("ping", true));
+                }
+            }
+            long start = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) {
+                Client publisher = publishers[i];
+                String prefix = "node" + i + ".signal";
+                Thread thread = new Thread(() -> {
+                    try {
+                        for (int k = 0; k < messages; k++) {
+                            publisher.send(new JSONObject()
+                                    .put("name", prefix + (k % 100))
+                                    .put("valid", true)
+                                    .put("value", (double)k));
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (!done.await(5, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Timeout");
+            }
+            long time = System.nanoTime() - start;
+            return (double)nodes * messages * 1e9 / time;
+        } finally {
+            for (Client client : clients) {
+                client.close();
+            }
+            for (Dispatcher dispatcher : dispatchers) {
+                dispatcher.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONObject;
+
+/**
+ * Compares the throughput of the dispatcher without and with the journal.
+ * One publisher sends messages to one subscriber through the dispatcher
+ * running in this process on localhost. With the journal, all of the
+ * messages are replayed afterwards by another client.
+ *
+ * <p>Usage: <code>JournalBenchmark [port] [messages] [directory]</code>.
+ * The journal is created in a temporary directory by default, which
+ * should be on the disk under test.
+ */
+public class JournalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 23550;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        File directory = args.length > 2 ? new File(args[2])
+                : Files.createTempDirectory("journal").toFile();
+        Logger.getLogger("cz.lidinsky.tools.dispatch").setLevel(Level.OFF);
+        System.out.println("mode        messages   throughput[msg/s]   replay[msg/s]");
+        System.out.println(String.format("%-10s %9d %s", "plain", messages,
+                run(port++, messages, null)));
+        System.out.println(String.format("%-10s %9d %s", "journal", messages,
+                run(port++, messages, new File(directory, "run"))));
+        System.exit(0);
+    }
+
+    private static String run(int port, int messages, File journal)
+            throws Exception {
+        Dispatcher dispatcher = new Dispatcher(port);
+        if (journal != null) {
+            dispatcher.setJournal(journal, 0, 0, TimeUnit.SECONDS);
+        }
+        dispatcher.start();
+        dispatcher.listen();
+        Thread.sleep(200);
+        Client subscriber = new Client("localhost", port);
+        Client publisher = new Client("localhost", port);
+        try {
+            CountDownLatch ready = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(messages);
+            subscriber.addConsumer(object -> {
+                if (((JSONObject)object).has("ping")) {
+                    ready.countDown();
+                } else {
+                    done.countDown();
+                }
+            });
+            subscriber.start();
+            while (!ready.await(100, TimeUnit.MILLISECONDS)) {
+                publisher.send(new JSONObject().put("ping", true));
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                publisher.send(new JSONObject()
+                        .put("class", "control4j.Signal")
+                        .put("name", "signal" + (i % 100))
+                        .put("valid", true)
+                        .put("value", (double)i));
+            }
+            if (!done.await(5, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Timeout");
+            }
+            long time = System.nanoTime() - start;
+            String replay = journal == null ? "-" : replay(port, messages);
+            return String.format("%19.0f %15s", messages * 1e9 / time, replay);
+        } finally {
+            subscriber.close();
+            publisher.close();
+            dispatcher.close();
+        }
+    }
+
+    /**
+     * Replays all of the journaled messages. The messages are read directly,
+     * because the consumers would get only the messages newer than the
+     * connection.
+     */
+    private static String replay(int port, int messages) throws IOException {
+        Client client = new Client("localhost", port);
+        try {
+            long start = System.nanoTime();
+            client.replay(1);
+            int count = 0;
+            while (count < messages) {
+                Object object = client.read();
+                if (object == null) {
+                    throw new IOException("Connection closed");
+                }
+                if (((JSONObject)object).has("value")) {
+                    count++;
+                }
+            }
+            return String.format("%.0f", messages * 1e9 / (System.nanoTime() - start));
+        } finally {
+            client.close();
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+/**
+ * Measures the throughput of the queues between threads: several producers
+ * insert items, one consumer removes them by the blocking dequeue. Each
+ * configuration is run three times; the first two runs are a warm up.
+ *
+ * <p>Usage: <code>QueueBenchmark [items per producer]</code>.
+ */
+public class QueueBenchmark {
+
+    private static final int[] PRODUCERS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.println("queue               producers   throughput[items/s]");
+        measure("Queue", () -> new Queue<>(), items);
+        measure("RingQueue(PARK)", () -> new RingQueue<>(
+                65536, false, WaitStrategy.PARK), items);
+        measure("RingQueue(YIELD)", () -> new RingQueue<>(
+                65536, false, WaitStrategy.YIELD), items);
+    }
+
+    private static void measure(String name, Supplier<Fifo<Object>> factory,
+            int items) throws InterruptedException {
+        for (int producers : PRODUCERS) {
+            double result = 0;
+            for (int round = 0; round < 3; round++) {
+                result = run(factory.get(), producers, items);
+            }
+            System.out.println(String.format("%-19s %9d %21.0f",
+                    name, producers, result));
+        }
+    }
+
+    private static double run(Fifo<Object> queue, int producers, int items)
+            throws InterruptedException {
+        Object item = new Object();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < items; j++) {
+                    queue.queue(item);
+                }
+            });
+            threads[i].start();
+        }
+        long total = (long)producers * items;
+        long begin = System.nanoTime();
+        start.countDown();
+        for (long i = 0; i < total; i++) {
+            queue.blockingDequeue();
+        }
+        long time = System.nanoTime() - begin;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return total * 1e9 / time;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the one way latency of the shared memory ring. The writer writes
+ * a message with its time every ten microseconds, the reader spins and
+ * records the time of arrival. System.nanoTime is common to all of the
+ * processes on Linux, so the writer and the reader may run in two
+ * processes; by default both run in this one, each with its own mapping.
+ *
+ * <p>Usage: <code>SharedMemoryBenchmark [file] [messages] [writer|reader]</code>;
+ * the file should be on a memory file system.
+ */
+public class SharedMemoryBenchmark {
+
+    private static final long PERIOD = 10_000L;
+
+    public static void main(String[] args) throws Exception {
+        File file = new File(args.length > 0 ? args[0] : "/dev/shm/dispatch-benchmark.ring");
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        String role = args.length > 2 ? args[2] : "both";
+        if (role.equals("reader")) {
+            read(MappedRing.open(file), messages);
+            return;
+        }
+        MappedRing writer = MappedRing.create(file, MappedRing.CAPACITY);
+        Thread reader = null;
+        if (role.equals("both")) {
+            MappedRing ring = MappedRing.open(file);
+            reader = new Thread(() -> read(ring, messages));
+            reader.start();
+            Thread.sleep(100);
+        } else {
+            System.out.println("Start the reader and press enter");
+            System.in.read();
+        }
+        ByteBuffer message = ByteBuffer.allocate(64);
+        for (int i = 0; i < messages; i++) {
+            long next = System.nanoTime() + PERIOD;
+            while (System.nanoTime() - next < 0) {
+                // paced, so that the latency is not a queueing delay
+            }
+            message.putLong(0, System.nanoTime());
+            writer.write(message.array());
+        }
+        if (reader != null) {
+            reader.join();
+        }
+        writer.closeWriter();
+    }
+
+    private static void read(MappedRing ring, int messages) {
+        MappedRing.Reader reader = ring.newReader(false);
+        Histogram latency = new Histogram();
+        int count = 0;
+        while (count < messages) {
+            byte[] bytes = reader.read();
+            if (bytes != null) {
+                latency.record(System.nanoTime() - ByteBuffer.wrap(bytes).getLong());
+                if (++count == messages / 10) {
+                    // warm up
+                    latency = new Histogram();
+                }
+            }
+        }
+        System.out.println(String.format(
+                "latency[ns] p50 %d p90 %d p99 %d p99.9 %d max %d overruns %d",
+                latency.getValueAtPercentile(50), latency.getValueAtPercentile(90),
+                latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9),
+                latency.getMax(), reader.getOverruns()));
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONObject;
+
+/**
+ * Load test which compares the thread per client dispatcher running on
+ * platform threads with the same dispatcher running on virtual threads.
+ * The dispatcher and all of the clients run in this process on localhost.
+ *
+ * <p>Usage: <code>ThreadModeLoad [base port] [messages]</code>. Virtual
+ * threads require Java 21 or newer, otherwise the second half of the test
+ * falls back to platform threads. Five thousand clients need about
+ * twenty thousand file descriptors (ulimit -n).
+ */
+public class ThreadModeLoad {
+
+    private static final int[] CLIENTS = {100, 1000, 5000};
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 23450;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        Logger.getLogger("cz.lidinsky.tools.dispatch").setLevel(Level.OFF);
+        PrintStream out = System.out;
+        out.println("threads   clients   messages   connect[ms]   fan-out[msg/s]   threads   heap[MB]");
+        for (boolean virtual : new boolean[] {false, true}) {
+            for (int clients : CLIENTS) {
+                String mode = virtual ? "virtual" : "platform";
+                try {
+                    out.println(String.format("%-9s %7d %10d %s", mode, clients,
+                            messages, run(port++, clients, messages, virtual)));
+                } catch (Throwable e) {
+                    out.println(String.format("%-9s %7d %10d   FAILED: %s", mode,
+                            clients, messages, e));
+                }
+                System.gc();
+                Thread.sleep(1000);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static String run(int port, int count, int messages,
+            boolean virtual) throws Exception {
+
+        Dispatcher dispatcher = new Dispatcher(port).setVirtualThreads(virtual);
+        dispatcher.start();
+        dispatcher.listen();
+        Thread.sleep(200);
+        List<Client> clients = new ArrayList<>();
+        try {
+            // connect all of the subscribers
+            long connectStart = System.nanoTime();
+            CountDownLatch ready = new CountDownLatch(count);
+            CountDownLatch done = new CountDownLatch(count * messages);
+            for (int i = 0; i < count; i++) {
+                Client client = new Client("localhost", port)
+                        .setVirtualThreads(virtual);
+                AtomicBoolean first = new AtomicBoolean(true);
+                client.addConsumer(object -> {
+                    JSONObject message = (JSONObject)object;
+                    if (message.has("ping")) {
+                        if (first.compareAndSet(true, false)) {
+                            ready.countDown();
+                        }
+                    } else {
+                        done.countDown();
+                    }
+                });
+                client.start();
+                clients.add(client);
+            }
+            Client publisher = new Client("localhost", port);
+            clients.add(publisher);
+            // wait until all of the clients are registered by the dispatcher
+            while (!ready.await(100, TimeUnit.MILLISECONDS)) {
+                publisher.send(new JSONObject().put("ping", true));
+            }
+            long connectTime = System.nanoTime() - connectStart;
+            // publish the messages
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                publisher.send(new JSONObject()
+                        .put("class", "control4j.Signal")
+                        .put("valid", true)
+                        .put("value", (double)i));
+            }
+            if (!done.await(5, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Timeout");
+            }
+            long time = System.nanoTime() - start;
+            Runtime runtime = Runtime.getRuntime();
+            return String.format("%13d %16.0f %9d %10d",
+                    TimeUnit.NANOSECONDS.toMillis(connectTime),
+                    (double)count * messages * 1e9 / time,
+                    ManagementFactory.getThreadMXBean().getThreadCount(),
+                    (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        } finally {
+            for (Client client : clients) {
+                client.close();
+            }
+            dispatcher.close();
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Function;
+
+/**
+ * Writes messages taken from a queue to a stream in batches. All of the
+ * messages which are waiting in the queue are written into a buffer and
+ * the buffer is flushed only once, when the queue is empty. So under low
+ * load each message is flushed immediately and under high load many
+ * messages share one system call and one TCP segment.
+ *
+ * <p>The batch is flushed before the queue is empty if it contains the
+ * maximal number of messages, or if the maximal latency elapsed since the
+ * first message of the batch was taken.
+ */
+class BatchWriter {
+
+    /** Default maximal number of messages in one batch. */
+    static final int MAX_BATCH = 256;
+
+    /** Default maximal latency in nanoseconds. */
+    static final long MAX_LATENCY = 1_000_000L;
+
+    private final OutputStream output;
+    private final Function<Object, byte[]> encoder;
+    private final int maxBatch;
+    private final long maxLatency;
+
+    /**
+     * @param output
+     *            the destination stream
+     *
+     * @param encoder
+     *            returns the bytes of a message; null means that the
+     *            message should be skipped
+     *
+     * @param maxBatch
+     *            maximal number of messages written without flush
+     *
+     * @param maxLatency
+     *            maximal time in nanoseconds between taking the first
+     *            message of a batch and the flush
+     */
+    BatchWriter(OutputStream output, Function<Object, byte[]> encoder,
+            int maxBatch, long maxLatency) {
+        this.output = new BufferedOutputStream(output, 65536);
+        this.encoder = encoder;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * Waits for a message in the given queue, writes it together with all
+     * of the other queued messages and flushes the stream.
+     *
+     * @param queue
+     *            messages to write
+     *
+     * @return number of messages taken from the queue
+     *
+     * @throws IOException
+     */
+    int writeBatch(Queue<?> queue) throws IOException {
+        Object item = queue.blockingDequeue();
+        long deadline = System.nanoTime() + maxLatency;
+        int count = 0;
+        do {
+            byte[] bytes = encoder.apply(item);
+            if (bytes != null) {
+                output.write(bytes);
+            }
+            count++;
+        } while (count < maxBatch && System.nanoTime() - deadline < 0
+                && (item = queue.dequeue()) != null);
+        output.flush();
+        return count;
+    }
+
+    /**
+     * Flushes and closes the underlying stream.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        output.close();
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compact binary representation of JSON objects. Messages are sent as
+ * length prefixed frames, see {@link FrameDecoder}. There are three types
+ * of frames:
+ *
+ * <ul>
+ *   <li>definition: assigns an identifier to a string; body consists of
+ *   the identifier (varint) and of the UTF-8 bytes of the string,</li>
+ *   <li>message: one JSON object,</li>
+ *   <li>signal: one {@link Signal}; body consists of the identifier of the
+ *   name (varint), the sequence number (varint), the time stamp (varint),
+ *   one byte with the validity and the value (IEEE 754 double); it may be
+ *   followed by the identifier of the origin (varint) and the origin
+ *   sequence number (varint), see {@link Dispatcher#addPeer}.</li>
+ * </ul>
+ *
+ * <p>Field names and signal names, the values of the <code>name</code>
+ * field, are interned in a dictionary; such a string is sent only once in
+ * a definition frame and then it is referenced by its identifier. Other
+ * string values are always sent as they are, so arbitrary data never
+ * fills the dictionary, which lasts as long as the dispatcher. Each value
+ * is prefixed by a one byte tag; integers are sent as zig-zag varints,
+ * other numbers as IEEE 754 doubles. Identifiers are assigned by the
+ * sender and they are valid for one connection.
+ *
+ * <p>The encoded messages do not depend on the connection, because the
+ * dictionary is shared by all of them; the writer of each connection sends
+ * the definitions which its receiver does not know yet.
+ */
+class BinaryCodec implements Codec {
+
+    static final int DEFINITION_FRAME = 1;
+    static final int MESSAGE_FRAME = 2;
+    static final int SIGNAL_FRAME = 3;
+
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int INTEGER = 3;
+    private static final int DOUBLE = 4;
+    private static final int REFERENCE = 5;
+    private static final int STRING = 6;
+    private static final int OBJECT = 7;
+    private static final int ARRAY = 8;
+
+    /** Field whose string value is interned, see {@link Tools#nameOf}. */
+    private static final String NAME = "name";
+
+    /** Longer names are not interned. */
+    private static final int MAX_INTERNED_LENGTH = 64;
+
+    private final Dictionary dictionary;
+    private final int maxMessageSize;
+
+    BinaryCodec(Dictionary dictionary) {
+        this(dictionary, FrameDecoder.MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param dictionary
+     *            interned strings shared by all of the connections
+     *
+     * @param maxMessageSize
+     *            maximal size of a received frame in bytes
+     */
+    BinaryCodec(Dictionary dictionary, int maxMessageSize) {
+        this.dictionary = dictionary;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        return WireFormat.BINARY;
+    }
+
+    @Override
+    public byte[] encode(Object message) {
+        if (message instanceof Signal) {
+            byte[] frame = encodeSignal((Signal)message);
+            if (frame != null) {
+                return frame;
+            }
+            // the dictionary is full
+            message = new JSONObject(message.toString());
+        }
+        if (!(message instanceof JSONObject)) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        writeObject(body, (JSONObject)message);
+        return FrameDecoder.toFrame(MESSAGE_FRAME, body);
+    }
+
+    /**
+     * Returns the signal frame, or null if the name cannot be interned.
+     */
+    private byte[] encodeSignal(Signal signal) {
+        int id = dictionary.intern(signal.getName());
+        int origin = signal.getOrigin() != null
+                ? dictionary.intern(signal.getOrigin()) : 0;
+        if (id < 0 || origin < 0) {
+            return null;
+        }
+        int length = FrameDecoder.varintSize(id)
+                + FrameDecoder.varintSize(signal.getSequence())
+                + FrameDecoder.varintSize(signal.getTimestamp()) + 9;
+        if (signal.getOrigin() != null) {
+            length += FrameDecoder.varintSize(origin)
+                    + FrameDecoder.varintSize(signal.getOriginSequence());
+        }
+        byte[] frame = new byte[1 + FrameDecoder.varintSize(length) + length];
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        buffer.put((byte)SIGNAL_FRAME);
+        FrameDecoder.writeVarint(buffer, length);
+        FrameDecoder.writeVarint(buffer, id);
+        FrameDecoder.writeVarint(buffer, signal.getSequence());
+        FrameDecoder.writeVarint(buffer, signal.getTimestamp());
+        buffer.put((byte)(signal.isValid() ? TRUE : FALSE));
+        buffer.putDouble(signal.getValue());
+        if (signal.getOrigin() != null) {
+            FrameDecoder.writeVarint(buffer, origin);
+            FrameDecoder.writeVarint(buffer, signal.getOriginSequence());
+        }
+        return frame;
+    }
+
+    /**
+     * The writer prepends definition frames for all of the dictionary
+     * entries which were not sent through the connection yet.
+     */
+    @Override
+    public UnaryOperator<byte[]> newWriter() {
+        return new UnaryOperator<byte[]>() {
+
+            /** Number of entries already sent. */
+            private int defined;
+
+            @Override
+            public byte[] apply(byte[] bytes) {
+                int size = dictionary.size();
+                if (defined == size) {
+                    return bytes;
+                }
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                for (; defined < size; defined++) {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    FrameDecoder.writeVarint(body, defined);
+                    byte[] name = dictionary.get(defined)
+                            .getBytes(StandardCharsets.UTF_8);
+                    body.write(name, 0, name.length);
+                    byte[] frame = FrameDecoder.toFrame(DEFINITION_FRAME, body);
+                    output.write(frame, 0, frame.length);
+                }
+                output.write(bytes, 0, bytes.length);
+                return output.toByteArray();
+            }
+
+        };
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return new BinaryDecoder(maxMessageSize);
+    }
+
+    private void writeObject(ByteArrayOutputStream output, JSONObject object) {
+        FrameDecoder.writeVarint(output, object.length());
+        for (String key : object.keySet()) {
+            writeString(output, key, key.length() <= MAX_INTERNED_LENGTH);
+            Object value = object.opt(key);
+            if (NAME.equals(key) && value instanceof String) {
+                String name = (String)value;
+                writeString(output, name, name.length() <= MAX_INTERNED_LENGTH);
+            } else {
+                writeValue(output, value);
+            }
+        }
+    }
+
+    private void writeValue(ByteArrayOutputStream output, Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            output.write(NULL);
+        } else if (value instanceof Boolean) {
+            output.write((Boolean)value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            long number = ((Number)value).longValue();
+            output.write(INTEGER);
+            FrameDecoder.writeVarint(output, (number << 1) ^ (number >> 63));
+        } else if (value instanceof Number) {
+            long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+            output.write(DOUBLE);
+            for (int i = 56; i >= 0; i -= 8) {
+                output.write((int)(bits >>> i));
+            }
+        } else if (value instanceof JSONObject) {
+            output.write(OBJECT);
+            writeObject(output, (JSONObject)value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray)value;
+            output.write(ARRAY);
+            FrameDecoder.writeVarint(output, array.length());
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(output, array.opt(i));
+            }
+        } else {
+            writeString(output, value.toString(), false);
+        }
+    }
+
+    private void writeString(ByteArrayOutputStream output, String string,
+            boolean intern) {
+        int id = intern ? dictionary.intern(string) : -1;
+        if (id >= 0) {
+            output.write(REFERENCE);
+            FrameDecoder.writeVarint(output, id);
+        } else {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            output.write(STRING);
+            FrameDecoder.writeVarint(output, bytes.length);
+            output.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Decoder of one connection; it keeps the definitions received through
+     * that connection. Signals are taken from the pool, see
+     * {@link Signal#obtain}. A signal whose name cannot be interned, see
+     * {@link Signal#internRemote}, is decoded as a JSON object.
+     */
+    static class BinaryDecoder extends FrameDecoder {
+
+        private final List<String> definitions = new ArrayList<>();
+
+        /**
+         * Signal name identifier of each definition plus one, zero if it
+         * is not known yet, -1 if the name cannot be interned.
+         */
+        private int[] signalNames = new int[64];
+
+        BinaryDecoder(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        protected Object frame(int type, byte[] body, int length)
+                throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(body, 0, length);
+            try {
+                switch (type) {
+                    case DEFINITION_FRAME:
+                        int id = (int)readVarint(buffer);
+                        if (id != definitions.size()) {
+                            throw new IOException("Unexpected definition: " + id);
+                        }
+                        definitions.add(new String(body, buffer.position(),
+                                buffer.remaining(), StandardCharsets.UTF_8));
+                        return null;
+                    case MESSAGE_FRAME:
+                        return readObject(buffer);
+                    case SIGNAL_FRAME:
+                        return readSignal(buffer);
+                    default:
+                        throw new IOException("Unknown frame type: " + type);
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException
+                    | IllegalArgumentException e) {
+                throw new IOException("Malformed frame!", e);
+            }
+        }
+
+        private Object readSignal(ByteBuffer buffer) throws IOException {
+            int definition = (int)readVarint(buffer);
+            if (definition < 0 || definition >= definitions.size()) {
+                throw new IOException("Unknown definition: " + definition);
+            }
+            if (definition >= signalNames.length) {
+                signalNames = Arrays.copyOf(signalNames,
+                        Math.max(definition + 1, signalNames.length * 2));
+            }
+            if (signalNames[definition] == 0) {
+                signalNames[definition]
+                        = Signal.internRemote(definitions.get(definition)) + 1;
+                if (signalNames[definition] == 0) {
+                    signalNames[definition] = -1;
+                }
+            }
+            long sequence = readVarint(buffer);
+            long timestamp = readVarint(buffer);
+            boolean valid = buffer.get() == TRUE;
+            double value = buffer.getDouble();
+            String origin = null;
+            long originSequence = 0;
+            if (buffer.hasRemaining()) {
+                int id = (int)readVarint(buffer);
+                if (id < 0 || id >= definitions.size()) {
+                    throw new IOException("Unknown definition: " + id);
+                }
+                origin = definitions.get(id);
+                originSequence = readVarint(buffer);
+            }
+            if (signalNames[definition] < 0) {
+                JSONObject message = new JSONObject()
+                        .put(NAME, definitions.get(definition))
+                        .put("timestamp", timestamp).put("valid", valid)
+                        .put("value", Double.isNaN(value) || Double.isInfinite(value)
+                                ? JSONObject.NULL : (Object)value);
+                if (sequence > 0) {
+                    message.put(Dispatcher.SEQUENCE, sequence);
+                }
+                if (origin != null) {
+                    message.put(Dispatcher.ORIGIN, origin)
+                            .put(Dispatcher.ORIGIN_SEQUENCE, originSequence);
+                }
+                return message;
+            }
+            return Signal.obtain().setNameId(signalNames[definition] - 1)
+                    .setSequence(sequence).setTimestamp(timestamp)
+                    .setValid(valid).setValue(value)
+                    .setOrigin(origin, originSequence);
+        }
+
+        private JSONObject readObject(ByteBuffer buffer) throws IOException {
+            JSONObject object = new JSONObject();
+            long count = readVarint(buffer);
+            for (long i = 0; i < count; i++) {
+                Object key = readValue(buffer);
+                object.put(String.valueOf(key), readValue(buffer));
+            }
+            return object;
+        }
+
+        private Object readValue(ByteBuffer buffer) throws IOException {
+            int tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return JSONObject.NULL;
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case INTEGER:
+                    long zigzag = readVarint(buffer);
+                    long number = (zigzag >>> 1) ^ -(zigzag & 1);
+                    return number == (int)number
+                            ? Integer.valueOf((int)number) : Long.valueOf(number);
+                case DOUBLE:
+                    return buffer.getDouble();
+                case REFERENCE:
+                    return definitions.get((int)readVarint(buffer));
+                case STRING:
+                    int length = (int)readVarint(buffer);
+                    String string = new String(buffer.array(), buffer.position(),
+                            length, StandardCharsets.UTF_8);
+                    buffer.position(buffer.position() + length);
+                    return string;
+                case OBJECT:
+                    return readObject(buffer);
+                case ARRAY:
+                    JSONArray array = new JSONArray();
+                    long count = readVarint(buffer);
+                    for (long i = 0; i < count; i++) {
+                        array.put(readValue(buffer));
+                    }
+                    return array;
+                default:
+                    throw new IOException("Unknown value tag: " + tag);
+            }
+        }
+
+    }
+
+}
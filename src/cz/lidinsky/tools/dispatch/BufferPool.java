@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct byte buffers. Buffers are grouped into classes by their
+ * capacity, which is a power of two. Buffers larger than the maximal
+ * pooled size are allocated on demand and left to the garbage collector.
+ * The object is thread safe.
+ */
+class BufferPool {
+
+    /** Capacity of the smallest buffers. */
+    static final int MIN_SIZE = 256;
+
+    /** Default capacity of the largest pooled buffers. */
+    static final int MAX_POOLED_SIZE = 65536;
+
+    /** Default maximal number of free buffers of each class. */
+    static final int MAX_FREE = 1024;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCounts;
+    private final int maxFree;
+
+    BufferPool() {
+        this(MAX_POOLED_SIZE, MAX_FREE);
+    }
+
+    /**
+     * @param maxPooledSize
+     *            buffers with a larger capacity are not pooled
+     *
+     * @param maxFree
+     *            maximal number of free buffers kept for each capacity
+     */
+    @SuppressWarnings("unchecked")
+    BufferPool(int maxPooledSize, int maxFree) {
+        int classes = classOf(Math.max(MIN_SIZE, maxPooledSize)) + 1;
+        this.free = (ConcurrentLinkedQueue<ByteBuffer>[])
+                new ConcurrentLinkedQueue<?>[classes];
+        this.freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCounts[i] = new AtomicInteger();
+        }
+        this.maxFree = maxFree;
+    }
+
+    /**
+     * Returns a buffer with at least the given capacity; its position is
+     * zero and its limit is the requested size. The caller holds the only
+     * reference.
+     */
+    PooledBuffer acquire(int size) {
+        int index = classOf(size);
+        ByteBuffer buffer = null;
+        if (index < free.length) {
+            buffer = free[index].poll();
+            if (buffer != null) {
+                freeCounts[index].decrementAndGet();
+            } else {
+                buffer = ByteBuffer.allocateDirect(MIN_SIZE << index);
+            }
+        } else {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return new PooledBuffer(this, buffer);
+    }
+
+    /**
+     * Returns a buffer which is no longer used into the pool.
+     */
+    void recycle(ByteBuffer buffer) {
+        int index = classOf(buffer.capacity());
+        if (index < free.length && buffer.capacity() == MIN_SIZE << index) {
+            if (freeCounts[index].incrementAndGet() <= maxFree) {
+                free[index].offer(buffer);
+            } else {
+                freeCounts[index].decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of free buffers in the pool.
+     */
+    int getFree() {
+        int result = 0;
+        for (AtomicInteger count : freeCounts) {
+            result += count.get();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the smallest class whose buffers have at least
+     * the given capacity.
+     */
+    private static int classOf(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_SIZE);
+    }
+
+}
@@ -19,77 +19,892 @@
 package cz.lidinsky.tools.dispatch;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.Socket;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
 /**
  * A client that is dedicated to communicate with dispatch server.
+ *
+ * <p>Sent messages are queued and written by a background thread, which
+ * writes all of the queued messages at once and flushes them together, see
+ * {@link #setBatching}. The caller never waits for the network; it gets a
+ * future which is completed once the message is written.
+ *
+ * <p>If the connection fails, the client connects again, waiting longer
+ * after each unsuccessful attempt, see {@link #setReconnectDelay}. Messages
+ * sent in the meantime wait in the outbox, see {@link #setOutbox}. The
+ * subscriptions are renewed on the new connection.
+ *
+ * <p>The client may use other than the default JSON wire format, see
+ * {@link WireFormat}.
+ *
+ * <p>The sequence numbers of the received messages, if the dispatcher adds
+ * them, see {@link Dispatcher#setRetransmitRing}, are checked. Duplicate
+ * messages are discarded and missing messages are requested again from
+ * the dispatcher, so the consumers get the messages in order; messages
+ * which the dispatcher cannot send again are reported to the gap listener.
+ * The same applies to the messages sent while the client was disconnected.
+ * Messages which the dispatcher has discarded from the outbox of the client
+ * are skipped. Missing messages are not detected after the client has
+ * subscribed some topic.
+ *
+ * <p>On the local network, the messages may be received by multicast, see
+ * {@link #setMulticast}.
+ *
+ * <p>Signal updates may be sent as pooled {@link Signal} records, which
+ * are encoded without any intermediate JSON object, see
+ * {@link #send(Signal)}. With the binary wire format, the client receives
+ * such updates as signals too; a received signal goes back to the pool when
+ * the consumers called by the input loop return, unless some of them
+ * retains it.
+ *
+ * <p>Consumers are called by the input loop, or by the multicast loop,
+ * or by an executor if they may be slow, see {@link #addConsumer(Consumer, Executor, int,
+ * OverflowPolicy)}.
+ *
+ * <p>The input and output loops may run on virtual threads, see
+ * {@link #setVirtualThreads}.
  */
 public class Client {
 
-    private final OutputStreamWriter writer;
-    private final JSONTokener reader;
-    private final Set<Consumer> consumers;
+    /** Default delay before the first reconnect attempt in nanoseconds. */
+    static final long MIN_RECONNECT_DELAY = 100_000_000L;
 
-    private final String host;
+    /** Default maximal delay between reconnect attempts in nanoseconds. */
+    static final long MAX_RECONNECT_DELAY = 30_000_000_000L;
 
+    private final String host;
     private final int port;
+    private final WireFormat format;
+    private final Codec codec;
+
+    /**
+     * Receivers of the messages, either the consumers themselves or their
+     * mailboxes. The input loop iterates it without any lock.
+     */
+    private final CopyOnWriteArrayList<Consumer<Object>> consumers;
+
+    /** The current connection, replaced on reconnect. */
+    private volatile Connection connection;
+
+    /** Guards the reconnect. */
+    private final ReentrantLock connecting = new ReentrantLock();
+
+    /** Signalled when the client is closed, to stop waiting. */
+    private final Condition closing = connecting.newCondition();
+
+    /** Subscribed patterns, renewed after reconnect. */
+    private final Set<String> subscriptions = new LinkedHashSet<>();
+
+    private long minReconnectDelay = MIN_RECONNECT_DELAY;
+
+    private long maxReconnectDelay = MAX_RECONNECT_DELAY;
 
     public Client(String host, int port) throws IOException {
-      this.host = host;
-      this.port = port;
-        Socket socket = new Socket(host, port);
-        writer = new OutputStreamWriter(socket.getOutputStream());
-        reader = new JSONTokener(socket.getInputStream());
+        this(host, port, WireFormat.JSON);
+    }
+
+    /**
+     * Connects to the dispatcher and selects the wire format.
+     *
+     * @param host
+     *            host name of the dispatcher
+     *
+     * @param port
+     *            port number of the dispatcher
+     *
+     * @param format
+     *            wire format used in both directions
+     *
+     * @throws IOException
+     *             if the first connection cannot be established
+     */
+    public Client(String host, int port, WireFormat format) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.format = format;
+        codec = format.newCodec();
         closed = false;
-        consumers = new HashSet<>();
+        consumers = new CopyOnWriteArrayList<>();
+        outbox = new Outbox(Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST,
+                Client::keyOf, Client::dropped);
+        logger = Logger.getLogger(getClass().getName());
+        trace = new Trace(logger);
+        virtualThreads = Tools.isVirtualThreadsDefault();
+        tracker = new SequenceTracker(this::consume, this::resend, this::lost,
+                SequenceTracker.MAX_PENDING);
+        connection = connect();
+    }
+
+    /**
+     * Checks the sequence numbers, used by the input loop and by the
+     * multicast loop under its lock.
+     */
+    private final SequenceTracker tracker;
+
+    /** True if some topic was subscribed, which disables gap detection. */
+    private volatile boolean subscribed;
+
+    /** Gets the ranges of lost sequence numbers. */
+    private volatile BiConsumer<Long, Long> gapListener = (from, to) -> {};
+
+    /**
+     * Sets the listener which is called from the input loop with the first
+     * and the last sequence number of messages which were lost; the
+     * dispatcher couldn't send them again.
+     *
+     * @param gapListener
+     *            a listener
+     *
+     * @return this object
+     */
+    public Client setGapListener(BiConsumer<Long, Long> gapListener) {
+        this.gapListener = gapListener;
+        return this;
+    }
+
+    /**
+     * Called by the tracker, which holds the lock of itself.
+     */
+    private void resend(long sequence) {
+        try {
+            if (multicastSocket != null) {
+                // the subsequent messages come by multicast
+                sendControl(new JSONObject().put(Dispatcher.REPLAY, sequence)
+                        .put(Dispatcher.REPLAY_TO, tracker.getRequested()));
+            } else {
+                replay(sequence);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot request missing messages", e);
+        }
+    }
+
+    private void lost(Long from, Long to) {
+        logger.log(Level.WARNING, "Lost messages {0} - {1}", new Object[] {from, to});
+        gapListener.accept(from, to);
+    }
+
+    /** Receives the multicast, or null. */
+    private volatile MulticastSocket multicastSocket;
+
+    /**
+     * Receives the messages from the given multicast group instead of the
+     * connection, see {@link Dispatcher#setMulticast}. The datagrams are
+     * received by their own thread, but the consumers get the messages
+     * in order; the lost datagrams are requested through the connection.
+     * The client receives all of the messages, subscriptions are ignored.
+     * It must be set before the client is started.
+     *
+     * @param group
+     *            address and port of the multicast group
+     *
+     * @param networkInterface
+     *            the interface to receive the datagrams on; null selects
+     *            the default one
+     *
+     * @return this object
+     *
+     * @throws IOException
+     *             if the group cannot be joined
+     */
+    public Client setMulticast(InetSocketAddress group,
+            NetworkInterface networkInterface) throws IOException {
+        MulticastSocket socket = new MulticastSocket(group.getPort());
+        try {
+            socket.joinGroup(group, networkInterface);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        synchronized (tracker) {
+            tracker.setRangeRequests(true);
+        }
+        multicastSocket = socket;
+        // renewed on reconnect
+        sendControl(new JSONObject().put(Dispatcher.MULTICAST, true));
+        return this;
+    }
+
+    /** Returns the message sent on each connection, or null. */
+    private volatile Supplier<JSONObject> greeting;
+
+    /**
+     * Sets the message which is sent at the start of each new connection,
+     * before any queued message. It is used by the links between
+     * dispatchers, see {@link Dispatcher#addPeer}.
+     */
+    void setGreeting(Supplier<JSONObject> greeting) {
+        this.greeting = greeting;
+    }
+
+    /**
+     * Tells that the dispatcher doesn't send all of the messages, like
+     * after a subscription, so the missing ones are not requested.
+     */
+    void setFiltered() {
+        subscribed = true;
+    }
+
+    /** Use virtual threads for the input and output loops. */
+    private boolean virtualThreads;
+
+    /**
+     * If true, the input and output loops run on virtual threads. The
+     * default value is given by the system property
+     * <code>cz.lidinsky.tools.dispatch.virtualThreads</code>. It must be set
+     * before the client is started.
+     *
+     * @param virtualThreads
+     *            true to use a virtual thread
+     *
+     * @return this object
+     */
+    public Client setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * Sets the delays between reconnect attempts. The delay is doubled after
+     * each unsuccessful attempt, up to the maximum; a random part of it is
+     * left out, so that many clients don't connect at the same moment.
+     *
+     * @param min
+     *            delay before the first attempt
+     *
+     * @param max
+     *            maximal delay
+     *
+     * @param unit
+     *            unit of the arguments
+     *
+     * @return this object
+     */
+    public Client setReconnectDelay(long min, long max, TimeUnit unit) {
+        this.minReconnectDelay = Math.max(1, unit.toNanos(min));
+        this.maxReconnectDelay = Math.max(minReconnectDelay, unit.toNanos(max));
+        return this;
+    }
+
+    /**
+     * Adds a consumer which is called directly by the input loop. It
+     * should return quickly, because no message is received meanwhile.
+     *
+     * @param consumer
+     *            gets all of the received messages
+     */
+    public void addConsumer(Consumer<Object> consumer) {
+        consumers.addIfAbsent(consumer);
+    }
+
+    /**
+     * Adds a consumer which is called by the given executor, so that it
+     * doesn't hold up the input loop. The messages wait in a bounded
+     * mailbox. The consumer gets them in order and it is never called
+     * concurrently. For example, the executor returned by
+     * <code>Executors.newVirtualThreadPerTaskExecutor()</code> gives each
+     * consumer its own virtual thread.
+     *
+     * @param consumer
+     *            gets the received messages
+     *
+     * @param executor
+     *            runs the consumer
+     *
+     * @param capacity
+     *            maximal number of messages waiting for the consumer
+     *
+     * @param policy
+     *            what to do with a message if the mailbox is full; the
+     *            coalesce policy keeps the latest value of each signal
+     */
+    public void addConsumer(Consumer<Object> consumer, Executor executor,
+            int capacity, OverflowPolicy policy) {
+        consumers.add(new Mailbox(consumer, executor, capacity, policy));
+    }
+
+    /**
+     * Adds a consumer which is called by its own thread, see
+     * {@link #addConsumer(Consumer, Executor, int, OverflowPolicy)}. A new
+     * thread is started each time the mailbox becomes non empty; it is
+     * a virtual thread if {@link #setVirtualThreads} was set.
+     */
+    public void addConsumer(Consumer<Object> consumer, int capacity,
+            OverflowPolicy policy) {
+        addConsumer(consumer, task -> Tools.startThread(
+                task, "dispatch-client-consumer", virtualThreads),
+                capacity, policy);
+    }
+
+    /**
+     * Removes the consumer; the messages waiting in its mailbox are
+     * discarded.
+     */
+    public void removeConsumer(Consumer<Object> consumer) {
+        consumers.removeIf(receiver -> {
+            if (receiver == consumer) {
+                return true;
+            } else if (receiver instanceof Mailbox
+                    && ((Mailbox)receiver).isFor(consumer)) {
+                ((Mailbox)receiver).clear();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void consume(Object object) {
+        for (Consumer<Object> consumer : consumers) {
+            try {
+                consumer.accept(object);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Consumer failed", e);
+            }
+        }
+        // the mailboxes hold their own references
+        Signal.release(object);
+    }
+
+    /** Messages waiting to be written. */
+    private volatile Outbox outbox;
+
+    private final Logger logger;
+
+    /** Traces the received messages. */
+    private final Trace trace;
+
+    /** The thread which writes the outbox, null until the first send. */
+    private Thread writerThread;
+
+    private int maxBatch = BatchWriter.MAX_BATCH;
+
+    private long maxLatency = BatchWriter.MAX_LATENCY;
+
+    /**
+     * Configures batching of sent messages. All of the queued messages are
+     * written and flushed at once; the flush is done sooner if the batch
+     * reaches the maximal size or if the maximal latency elapses. It must be
+     * set before the first message is sent.
+     *
+     * @param maxBatch
+     *            maximal number of messages in one batch
+     *
+     * @param maxLatency
+     *            maximal time between taking the first message of a batch
+     *            and the flush
+     *
+     * @param unit
+     *            unit of the max latency argument
+     *
+     * @return this object
+     */
+    public Client setBatching(int maxBatch, long maxLatency, TimeUnit unit) {
+        this.maxBatch = maxBatch;
+        this.maxLatency = unit.toNanos(maxLatency);
+        return this;
+    }
+
+    /**
+     * Limits the number of messages which may wait to be written, for
+     * example while the client is disconnected. The outbox is unbounded by
+     * default. The futures of discarded messages complete exceptionally.
+     * Subscriptions and other control messages are never discarded. It
+     * must be set before the first message is sent.
+     *
+     * @param capacity
+     *            maximal number of waiting messages
+     *
+     * @param policy
+     *            what to do with a message if the outbox is full; the
+     *            disconnect policy discards the new message
+     *
+     * @return this object
+     */
+    public Client setOutbox(int capacity, OverflowPolicy policy) {
+        outbox = new Outbox(capacity, policy, Client::keyOf, Client::dropped);
+        return this;
+    }
+
+    /**
+     * Queues the given object to be sent to the dispatcher. The method
+     * doesn't wait until the object is written; it is written even after
+     * a reconnect.
+     *
+     * @param object
+     *            a message to send
+     *
+     * @return completes when the message has been written and flushed, or
+     *            exceptionally if the connection failed while writing it or
+     *            if the message was discarded from the outbox
+     *
+     * @throws IOException
+     *             if the client is closed
+     */
+    public CompletableFuture<Void> send(JSONObject object) throws IOException {
+        if (closed) {
+            throw new IOException("The client is closed!");
+        }
+        startWriter();
+        Pending pending = new Pending(object);
+        outbox.offer(pending);
+        return pending.future;
+    }
+
+    /**
+     * Queues the given signal to be sent to the dispatcher, like
+     * {@link #send(JSONObject)}, but without any future. The reference to
+     * the signal is handed over; it is released once the signal is
+     * encoded. A signal which was encoded, but not written because the
+     * connection failed, is not written again.
+     *
+     * @param signal
+     *            a signal to send
+     *
+     * @throws IOException
+     *             if the client is closed
+     */
+    public void send(Signal signal) throws IOException {
+        if (closed) {
+            signal.release();
+            throw new IOException("The client is closed!");
+        }
+        startWriter();
+        outbox.offer(signal);
     }
 
-    public synchronized void addConsumer(Consumer consumer) {
-        consumers.add(consumer);
+    /**
+     * Queues the given control message to be written before the other
+     * messages; it is never discarded from the outbox. It is used also by
+     * the links between dispatchers, see {@link Dispatcher#addPeer}.
+     *
+     * @throws IOException
+     *             if the client is closed
+     */
+    void sendControl(JSONObject message) throws IOException {
+        if (closed) {
+            throw new IOException("The client is closed!");
+        }
+        startWriter();
+        outbox.queueControl(new Pending(message));
     }
 
-    public synchronized void removeConsumer(Consumer consumer) {
-        consumers.remove(consumer);
+    /** A message in the outbox. */
+    private static final class Pending {
+
+        final JSONObject message;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(JSONObject message) {
+            this.message = message;
+        }
+
     }
 
-    private synchronized void consume(Object object) {
-        consumers.stream().forEach(consumer -> consumer.accept(object));
+    private static Object keyOf(Object item) {
+        if (item instanceof Signal) {
+            return ((Signal)item).getName();
+        }
+        return item instanceof Pending ? Tools.nameOf(((Pending)item).message) : null;
     }
 
-    public void send(JSONObject object) throws IOException {
-        object.write(writer);
-        writer.flush();
+    private static void dropped(Object item) {
+        if (item instanceof Pending) {
+            ((Pending)item).future.completeExceptionally(
+                    new IOException("The message was discarded from the outbox!"));
+        } else {
+            Signal.release(item);
+        }
     }
 
+    private synchronized void startWriter() {
+        if (writerThread == null && !closed) {
+            writerThread = Tools.startThread(
+                    this::outputLoop, "dispatch-client-output", virtualThreads);
+        }
+    }
+
+    private void outputLoop() {
+        List<Pending> batch = new ArrayList<>();
+        Connection current = null;
+        BatchWriter batchWriter = null;
+        while (!closed || !outbox.isEmpty()) {
+            if (current != connection) {
+                current = connection;
+                UnaryOperator<byte[]> writer = current.writer;
+                batchWriter = new BatchWriter(current.output, item -> {
+                    if (item instanceof Signal) {
+                        byte[] bytes = codec.encode(item);
+                        ((Signal)item).release();
+                        return bytes == null ? null : writer.apply(bytes);
+                    } else if (!(item instanceof Pending)) {
+                        return null;
+                    }
+                    batch.add((Pending)item);
+                    byte[] bytes = codec.encode(((Pending)item).message);
+                    return bytes == null ? null : writer.apply(bytes);
+                }, maxBatch, maxLatency);
+            }
+            try {
+                try {
+                    batchWriter.writeBatch(outbox);
+                } catch (IOException e) {
+                    Connection replaced = connection;
+                    if (closed || replaced == current) {
+                        throw e;
+                    }
+                    // the input loop has replaced the connection while the
+                    // batch was written, so the batch goes through the new one
+                    replaced.write(batch);
+                }
+                batch.forEach(pending -> pending.future.complete(null));
+            } catch (IOException e) {
+                batch.forEach(pending -> pending.future.completeExceptionally(e));
+                if (!closed) {
+                    logger.log(Level.WARNING, "Connection to the dispatcher failed", e);
+                    reconnect(current);
+                }
+            }
+            batch.clear();
+        }
+        connection.close();
+    }
+
+    /**
+     * Asks the dispatcher to send messages whose topic matches the given
+     * pattern. The pattern is either an exact signal name or a prefix
+     * followed by the wildcard, like <code>plant1.boiler.*</code>. Until the
+     * first subscription, the client receives all of the messages. The
+     * subscription is renewed after reconnect.
+     *
+     * @param pattern
+     *            topic pattern
+     *
+     * @throws IOException
+     */
+    public void subscribe(String pattern) throws IOException {
+        subscribed = true;
+        synchronized (subscriptions) {
+            subscriptions.add(pattern);
+        }
+        sendControl(new JSONObject().put(Subscriptions.SUBSCRIBE, pattern));
+    }
+
+    /**
+     * Cancels the subscription of the given pattern.
+     *
+     * @param pattern
+     *            previously subscribed pattern
+     *
+     * @throws IOException
+     */
+    public void unsubscribe(String pattern) throws IOException {
+        synchronized (subscriptions) {
+            subscriptions.remove(pattern);
+        }
+        sendControl(new JSONObject().put(Subscriptions.UNSUBSCRIBE, pattern));
+    }
+
+    /**
+     * Asks the dispatcher for all of the messages starting with the given
+     * sequence number; they are received before any subsequent live
+     * message. The dispatcher sends them from its memory or from its
+     * journal. Messages which were already received are discarded.
+     *
+     * @param sequence
+     *            the sequence number following the last one received,
+     *            see the <code>sequence</code> field of the messages
+     *
+     * @throws IOException
+     */
+    public void replay(long sequence) throws IOException {
+        sendControl(new JSONObject().put(Dispatcher.REPLAY, sequence));
+    }
+
+    /**
+     * Waits for the next message from the current connection. It doesn't
+     * reconnect.
+     *
+     * @return received message or null if the connection was closed
+     *
+     * @throws UncheckedIOException
+     *             if the connection fails or if the input is malformed
+     */
     public Object read() {
-        return reader.nextValue();
+        try {
+            return connection.read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
+    /**
+     * Writes all of the queued messages and closes the connection. Messages
+     * which cannot be written, because the client is disconnected, are
+     * discarded.
+     *
+     * @throws IOException
+     */
     public void close() throws IOException {
-        closed = true;
-        writer.close();
+        Thread writer;
+        synchronized (this) {
+            closed = true;
+            writer = writerThread;
+        }
+        connecting.lock();
+        try {
+            closing.signalAll();
+        } finally {
+            connecting.unlock();
+        }
+        MulticastSocket socket = multicastSocket;
+        if (socket != null) {
+            socket.close();
+        }
+        if (writer == null) {
+            connection.close();
+            return;
+        }
+        outbox.offer(WAKE_UP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
+    /** Queued to wake up the output loop when closing. */
+    private static final Object WAKE_UP = new Object();
+
     public void start() {
-        new Thread(this::inputLoop).start();
+        Tools.startThread(this::inputLoop, "dispatch-client-input", virtualThreads);
+        if (multicastSocket != null) {
+            Tools.startThread(this::multicastLoop, "dispatch-client-multicast", virtualThreads);
+        }
+        startWriter();
     }
 
-    private boolean closed;
+    private volatile boolean closed;
 
     private void inputLoop() {
+        Connection current = connection;
+        while (!closed) {
+            Object received;
+            try {
+                received = current.read();
+                if (received == null) {
+                    logger.log(Level.WARNING, "The dispatcher has closed the connection");
+                }
+            } catch (IOException | JSONException e) {
+                if (!closed) {
+                    logger.log(Level.WARNING, "Connection to the dispatcher failed", e);
+                }
+                received = null;
+            }
+            if (received == null) {
+                current = reconnect(current);
+                if (current == null) {
+                    break;
+                }
+                synchronized (tracker) {
+                    tracker.reconnected();
+                }
+                continue;
+            }
+            trace.message(Trace.Event.RECEIVED, host, received);
+            synchronized (tracker) {
+                if (subscribed && multicastSocket == null) {
+                    tracker.setGapDetection(false);
+                }
+                tracker.received(received);
+            }
+        }
+    }
+
+    private void multicastLoop() {
+        MulticastSocket socket = multicastSocket;
+        byte[] buffer = new byte[Dispatcher.MAX_DATAGRAM];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
         while (!closed) {
-            Object received = reader.nextValue();
-            System.out.println(received);
-            consume(received);
+            Object received;
+            try {
+                socket.receive(datagram);
+                received = new JSONTokener(new String(buffer, 0,
+                        datagram.getLength(), StandardCharsets.UTF_8)).nextValue();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.log(Level.SEVERE, "Cannot receive the multicast", e);
+                }
+                break;
+            } catch (JSONException e) {
+                logger.log(Level.WARNING, "Malformed datagram", e);
+                continue;
+            }
+            trace.message(Trace.Event.RECEIVED, host, received);
+            synchronized (tracker) {
+                // nothing is known before the sync from the connection
+                if (tracker.getExpected() > 0) {
+                    tracker.received(received);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the given failed connection with a new one. If the
+     * connection has been already replaced, it just returns the new one.
+     *
+     * @return the new connection or null if the client was closed
+     */
+    private Connection reconnect(Connection failed) {
+        connecting.lock();
+        try {
+            failed.close();
+            long delay = minReconnectDelay;
+            while (!closed && connection == failed) {
+                try {
+                    connection = connect();
+                    logger.log(Level.INFO, "Connected to the dispatcher again");
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Cannot connect to the dispatcher", e);
+                    long wait = delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+                    while (wait > 0 && !closed) {
+                        wait = closing.awaitNanos(wait);
+                    }
+                    delay = Math.min(2 * delay, maxReconnectDelay);
+                }
+            }
+            return closed ? null : connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            connecting.unlock();
         }
     }
 
+    /**
+     * Opens a new connection, writes the preface, renews all of the
+     * subscriptions and writes the greeting.
+     */
+    private Connection connect() throws IOException {
+        Connection result = new Connection(new Socket(host, port));
+        try {
+            format.writePreface(result.output);
+            synchronized (subscriptions) {
+                for (String pattern : subscriptions) {
+                    byte[] bytes = codec.encode(
+                            new JSONObject().put(Subscriptions.SUBSCRIBE, pattern));
+                    result.output.write(result.writer.apply(bytes));
+                }
+            }
+            if (multicastSocket != null) {
+                byte[] bytes = codec.encode(
+                        new JSONObject().put(Dispatcher.MULTICAST, true));
+                result.output.write(result.writer.apply(bytes));
+            }
+            Supplier<JSONObject> greeting = this.greeting;
+            if (greeting != null) {
+                byte[] bytes = codec.encode(greeting.get());
+                result.output.write(result.writer.apply(bytes));
+            }
+            result.output.flush();
+            return result;
+        } catch (IOException e) {
+            result.close();
+            throw e;
+        }
+    }
+
+    /** One connection to the dispatcher. */
+    private final class Connection {
+
+        final Socket socket;
+        final OutputStream output;
+        final InputStream input;
+        final WireDecoder decoder;
+
+        /** Per connection state of the codec. */
+        final UnaryOperator<byte[]> writer;
+
+        /** Buffer for received bytes, wrapped by the inputBuffer. */
+        private final byte[] inputArray = new byte[8192];
+        private final ByteBuffer inputBuffer = ByteBuffer.wrap(inputArray);
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            output = socket.getOutputStream();
+            input = socket.getInputStream();
+            decoder = new WireDecoder(codec);
+            writer = codec.newWriter();
+            inputBuffer.limit(0);
+        }
+
+        Object read() throws IOException {
+            Object message;
+            while ((message = decoder.decode(inputBuffer)) == null) {
+                int count = input.read(inputArray);
+                if (count < 0) {
+                    return null;
+                }
+                inputBuffer.position(0);
+                inputBuffer.limit(count);
+            }
+            return message instanceof Packet
+                    ? ((Packet)message).getMessage() : message;
+        }
+
+        /**
+         * Writes the messages and flushes them.
+         */
+        void write(List<Pending> messages) throws IOException {
+            for (Pending pending : messages) {
+                byte[] bytes = codec.encode(pending.message);
+                if (bytes != null) {
+                    output.write(writer.apply(bytes));
+                }
+            }
+            output.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, null, e);
+            }
+        }
+
+    }
+
     public static void main(String[] args) throws IOException {
         Client client = new Client("localhost", 12345);
         client.start();
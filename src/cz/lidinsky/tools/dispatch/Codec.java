@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Translates messages to bytes and back. Each codec is responsible for the
+ * framing of the messages as well.
+ */
+interface Codec {
+
+    /**
+     * Incremental decoder for one connection.
+     */
+    interface Decoder {
+
+        /**
+         * Consumes bytes from the given buffer until one complete message is
+         * decoded.
+         *
+         * @param buffer
+         *            received bytes, the buffer must be prepared for reading
+         *
+         * @return decoded message or null if there is not enough bytes in
+         *            the buffer; in such a case, all of the bytes are
+         *            consumed and remembered
+         *
+         * @throws IOException
+         *             if the input is malformed
+         */
+        Object decode(ByteBuffer buffer) throws IOException;
+
+    }
+
+    /**
+     * Returns the format implemented by this codec.
+     */
+    WireFormat getFormat();
+
+    /**
+     * Encodes the given message. The result does not depend on the
+     * connection, so it may be written to many of them.
+     *
+     * @param message
+     *            a message to encode
+     *
+     * @return encoded message or null if the message is not supported
+     */
+    byte[] encode(Object message);
+
+    /**
+     * Returns a function which is applied to each encoded message right
+     * before it is written to one connection. It may prepend data the
+     * receiver needs to decode the message, but it must not modify the
+     * given array.
+     */
+    UnaryOperator<byte[]> newWriter();
+
+    /**
+     * Creates a decoder for one connection.
+     */
+    Decoder newDecoder();
+
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns small integer identifiers to strings, typically field and signal
+ * names. Identifiers are assigned in ascending order from zero and they
+ * never change. The object is thread safe.
+ */
+class Dictionary {
+
+    /** Maximal number of entries. */
+    static final int MAX_SIZE = 65536;
+
+    private final ConcurrentHashMap<String, Integer> ids
+            = new ConcurrentHashMap<>();
+
+    private volatile String[] names = new String[64];
+
+    private volatile int size;
+
+    /**
+     * Returns the identifier of the given string; a new one is assigned if
+     * necessary.
+     *
+     * @param name
+     *            a string to intern
+     *
+     * @return the identifier or -1 if the dictionary is full
+     */
+    int intern(String name) {
+        return intern(name, MAX_SIZE);
+    }
+
+    /**
+     * Returns the identifier of the given string; a new one is assigned
+     * only if there are less than the given number of entries.
+     *
+     * @param name
+     *            a string to intern
+     *
+     * @param limit
+     *            maximal number of entries, at most {@link #MAX_SIZE}
+     *
+     * @return the identifier or -1 if the limit was reached
+     */
+    int intern(String name, int limit) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            } else if (size >= Math.min(limit, MAX_SIZE)) {
+                return -1;
+            }
+            String[] array = names;
+            if (size == array.length) {
+                array = Arrays.copyOf(array, array.length * 2);
+            }
+            array[size] = name;
+            names = array;
+            ids.put(name, size);
+            return size++;
+        }
+    }
+
+    /**
+     * Returns the string with the given identifier.
+     */
+    String get(int id) {
+        return names[id];
+    }
+
+    /**
+     * Returns the number of entries; all of the identifiers are lower.
+     */
+    int size() {
+        return size;
+    }
+
+}
@@ -18,28 +18,118 @@
 
 package cz.lidinsky.tools.dispatch;
 
+import cz.lidinsky.tools.CommonException;
+import cz.lidinsky.tools.ExceptionCode;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONTokener;
-import org.json.JSONWriter;
 
 /**
  * The dispatcher is a server application which listens on the given port. Each
  * client which connects may send and message which is resent to all of the
  * clients.
+ *
+ * <p>By default, each connected client is served by two dedicated threads.
+ * If a positive number of event loops is given to the constructor, the
+ * clients are served by non-blocking channels instead, which are evenly
+ * distributed among that fixed number of event loop threads. The wire
+ * protocol is the same in both modes.
+ *
+ * <p>Modules running in the same JVM may connect without any socket, see
+ * {@link #connect}. Their messages are passed by reference, they are never
+ * encoded for them. Processes on the same host may read the messages from
+ * shared memory, see {@link #setSharedMemory}. Clients on the local
+ * network may receive the messages by multicast, see {@link #setMulticast}.
+ * Several dispatchers may be connected as peers, so that the clients may
+ * connect to any of them, see {@link #addPeer}.
+ *
+ * <p>One broadcast thread takes the received messages in order and hands
+ * them over to the outboxes of the clients. The clients may be partitioned
+ * among several fan out threads, see {@link #setFanOutThreads}.
+ *
+ * <p>Each client selects the wire format of its connection, see
+ * {@link WireFormat}; JSON text is the default. Messages are JSON objects,
+ * or pooled {@link Signal} records, which are encoded without any
+ * intermediate JSON object.
+ *
+ * <p>A client may restrict the messages it receives by subscribing topic
+ * patterns, see {@link Subscriptions}. The topic of a message is its key,
+ * see {@link #setKeyExtractor}. A client which has not subscribed anything
+ * receives all of the messages.
+ *
+ * <p>The dispatcher may remember the last message of each signal and send
+ * them to each newly connected client, see {@link #setLastValueCache}.
+ * It may also write all of the messages into a journal on the disk, from
+ * which a client may replay the messages it has missed, see
+ * {@link #setJournal}.
+ *
+ * <p>Messages waiting to be sent to a client are stored in its outbox.
+ * The outboxes are unbounded by default; {@link #setOutbox} limits them and
+ * selects what happens to the messages of a client which does not keep up.
+ * The conflate policy keeps just the newest value of each signal for slow
+ * clients, such as operator displays, see {@link OverflowPolicy#CONFLATE}.
+ *
+ * <p>The dispatcher counts messages and bytes and it measures the fan out
+ * time and the latency, see {@link #getMetrics}. The metrics may be
+ * published through JMX and logged periodically, see {@link #setMetrics}.
+ *
+ * <p>Threads of the dispatcher may be virtual threads, see
+ * {@link #setVirtualThreads}. It makes the thread per client mode cheap
+ * enough for thousands of connections.
  */
 public class Dispatcher {
 
-    private final Queue<Object> buffer;
-    private final Set<Client> clients;
+    private Fifo<Object> buffer;
+    private final Set<Endpoint> clients;
     private final Logger logger;
+    private final Trace trace;
+
+    /** Event loops which serve non-blocking clients; may be empty. */
+    private final EventLoop[] loops;
+
+    /** Codec for each wire format, indexed by the format ordinal number. */
+    private Codec[] codecs;
 
     /**
      * The port number on which the server listens.
@@ -48,90 +138,1598 @@ public class Dispatcher {
      *            the port number
      */
     public Dispatcher(final int port) {
+        this(port, 0);
+    }
+
+    /**
+     * The port number on which the server listens and the number of threads
+     * which serve the clients.
+     *
+     * @param port
+     *            the port number
+     *
+     * @param eventLoops
+     *            number of event loop threads which serve all of the
+     *            clients through non-blocking channels; zero means two
+     *            dedicated threads for each client
+     */
+    public Dispatcher(final int port, final int eventLoops) {
         this.logger = Logger.getLogger(getClass().getName());
+        this.trace = new Trace(logger);
         this.port = port;
-        this.buffer = new Queue();
+        this.buffer = new Queue<>();
         this.clients = new HashSet<>();
         this.closed = false;
+        this.loops = new EventLoop[Math.max(0, eventLoops)];
+        this.virtualThreads = Tools.isVirtualThreadsDefault();
+        this.codecs = newCodecs();
+        this.metrics = new Metrics(this::getQueueDepths);
+    }
+
+    private Codec[] newCodecs() {
+        Codec[] codecs = new Codec[WireFormat.values().length];
+        for (WireFormat format : WireFormat.values()) {
+            codecs[format.ordinal()] = format.newCodec(maxMessageSize);
+        }
+        if (pool != null) {
+            codecs[WireFormat.FRAMED_JSON.ordinal()]
+                    = new FramedJsonCodec(maxMessageSize, pool);
+        }
+        return codecs;
+    }
+
+    /** Maximal size of a received message in the framed formats. */
+    private int maxMessageSize = FrameDecoder.MAX_FRAME_SIZE;
+
+    /** Buffers for the raw frames in the pass through mode, or null. */
+    private BufferPool pool;
+
+    /**
+     * Limits the size of the messages received in the framed formats. A
+     * client which sends a longer message is disconnected before the
+     * message is read. It must be set before the dispatcher starts
+     * accepting connections.
+     *
+     * @param maxMessageSize
+     *            maximal size of a message in bytes, 16 MiB by default
+     *
+     * @return this object
+     */
+    public Dispatcher setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+        this.codecs = newCodecs();
+        return this;
+    }
+
+    /**
+     * In the pass through mode, messages received in the framed JSON format
+     * are not parsed. The frames are kept in pooled direct buffers and they
+     * are written as they are to the clients of the same format; the
+     * event loops write them by gathering writes without any copy. A
+     * message is parsed only if it is needed: when some client has
+     * subscribed a topic, when the coalesce or conflate policy or the last
+     * value cache are used, or when the message is sent to a client of
+     * another format. The sequence numbers, see {@link #setRetransmitRing},
+     * are inserted into the text of the frames without parsing them. It
+     * must be set before the dispatcher starts accepting connections.
+     *
+     * @param passThrough
+     *            true to forward the framed messages without parsing
+     *
+     * @return this object
+     */
+    public Dispatcher setPassThrough(boolean passThrough) {
+        this.pool = passThrough ? new BufferPool() : null;
+        this.codecs = newCodecs();
+        return this;
+    }
+
+    /**
+     * If true, virtual threads are used for the accept loop, for the
+     * broadcast loop and for the input and output loops of the clients.
+     * Event loops always run on platform threads. The default value is
+     * given by the system property
+     * <code>cz.lidinsky.tools.dispatch.virtualThreads</code>. It must be
+     * set before the dispatcher is started.
+     *
+     * @param virtualThreads
+     *            true to use virtual threads
+     *
+     * @return this object
+     */
+    public Dispatcher setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !Tools.isVirtualThreadsSupported()) {
+            logger.warning("Virtual threads are not supported by the runtime; using platform threads.");
+        }
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /** Use virtual threads instead of the platform ones. */
+    private boolean virtualThreads;
+
+    /**
+     * Replaces the central buffer, which collects messages from all of the
+     * clients, by the preallocated lock free {@link RingQueue}. If the ring
+     * is full, the clients stop reading from their sockets until there is
+     * a free slot again. It must be set before the dispatcher is started.
+     *
+     * @param capacity
+     *            number of slots, it is rounded up to the power of two
+     *
+     * @param strategy
+     *            how the broadcast thread waits for messages
+     *
+     * @return this object
+     */
+    public Dispatcher setRingBuffer(int capacity, WaitStrategy strategy) {
+        this.buffer = new RingQueue<>(capacity, false, strategy);
+        return this;
+    }
+
+    /** Maximal number of messages in the outbox of each client. */
+    private int outboxCapacity = Integer.MAX_VALUE;
+
+    /** What to do if an outbox is full. */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    /** Returns the key of a message, signal name by default. */
+    private Function<Object, Object> keyExtractor = Tools::nameOf;
+
+    /**
+     * Limits the number of messages which may wait in the outbox of each
+     * client. It must be set before the dispatcher starts accepting
+     * connections.
+     *
+     * @param capacity
+     *            maximal number of messages in one outbox
+     *
+     * @param policy
+     *            what to do with a message for a client whose outbox is
+     *            full
+     *
+     * @return this object
+     */
+    public Dispatcher setOutbox(int capacity, OverflowPolicy policy) {
+        this.outboxCapacity = capacity;
+        this.overflowPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Sets the function which returns a key of a message. Messages with the
+     * same key are considered to be values of the same signal. Null key
+     * means that the message is not related to any signal. The default
+     * extractor returns the <code>name</code> field of JSON objects. It is
+     * called from the threads which receive the messages.
+     *
+     * @param keyExtractor
+     *            a function which returns the key of the given message
+     *
+     * @return this object
+     */
+    public Dispatcher setKeyExtractor(Function<Object, Object> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+        return this;
+    }
+
+    /** Maximal number of messages written to a client without flush. */
+    private int maxBatch = BatchWriter.MAX_BATCH;
+
+    /** Maximal delay of a flush under load, in nanoseconds. */
+    private long maxLatency = BatchWriter.MAX_LATENCY;
+
+    /**
+     * Configures batching of the output. All of the messages waiting in the
+     * outbox of a client are written at once and flushed together. The
+     * flush is done sooner if the batch reaches the maximal size or if the
+     * maximal latency elapses. An idle client gets each message immediately.
+     *
+     * @param maxBatch
+     *            maximal number of messages in one batch
+     *
+     * @param maxLatency
+     *            maximal time between taking the first message of a batch
+     *            and the flush
+     *
+     * @param unit
+     *            unit of the max latency argument
+     *
+     * @return this object
+     */
+    public Dispatcher setBatching(int maxBatch, long maxLatency, TimeUnit unit) {
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxLatency = unit.toNanos(maxLatency);
+        return this;
+    }
+
+    /** The last value of each signal, or null. */
+    private LastValueCache cache;
+
+    /**
+     * Enables the last value cache. The dispatcher remembers the last
+     * message of each signal, identified by its key, see
+     * {@link #setKeyExtractor}. Each newly connected client receives all of
+     * the cached messages before any live message. A client which selects
+     * a format with a preface ignores everything sent before the preface
+     * echo, so it gets the cached messages again once its format is
+     * known; it may receive some of them twice. It must be set before the
+     * dispatcher is started.
+     *
+     * @param capacity
+     *            maximal number of cached signals; the least recently
+     *            updated signal is forgotten if it is exceeded; zero
+     *            disables the cache, which is the default
+     *
+     * @return this object
+     */
+    public synchronized Dispatcher setLastValueCache(int capacity) {
+        if (cache != null) {
+            cache.clear();
+        }
+        this.cache = capacity > 0 ? new LastValueCache(capacity) : null;
+        return this;
+    }
+
+    /**
+     * Field which holds the sequence number of a message, for example
+     * <code>{"name":"a","value":1,"sequence":42}</code>.
+     */
+    static final String SEQUENCE = "sequence";
+
+    /**
+     * Field of a control message which requests all of the messages
+     * starting with the given sequence number, for example
+     * <code>{"replay":43}</code>.
+     */
+    static final String REPLAY = "replay";
+
+    /**
+     * Optional field of the replay control message with the last requested
+     * sequence number, for example <code>{"replay":43,"to":50}</code>.
+     */
+    static final String REPLAY_TO = "to";
+
+    /**
+     * Field of a control message by which a client starts, or stops,
+     * receiving the messages by multicast instead of its connection, for
+     * example <code>{"multicast":true}</code>.
+     */
+    static final String MULTICAST = "multicast";
+
+    /**
+     * Field of a control message which introduces a peer dispatcher by its
+     * identifier, see {@link #addPeer}.
+     */
+    static final String PEER = "peer";
+
+    /**
+     * Field of a control message with the array of topic patterns which
+     * the clients of a peer are interested in.
+     */
+    static final String INTEREST = "interest";
+
+    /**
+     * Field with the identifier of the dispatcher which has received the
+     * message from its client.
+     */
+    static final String ORIGIN = "origin";
+
+    /** Field with the number given to the message by its origin. */
+    static final String ORIGIN_SEQUENCE = "originSequence";
+
+    /** Maximal length of a multicast message in bytes. */
+    static final int MAX_DATAGRAM = 65507;
+
+    /**
+     * Field of a control message sent to a client after the snapshot; its
+     * value is the sequence number of the last message sent before, for
+     * example <code>{"sync":42}</code>. The next message the client gets
+     * has a greater number.
+     */
+    static final String SYNC = "sync";
+
+    /**
+     * Field of a control message which tells a client that the messages in
+     * the given range of sequence numbers cannot be sent again, for
+     * example <code>{"lost":[43,50]}</code>.
+     */
+    static final String LOST = "lost";
+
+    /**
+     * Field of a control message which tells a client that the messages in
+     * the given range of sequence numbers were discarded from its outbox,
+     * see {@link #setOutbox}, for example <code>{"skipped":[43,50]}</code>.
+     * The client doesn't ask for them again.
+     */
+    static final String SKIPPED = "skipped";
+
+    /** Recently sent messages, or null if sequence numbers are disabled. */
+    private RetransmitRing ring;
+
+    /** Sequence number of the next message, used by the broadcast thread. */
+    private long nextSequence = 1;
+
+    /** Sequence number of the last sent message, accessed by the broadcast thread only. */
+    private long lastSequence;
+
+    /**
+     * Enables the sequence numbers and sets the number of the most recent
+     * messages kept in memory, so they may be sent again to a client which
+     * has missed some of them. Each message gets a sequence number, which
+     * is added as the <code>sequence</code> field into a copy of the
+     * message; the message given to {@link #add} or sent by a local client
+     * is not modified. A client asks for the messages
+     * starting with the given sequence number by the control message
+     * <code>{"replay":sequence}</code>, optionally up to the sequence
+     * number given by the <code>to</code> field. The messages are filtered by the
+     * subscriptions of the client and they precede all of the subsequent
+     * live messages. If the messages are neither in the memory nor in the
+     * journal, the client gets the control message
+     * <code>{"lost":[from,to]}</code> instead.
+     *
+     * <p>Each client gets the control message <code>{"sync":sequence}</code>
+     * with the sequence number of the last message sent before it was
+     * connected, after the snapshot if any. Messages which are discarded
+     * from the outbox of a client, see {@link #setOutbox}, are not sent
+     * again; the client gets the control message
+     * <code>{"skipped":[from,to]}</code> instead, before the next message.
+     *
+     * <p>Sequence numbers are disabled by default, unless the journal is
+     * enabled; {@link RetransmitRing#CAPACITY} is a reasonable capacity. In
+     * the pass through mode, the number is inserted into the text of each
+     * frame, which is not parsed. It must be set before the dispatcher is
+     * started.
+     *
+     * @param capacity
+     *            number of kept messages; zero disables the sequence
+     *            numbers unless the journal is enabled, which is the
+     *            default
+     *
+     * @return this object
+     */
+    public Dispatcher setRetransmitRing(int capacity) {
+        this.ring = capacity > 0 ? new RetransmitRing(capacity) : null;
+        return this;
+    }
+
+    private boolean isSequencing() {
+        return ring != null || journal != null;
+    }
+
+    /** Directory of the journal or null if it is not enabled. */
+    private File journalDirectory;
+    private long journalMaxSize;
+    private long journalMaxAge;
+
+    /**
+     * Opened journal, the messages are appended by the broadcast thread,
+     * the replays read it by the journal timer.
+     */
+    private Journal journal;
+
+    /**
+     * Reads the journal for the replays and deletes its old segments, null
+     * if not running.
+     */
+    private Timer journalTimer;
+
+    /** Period of checking the age of the journal in milliseconds. */
+    static final long JOURNAL_EXPIRE_PERIOD = 1000;
+
+    /** Maximal number of messages of a replay read at once. */
+    static final int REPLAY_CHUNK = 1024;
+
+    /**
+     * Delay of the next chunk of a replay in milliseconds, if the outbox of
+     * the client is full.
+     */
+    static final long REPLAY_DELAY = 10;
+
+    /**
+     * Enables the journal. Each message is written into a memory mapped
+     * file in the given directory together with its sequence number, see
+     * {@link #setRetransmitRing}. A client which reconnects, also after a
+     * restart of the dispatcher, may ask for all of the journaled messages
+     * starting with the given sequence number by the control message
+     * <code>{"replay":sequence}</code>.
+     *
+     * <p>Messages are forced to the disk in groups, before they are sent
+     * to the clients. The journal consists of segments of a fixed size;
+     * the oldest segments are deleted to keep the size and the age of the
+     * journal within the given limits. It must be set before the
+     * dispatcher is started.
+     *
+     * @param directory
+     *            directory of the journal files
+     *
+     * @param maxSize
+     *            maximal size of the journal in bytes, zero means no limit
+     *
+     * @param maxAge
+     *            maximal age of the journaled messages, zero means no limit
+     *
+     * @param unit
+     *            unit of the max age argument
+     *
+     * @return this object
+     */
+    public Dispatcher setJournal(File directory, long maxSize, long maxAge,
+            TimeUnit unit) {
+        this.journalDirectory = directory;
+        this.journalMaxSize = maxSize;
+        this.journalMaxAge = unit.toMillis(maxAge);
+        return this;
+    }
+
+    /** Number of fan out threads, zero means the broadcast thread. */
+    private int fanOutThreads;
+
+    /** Shards of the clients, created when the dispatcher starts. */
+    private Shard[] shards;
+
+    /** Shard of each client, accessed by the broadcast thread only. */
+    private final Map<Endpoint, Shard> shardOf = new HashMap<>();
+
+    /** Shard of the next client. */
+    private int nextShard;
+
+    /** True if some client has subscribed a pattern. */
+    private boolean filtering;
+
+    /**
+     * Distributes the clients among the given number of fan out threads.
+     * Each thread hands the messages over to its own part of the clients,
+     * see {@link Shard}, so the broadcast is not limited by one core. By
+     * default, the broadcast thread hands the messages over to all of the
+     * clients itself. It must be set before the dispatcher is started.
+     *
+     * @param threads
+     *            number of fan out threads
+     *
+     * @return this object
+     */
+    public Dispatcher setFanOutThreads(int threads) {
+        this.fanOutThreads = Math.max(0, threads);
+        return this;
+    }
+
+    /** Ring file for the readers on this host, or null. */
+    private File sharedMemoryFile;
+    private int sharedMemoryCapacity;
+
+    /**
+     * Writes all of the messages also into a ring buffer in a memory mapped
+     * file, in the JSON format. Processes on the same host read them by
+     * {@link SharedMemoryClient}, without any system call. The ring is
+     * written like the outbox of one more client, which never waits for
+     * its readers. The file should be on a memory file system, like
+     * <code>/dev/shm</code>; it is created when the dispatcher starts. It
+     * must be set before the dispatcher is started.
+     *
+     * @param file
+     *            the ring file, an existing file is replaced
+     *
+     * @param capacity
+     *            size of the ring in bytes, a power of two; a message may
+     *            take at most half of it
+     *
+     * @return this object
+     */
+    public Dispatcher setSharedMemory(File file, int capacity) {
+        this.sharedMemoryFile = file;
+        this.sharedMemoryCapacity = capacity;
+        return this;
+    }
+
+    /** Multicast group of the messages, or null. */
+    private InetSocketAddress multicastGroup;
+    private NetworkInterface multicastInterface;
+
+    /**
+     * Sends all of the messages also as UDP datagrams to the given multicast
+     * group, one JSON message with its sequence number per datagram, so the
+     * cost of the broadcast doesn't depend on the number of clients on the
+     * local network. A client asks for it by the control message
+     * <code>{"multicast":true}</code>, see {@link Client#setMulticast};
+     * the messages are not sent through its connection anymore, except for
+     * the snapshot, the sync and the replayed messages. The client requests
+     * the missing datagrams through its connection, so the sequence numbers,
+     * see {@link #setRetransmitRing}, are required. Subscriptions of such a
+     * client are ignored. It must be set before the dispatcher is started.
+     *
+     * @param group
+     *            address and port of the multicast group
+     *
+     * @param networkInterface
+     *            the interface the datagrams are sent through; null selects
+     *            the default one
+     *
+     * @return this object
+     */
+    public Dispatcher setMulticast(InetSocketAddress group,
+            NetworkInterface networkInterface) {
+        this.multicastGroup = group;
+        this.multicastInterface = networkInterface;
+        return this;
+    }
+
+    /** Identifier of this dispatcher among its peers, or null. */
+    private String nodeId;
+
+    /** Peers this dispatcher connects to. */
+    private final List<InetSocketAddress> peerAddresses = new ArrayList<>();
+
+    /**
+     * Sets the identifier of this dispatcher, which must be unique among
+     * the connected dispatchers. It allows the other dispatchers to connect
+     * to this one as peers, see {@link #addPeer}. It must be set before the
+     * dispatcher is started.
+     *
+     * @param nodeId
+     *            identifier of the dispatcher
+     *
+     * @return this object
+     */
+    public Dispatcher setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+        return this;
+    }
+
+    /**
+     * Connects this dispatcher to another one as its peer. Clients may
+     * connect to any of the peers; each message published by a client is
+     * forwarded to the peers which have some client interested in it, and
+     * the peers send it to their own clients, but not to the other peers.
+     * So each pair of dispatchers must be connected, by either of them;
+     * the connection is used in both directions.
+     *
+     * <p>Peers tell each other the topic patterns subscribed by their
+     * clients, see {@link Interest}, with the control messages
+     * <code>{"peer":"a","interest":["plant1.*"]}</code>, sent on each
+     * connection, and <code>{"interest":[...]}</code>, sent on each change.
+     * The greeting is recognized only as the first message of a
+     * connection and the interest only from a peer, and neither of them
+     * has any other field, so the clients may publish messages with such
+     * fields.
+     *
+     * <p>A copy of each message gets the identifier of the dispatcher which
+     * has received it from the client and a number, see {@link #ORIGIN};
+     * duplicate messages from the peers are discarded, see
+     * {@link OriginFilter}. A client may publish a received message again,
+     * it gets a new origin. The numbers start from the current time, so
+     * that they grow after a restart. Sequence numbers, the last value
+     * cache and the journal are local to each dispatcher.
+     *
+     * <p>The link connects again if the connection fails, but the messages
+     * published meanwhile are not forwarded, except for the last value
+     * cache. If the identifier is not set, see {@link #setNodeId}, a
+     * random one is used. It must be called before the dispatcher is
+     * started.
+     *
+     * @param host
+     *            host name of the peer
+     *
+     * @param port
+     *            port number of the peer
+     *
+     * @return this object
+     */
+    public Dispatcher addPeer(String host, int port) {
+        peerAddresses.add(InetSocketAddress.createUnresolved(host, port));
+        return this;
     }
+
+    /** Connected peers, accessed by the broadcast thread. */
+    private final Set<Endpoint> peers = new HashSet<>();
+
+    /**
+     * Connections of the peers, the links to them included; the messages
+     * received from them are forwarded. Accessed by the threads which
+     * receive the messages.
+     */
+    private final Set<Endpoint> peerConnections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Remote clients which have not sent any message yet; the first one
+     * may be the greeting of a peer.
+     */
+    private final Set<Endpoint> newcomers = ConcurrentHashMap.newKeySet();
+
+    /** Topics of the local clients, accessed by the broadcast thread. */
+    private final Interest interest = new Interest();
+
+    /** The interest which was told to the peers. */
+    private Set<String> advertised = Collections.emptySet();
+
+    /** The greeting of the peers with the current interest. */
+    private volatile JSONObject hello;
+
+    /** Discards the duplicate messages from the peers. */
+    private OriginFilter origins;
+
+    /** Number of the last message of the local clients. */
+    private long originSequence;
+
+    private Outbox newOutbox() {
+        if (!isSequencing()) {
+            return new Outbox(outboxCapacity, overflowPolicy, Packet::keyOf,
+                    Packet::release);
+        }
+        return new Outbox(outboxCapacity, overflowPolicy, Packet::keyOf,
+                Packet::release, Packet::sequenceOf,
+                (from, to) -> new Packet(new JSONObject().put(SKIPPED,
+                        new JSONArray().put(from).put(to)), null));
+    }
+
+    private final Metrics metrics;
+
+    /** Register the metrics as an MBean. */
+    private boolean jmx;
+
+    /** Period of logging the metrics in milliseconds, zero to disable. */
+    private long metricsPeriod;
+
+    /** Logs the metrics, null if not running. */
+    private Timer metricsTimer;
+
+    /**
+     * Returns the metrics of this dispatcher. They are updated all the
+     * time, from the creation of the dispatcher.
+     */
+    public DispatcherMetricsMXBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Configures publishing of the metrics. It must be set before the
+     * dispatcher is started.
+     *
+     * @param jmx
+     *            if true, the metrics are registered with the platform
+     *            MBean server under the name
+     *            <code>cz.lidinsky.tools.dispatch:type=Dispatcher,port=</code>
+     *            followed by the port number
+     *
+     * @param period
+     *            period of logging the metrics at the info level; zero
+     *            means never
+     *
+     * @param unit
+     *            unit of the period
+     *
+     * @return this object
+     */
+    public Dispatcher setMetrics(boolean jmx, long period, TimeUnit unit) {
+        this.jmx = jmx;
+        this.metricsPeriod = unit.toMillis(period);
+        return this;
+    }
+
+    private ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName(
+                "cz.lidinsky.tools.dispatch:type=Dispatcher,port=" + port);
+    }
+
+    /**
+     * Returns the number of messages waiting in the outbox of each client.
+     */
+    private synchronized Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> result = new HashMap<>();
+        clients.stream().forEach(c -> result.put(c.getName(), c.getQueued()));
+        return result;
+    }
+
+    /**
+     * Returns the number of discarded messages for each connected client.
+     *
+     * @return client name, number of messages lost because the outbox of
+     *            the client was full
+     */
+    public synchronized Map<String, Long> getDroppedMessages() {
+        Map<String, Long> result = new HashMap<>();
+        clients.stream().forEach(c -> result.put(c.getName(), c.getDropped()));
+        return result;
+    }
+
+    /**
+     * Sends the given message to all of the clients, like a message
+     * received from a client.
+     *
+     * @param object
+     *            a JSON object, which must not be modified afterwards, or
+     *            a {@link Signal}, whose reference is handed over
+     */
     public void add(Object object) {
         if (object != null) {
             buffer.queue(object);
         }
     }
 
-    private synchronized void addClient(Client client) {
-      clients.add(client);
-      logger.log(Level.INFO, "New client added; number of clients: {0}", Integer.toString(clients.size()));
+    private void addClient(Endpoint client) {
+      int count;
+      synchronized (this) {
+          clients.add(client);
+          count = clients.size();
+      }
+      if (client instanceof Client || client instanceof ChannelClient) {
+          newcomers.add(client);
+      }
+      logger.log(Level.INFO, "New client added; number of clients: {0}", Integer.toString(count));
+      // ordered with the messages by the broadcast thread
+      buffer.queue((Runnable)() -> join(client));
+    }
+
+    /**
+     * Assigns the client to a shard; it gets the snapshot and then all of
+     * the subsequent messages. Called by the broadcast thread.
+     */
+    private void join(Endpoint client) {
+      Shard shard = shards[nextShard];
+      nextShard = (nextShard + 1) % shards.length;
+      shardOf.put(client, shard);
+      if (client instanceof PeerEndpoint) {
+          // this dispatcher has connected to the peer, the greeting is
+          // ordered with the changes of the interest
+          peers.add(client);
+          shard.peer(client);
+          shard.send(client, new Packet(hello, null), false);
+      }
+      shard.join(client, snapshot());
+      if (nodeId != null && !(client instanceof PeerEndpoint)) {
+          interest.add(client);
+          advertise();
+      }
+    }
+
+    /**
+     * Returns all of the cached messages followed by the sync control
+     * message. The caller gets the references.
+     */
+    private List<Packet> snapshot() {
+      List<Packet> result = new ArrayList<>();
+      if (cache != null) {
+          cache.forEach(packet -> {
+              packet.retain();
+              result.add(resent(packet));
+          });
+      }
+      if (isSequencing()) {
+          result.add(new Packet(new JSONObject().put(SYNC, lastSequence), null));
+      }
+      return result;
+    }
+
+    /**
+     * Called when the wire format of the client is known.
+     */
+    private void selected(Endpoint client, WireEncoder encoder,
+            WireFormat format) {
+        encoder.select(format);
+        if (format.hasPreface()) {
+            // the client ignores everything sent before the preface echo
+            buffer.queue((Runnable)() -> {
+                Shard shard = shardOf.get(client);
+                if (shard != null) {
+                    snapshot().forEach(packet -> shard.send(client, packet, false));
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the given client object from the internal collection.
+     * @param client
+     */
+    private void remove(Endpoint client) {
+      int count;
+      synchronized (this) {
+          if (!clients.remove(client)) {
+              return;
+          }
+          count = clients.size();
+      }
+      newcomers.remove(client);
+      peerConnections.remove(client);
+      logger.log(Level.INFO, "Client removed; number of clients: {0}", Integer.toString(count));
+      if (closed) {
+          // the broadcast thread doesn't drain the buffer anymore
+          return;
+      }
+      buffer.queue((Runnable)() -> {
+          Shard shard = shardOf.remove(client);
+          if (shard != null) {
+              shard.leave(client);
+          }
+          if (nodeId != null) {
+              peers.remove(client);
+              interest.remove(client);
+              advertise();
+          }
+      });
+    }
+
+    /**
+     * Sends the given packet to all of the connected clients which are
+     * interested in its topic. Called by the broadcast thread.
+     *
+     * @param packet
+     *            an encoded message
+     */
+    private void send(Packet packet) {
+      if (packet.getSequence() > 0) {
+          lastSequence = packet.getSequence();
+      }
+      if (cache != null) {
+          cache.put(packet);
+      }
+      for (Shard shard : shards) {
+          packet.retain();
+          shard.publish(packet);
+      }
+    }
+
+    /**
+     * Returns true if the key of each message is needed.
+     */
+    private boolean isInspecting() {
+        return overflowPolicy == OverflowPolicy.COALESCE
+                || overflowPolicy == OverflowPolicy.CONFLATE || cache != null
+                || filtering;
+    }
+
+    /**
+     * Processes a message received from the given client. Subscription
+     * control messages are applied to the routing table, all of the other
+     * messages are queued to be sent.
+     *
+     * @param client
+     *            the client which has sent the message
+     *
+     * @param object
+     *            received message
+     */
+    private void received(Endpoint client, Object object) {
+        metrics.messagesIn.increment();
+        boolean first = !newcomers.isEmpty() && newcomers.remove(client);
+        boolean forwarded = nodeId != null && peerConnections.contains(client);
+        if (object instanceof Packet && !((Packet)object).isParsed()) {
+            // the raw frame is not a control message
+            buffer.queue(((Packet)object).setForwarded(forwarded));
+            return;
+        }
+        Object content = object instanceof Packet
+                ? ((Packet)object).getMessage() : object;
+        if (content instanceof JSONObject) {
+            JSONObject message = (JSONObject)content;
+            // control messages are ordered with the messages by the
+            // broadcast thread
+            if (message.has(Subscriptions.SUBSCRIBE)) {
+                String pattern = message.getString(Subscriptions.SUBSCRIBE);
+                buffer.queue((Runnable)() -> subscribe(client, pattern));
+                return;
+            } else if (message.has(Subscriptions.UNSUBSCRIBE)) {
+                String pattern = message.getString(Subscriptions.UNSUBSCRIBE);
+                buffer.queue((Runnable)() -> unsubscribe(client, pattern));
+                return;
+            } else if (message.has(REPLAY)) {
+                long from = message.getLong(REPLAY);
+                long to = message.optLong(REPLAY_TO, Long.MAX_VALUE);
+                buffer.queue((Runnable)() -> replay(client, from, to));
+                return;
+            } else if (message.has(MULTICAST)) {
+                boolean enabled = message.getBoolean(MULTICAST);
+                buffer.queue((Runnable)() -> multicast(client, enabled));
+                return;
+            } else if ((first || forwarded) && isPeerControl(message, forwarded)) {
+                peerConnections.add(client);
+                buffer.queue((Runnable)() -> peer(client, message));
+                return;
+            } else if (!(object instanceof Packet)) {
+                // the packet remembers when the message was received
+                buffer.queue(new Packet(message, keyExtractor.apply(message))
+                        .setForwarded(forwarded));
+                return;
+            }
+        }
+        if (object instanceof Packet) {
+            buffer.queue(((Packet)object).setForwarded(forwarded));
+        } else if (forwarded) {
+            buffer.queue(new Packet(object, keyExtractor.apply(object))
+                    .setForwarded(true));
+        } else {
+            buffer.queue(object);
+        }
+    }
+
+    /**
+     * Returns true if the message is the greeting of a peer, or its
+     * interest if it comes from a peer; they consist of just these fields.
+     */
+    private static boolean isPeerControl(JSONObject message, boolean peer) {
+        return message.optJSONArray(INTEREST) != null
+                && (peer && message.length() == 1 || message.length() == 2
+                        && message.opt(PEER) instanceof String);
+    }
+
+    private void subscribe(Endpoint client, String pattern) {
+        Shard shard = shardOf.get(client);
+        if (shard != null) {
+            filtering = true;
+            shard.subscribe(client, pattern);
+            logger.log(Level.FINE, "Client {0} subscribed {1}",
+                    new Object[] {client.getName(), pattern});
+            if (nodeId != null) {
+                interest.subscribe(client, pattern);
+                advertise();
+            }
+        }
+    }
+
+    private void unsubscribe(Endpoint client, String pattern) {
+        Shard shard = shardOf.get(client);
+        if (shard != null) {
+            shard.unsubscribe(client, pattern);
+            logger.log(Level.FINE, "Client {0} unsubscribed {1}",
+                    new Object[] {client.getName(), pattern});
+            if (nodeId != null) {
+                interest.unsubscribe(client, pattern);
+                advertise();
+            }
+        }
+    }
+
+    private void multicast(Endpoint client, boolean enabled) {
+        Shard shard = shardOf.get(client);
+        if (shard != null) {
+            shard.multicast(client, enabled);
+            logger.log(Level.FINE, "Client {0} multicast {1}",
+                    new Object[] {client.getName(), enabled});
+        }
+    }
+
+    /**
+     * Processes the greeting or the interest of a peer dispatcher, see
+     * {@link #addPeer}. The greeting of a peer which has connected to this
+     * dispatcher is answered by the own one.
+     */
+    private void peer(Endpoint client, JSONObject message) {
+        Shard shard = shardOf.get(client);
+        if (shard == null) {
+            return;
+        } else if (nodeId == null) {
+            logger.log(Level.WARNING, "Client {0} is a dispatcher, but the node id is not set",
+                    client.getName());
+            return;
+        }
+        if (message.has(PEER) && peers.add(client)) {
+            logger.log(Level.INFO, "Peer {0} connected as {1}",
+                    new Object[] {message.get(PEER), client.getName()});
+            shard.peer(client);
+            shard.send(client, new Packet(hello, null), false);
+            interest.remove(client);
+            advertise();
+        }
+        if (message.has(INTEREST) && peers.contains(client)) {
+            JSONArray array = message.getJSONArray(INTEREST);
+            Set<String> patterns = new HashSet<>();
+            for (int i = 0; i < array.length(); i++) {
+                patterns.add(array.getString(i));
+            }
+            filtering = true;
+            shard.interest(client, patterns);
+        }
+    }
+
+    /**
+     * Tells the peers the interest of the local clients if it has changed.
+     */
+    private void advertise() {
+        Set<String> patterns = interest.getPatterns();
+        if (patterns.equals(advertised)) {
+            return;
+        }
+        advertised = patterns;
+        JSONArray array = new JSONArray(patterns);
+        hello = new JSONObject().put(PEER, nodeId).put(INTEREST, array);
+        JSONObject message = new JSONObject().put(INTEREST, array);
+        for (Endpoint peer : peers) {
+            shardOf.get(peer).send(peer, new Packet(message, null), false);
+        }
+    }
+
+    /**
+     * Returns true if the message is a control message which the dispatcher
+     * sends to the clients about the sequence numbers.
+     */
+    private static boolean isControl(JSONObject message) {
+        return message.has(SYNC) || message.has(LOST) || message.has(SKIPPED);
+    }
+
+    private volatile boolean closed = false;
+
+    /** Queued to wake up a loop which waits for a message when closing. */
+    private static final Object WAKE_UP = new Object();
+
+    /**
+     * A loop which takes messages from the buffer and sends them to the
+     * clients, in batches of at most max batch messages.
+     */
+    private void run() {
+        List<Packet> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                Object object = buffer.blockingDequeue();
+                do {
+                    if (object instanceof Runnable) {
+                        // a control command
+                        flush(batch);
+                        ((Runnable)object).run();
+                    } else {
+                        Packet packet = toPacket(object);
+                        if (packet != null) {
+                            batch.add(packet);
+                        }
+                    }
+                } while (batch.size() < maxBatch
+                        && (object = buffer.dequeue()) != null);
+                flush(batch);
+            }
+        } finally {
+            for (Shard shard : shards) {
+                shard.close();
+            }
+            if (journal != null) {
+                journalTimer.cancel();
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a packet for the given message taken from the buffer, or null
+     * if there is nothing to send.
+     */
+    private Packet toPacket(Object object) {
+        if (object == WAKE_UP) {
+            return null;
+        } else if (object instanceof Packet) {
+            // received message, possibly a frame forwarded as it is
+            Packet packet = (Packet)object;
+            if (packet.getKey() == null && (packet.isParsed() || isInspecting())) {
+                return packet.withKey(keyExtractor.apply(packet.getMessage()));
+            }
+            return packet;
+        } else if (!(object instanceof JSONObject || object instanceof Signal)) {
+            logger.warning("Unsupported object!");
+            return null;
+        }
+        // the packet takes over the reference to a signal
+        return new Packet(object, keyExtractor.apply(object));
+    }
+
+    /**
+     * Numbers, journals and sends all of the packets of the batch.
+     */
+    private void flush(List<Packet> batch) {
+        if (nodeId != null && !batch.isEmpty()) {
+            federate(batch);
+        }
+        if (isSequencing() && !batch.isEmpty()) {
+            sequence(batch);
+        }
+        for (Packet packet : batch) {
+            trace.message(Trace.Event.DISPATCHED, null, packet);
+            send(packet);
+            packet.release();
+        }
+        batch.clear();
+    }
+
+    /**
+     * Adds the origin into a copy of each message of the local clients and
+     * discards the duplicate messages from the peers, see {@link #addPeer}.
+     */
+    private void federate(List<Packet> batch) {
+        int kept = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Packet packet = federate(batch.get(i));
+            if (packet != null) {
+                batch.set(kept++, packet);
+            }
+        }
+        batch.subList(kept, batch.size()).clear();
+    }
+
+    /**
+     * Returns the packet to send instead of the given one, or null if it
+     * is a duplicate.
+     */
+    private Packet federate(Packet packet) {
+        Object message = packet.getMessage();
+        if (!packet.isForwarded()) {
+            // a message of a local client, maybe published again
+            if (message instanceof Signal) {
+                // the packet of a signal is not encoded yet
+                ((Signal)message).setOrigin(nodeId, ++originSequence);
+            } else if (message instanceof JSONObject) {
+                Packet stamped = new Packet(Tools.copyOf((JSONObject)message)
+                        .put(ORIGIN, nodeId).put(ORIGIN_SEQUENCE, ++originSequence),
+                        packet.getKey()).setReceived(packet.getReceived());
+                packet.release();
+                return stamped;
+            }
+            return packet;
+        }
+        String origin;
+        long sequence;
+        if (message instanceof Signal) {
+            origin = ((Signal)message).getOrigin();
+            sequence = ((Signal)message).getOriginSequence();
+        } else if (message instanceof JSONObject) {
+            origin = ((JSONObject)message).optString(ORIGIN, null);
+            sequence = ((JSONObject)message).optLong(ORIGIN_SEQUENCE);
+        } else {
+            return packet;
+        }
+        if (origin != null && !origins.accept(origin, sequence)) {
+            packet.release();
+            return null;
+        } else if (!isSequencing() && message instanceof Signal) {
+            ((Signal)message).setSequence(0);
+        } else if (!isSequencing() && ((JSONObject)message).has(SEQUENCE)) {
+            // the number given by the peer means nothing to the clients
+            ((JSONObject)message).remove(SEQUENCE);
+            Packet unnumbered = new Packet(message, packet.getKey())
+                    .setReceived(packet.getReceived());
+            packet.release();
+            packet = unnumbered;
+        }
+        return packet.setForwarded(true);
+    }
+
+    /**
+     * Adds the sequence number into a copy of each message of the batch,
+     * appends the messages to the journal and forces them to the disk. Each
+     * packet is replaced by a packet of the numbered message.
+     */
+    private void sequence(List<Packet> batch) {
+        Codec json = codecs[WireFormat.JSON.ordinal()];
+        for (int i = 0; i < batch.size(); i++) {
+            Packet packet = batch.get(i);
+            long sequence = journal != null
+                    ? journal.getNextSequence() : nextSequence;
+            Packet numbered = packet.isParsed() ? null : number(packet, sequence);
+            if (numbered == null) {
+                Object message = packet.getMessage();
+                if (message instanceof Signal) {
+                    sequence(packet, (Signal)message, json);
+                    continue;
+                } else if (!(message instanceof JSONObject)) {
+                    continue;
+                }
+                numbered = new Packet(Tools.copyOf((JSONObject)message)
+                        .put(SEQUENCE, sequence), packet.getKey());
+            }
+            numbered.setSequence(sequence).setReceived(packet.getReceived())
+                    .setForwarded(packet.isForwarded());
+            if (journal != null) {
+                try {
+                    journal.append(numbered.getBytes(json));
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Cannot journal a message!", e);
+                    numbered.release();
+                    continue;
+                }
+            }
+            nextSequence = sequence + 1;
+            if (ring != null) {
+                ring.put(numbered);
+            }
+            batch.set(i, numbered);
+            packet.release();
+        }
+        if (journal != null) {
+            journal.commit();
+        }
+    }
+
+    /**
+     * Returns a packet of a raw frame with the sequence number inserted into
+     * its text, which is not parsed, see {@link FramedJsonCodec#number}; or
+     * null if the frame must be parsed.
+     */
+    private Packet number(Packet packet, long sequence) {
+        ByteBuffer frame = packet.getBuffer(codecs[WireFormat.FRAMED_JSON.ordinal()]);
+        byte[] text = frame != null ? FramedJsonCodec.number(frame, sequence) : null;
+        if (text == null) {
+            return null;
+        }
+        // the JSON format is the text itself
+        return FramedJsonCodec.toPacket(pool, text, text.length)
+                .withKey(packet.getKey())
+                .setBytes(codecs[WireFormat.JSON.ordinal()], text);
+    }
+
+    /**
+     * Numbers and journals the signal of the packet. The packet of a signal
+     * was created by the broadcast thread, so it is not encoded yet and it
+     * is kept.
+     */
+    private void sequence(Packet packet, Signal signal, Codec json) {
+        long sequence = journal != null
+                ? journal.getNextSequence() : nextSequence;
+        signal.setSequence(sequence);
+        if (journal != null) {
+            byte[] bytes = json.encode(signal);
+            try {
+                journal.append(bytes);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Cannot journal a message!", e);
+                signal.setSequence(0);
+                return;
+            }
+            packet.setBytes(json, bytes);
+        }
+        nextSequence = sequence + 1;
+        packet.setSequence(sequence);
+        if (ring != null) {
+            ring.put(packet);
+        }
+    }
+
+    /**
+     * Sends the messages of the requested range of sequence numbers to the
+     * client, from the retransmit ring if possible, from the journal
+     * otherwise. Messages which are not available are reported by the lost
+     * control message.
+     */
+    private void replay(Endpoint client, long from, long to) {
+        Shard shard = shardOf.get(client);
+        if (shard == null) {
+            return;
+        }
+        from = Math.max(from, 1);
+        if (ring != null && ring.forEach(from, to, packet -> resend(shard, client, packet))) {
+            return;
+        }
+        long first = journal != null ? journal.getFirstSequence()
+                : ring != null ? ring.getFirst() : nextSequence;
+        if (from < first) {
+            shard.send(client, new Packet(new JSONObject().put(LOST,
+                    new JSONArray().put(from).put(Math.min(first - 1, to))), null), false);
+            from = first;
+        }
+        if (from > to) {
+            return;
+        }
+        if (journal == null) {
+            if (ring != null) {
+                ring.forEach(from, to, packet -> resend(shard, client, packet));
+            }
+            return;
+        }
+        new JournalReplay(client, shard, from, to).schedule(0);
+    }
+
+    /**
+     * Sends a range of the journaled messages to a client. The journal is
+     * read by the journal timer thread, so that the broadcast thread doesn't
+     * wait, in chunks which fit into the free space of the outbox of the
+     * client, so that the overflow policy doesn't discard them. The next
+     * chunk is read once the shard has handed the previous one over.
+     */
+    private class JournalReplay {
+
+        private final Endpoint client;
+        private final Shard shard;
+        private final long to;
+
+        /** Sequence number of the next message to read. */
+        private long next;
+
+        JournalReplay(Endpoint client, Shard shard, long from, long to) {
+            this.client = client;
+            this.shard = shard;
+            this.next = from;
+            this.to = to;
+        }
+
+        /**
+         * Reads the next chunk after the given delay in milliseconds.
+         */
+        void schedule(long delay) {
+            try {
+                journalTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        read();
+                    }
+                }, delay);
+            } catch (IllegalStateException e) {
+                // the dispatcher was closed
+            }
+        }
+
+        /**
+         * Reads the next chunk and queues it to the broadcast thread, called
+         * by the journal timer thread.
+         */
+        private void read() {
+            long free = Math.min(REPLAY_CHUNK,
+                    (long)outboxCapacity - client.getQueued());
+            if (free <= 0) {
+                schedule(REPLAY_DELAY);
+                return;
+            }
+            List<Packet> chunk = new ArrayList<>();
+            Codec json = codecs[WireFormat.JSON.ordinal()];
+            try {
+                next = journal.read(next, Math.min(to, next + free - 1),
+                        (sequence, bytes) -> {
+                    Object message = new JSONTokener(
+                            new String(bytes, StandardCharsets.UTF_8)).nextValue();
+                    chunk.add(new Packet(message, keyExtractor.apply(message))
+                            .setSequence(sequence).setBytes(json, bytes));
+                });
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Cannot read the journal!", e);
+                return;
+            }
+            if (!chunk.isEmpty()) {
+                buffer.queue((Runnable)() -> handOver(chunk));
+            }
+        }
+
+        /**
+         * Hands the chunk over to the shard of the client, called by the
+         * broadcast thread.
+         */
+        private void handOver(List<Packet> chunk) {
+            if (shardOf.get(client) != shard) {
+                // the client has left
+                chunk.forEach(packet -> packet.release());
+                return;
+            }
+            long now = System.nanoTime();
+            for (Packet packet : chunk) {
+                shard.send(client, packet.setReceived(now), true);
+            }
+            if (next <= to) {
+                shard.execute(() -> schedule(0));
+            }
+        }
+
+    }
+
+    /**
+     * Sends the packet to the client if it is interested in it.
+     */
+    private void resend(Shard shard, Endpoint client, Packet packet) {
+        packet.retain();
+        shard.send(client, resent(packet), true);
     }
 
     /**
-     * Removes the given client object from the internal collection.
-     * @param client
+     * Returns a copy of the packet which is sent again, so that its latency
+     * is measured from now.
      */
-    private synchronized void remove(Client client) {
-      clients.remove(client);
-      logger.log(Level.INFO, "Client removed; number of clients: {0}", Integer.toString(clients.size()));
+    private static Packet resent(Packet packet) {
+        return packet.withKey(packet.getKey()).setReceived(System.nanoTime());
     }
 
     /**
-     * Sends the given object to all of the connected clients.
+     * Starts the server thread.
      *
-     * @param object
+     * @throws IOException
+     *             if an event loop cannot be opened
      */
-    private synchronized void send(Object object) {
-      clients.stream().forEach(p -> p.send(object));
+    public void start() throws IOException {
+        if (nodeId == null && !peerAddresses.isEmpty()) {
+            nodeId = Long.toString(
+                    ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+        }
+        if (nodeId != null) {
+            origins = new OriginFilter(nodeId, OriginFilter.WINDOW);
+            originSequence = System.currentTimeMillis() << 16;
+            hello = new JSONObject().put(PEER, nodeId)
+                    .put(INTEREST, new JSONArray());
+        }
+        if (journalDirectory != null) {
+            journal = new Journal(journalDirectory, Journal.SEGMENT_SIZE,
+                    journalMaxSize, journalMaxAge);
+            journalTimer = new Timer("dispatcher-journal", true);
+            if (journalMaxAge > 0) {
+                journalTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            journal.expire();
+                        } catch (IOException e) {
+                            logger.log(Level.SEVERE, "Cannot delete a journal segment!", e);
+                        }
+                    }
+                }, JOURNAL_EXPIRE_PERIOD, JOURNAL_EXPIRE_PERIOD);
+            }
+            nextSequence = journal.getNextSequence();
+            lastSequence = nextSequence - 1;
+            if (ring != null) {
+                ring.reset(nextSequence);
+            }
+        }
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            new Thread(loops[i], "dispatcher-loop-" + i).start();
+        }
+        shards = new Shard[Math.max(1, fanOutThreads)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(fanOutThreads > 0, metrics.fanOut, logger);
+            if (fanOutThreads > 0) {
+                Tools.startThread(shards[i], "dispatcher-fan-out-" + i, virtualThreads);
+            }
+        }
+        if (sharedMemoryFile != null) {
+            addClient(new RingEndpoint(MappedRing.create(
+                    sharedMemoryFile, sharedMemoryCapacity), sharedMemoryFile));
+        }
+        if (multicastGroup != null) {
+            if (!isSequencing()) {
+                throw new CommonException()
+                    .setCode(ExceptionCode.ILLEGAL_STATE)
+                    .set("message", "The multicast requires sequence numbers!");
+            }
+            addClient(new MulticastEndpoint());
+        }
+        Tools.startThread(this::run, "dispatcher", virtualThreads);
+        for (InetSocketAddress address : peerAddresses) {
+            new PeerEndpoint(address).start();
+        }
+        startMetrics();
     }
 
-    private boolean closed = false;
+    /**
+     * Registers the MBean and starts logging of the metrics, if configured.
+     */
+    private void startMetrics() {
+        if (jmx) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(metrics, DispatcherMetricsMXBean.class, true),
+                        getObjectName());
+            } catch (JMException e) {
+                logger.log(Level.WARNING, "Cannot register the metrics", e);
+            }
+        }
+        if (metricsPeriod > 0) {
+            metricsTimer = new Timer("dispatcher-metrics", true);
+            metricsTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    logger.log(Level.INFO, "Metrics:\n{0}", metrics.dump());
+                }
+            }, metricsPeriod, metricsPeriod);
+        }
+    }
 
     /**
-     * A loop
+     * Unregisters the MBean and stops logging of the metrics.
      */
-    private void run() {
-        while (!closed) {
-            Object object = buffer.blockingDequeue();
-            logger.log(Level.FINEST, "Going to send a message.\n{0}", object.toString());
-            send(object);
+    private synchronized void stopMetrics() {
+        if (metricsTimer != null) {
+            metricsTimer.cancel();
+            metricsTimer = null;
+        }
+        if (jmx) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (server.isRegistered(getObjectName())) {
+                    server.unregisterMBean(getObjectName());
+                }
+            } catch (JMException e) {
+                logger.log(Level.FINE, null, e);
+            }
         }
     }
 
     /**
-     * Starts the server thread.
+     * Starts the thread which accepts incoming connections.
      */
-    public void start() {
-        new Thread(this::run).start();
+    public void listen() {
+        Tools.startThread(this::server, "dispatcher-server", virtualThreads);
     }
 
-    private class Client {
+    /** Number of local clients connected so far, it gives their names. */
+    private final AtomicInteger localClients = new AtomicInteger();
 
-        private final OutputStreamWriter streamWriter;
-        private final JSONTokener reader;
-        private final JSONWriter writer;
-        private final Queue<Object> buffer;
-        private boolean closed;
+    /**
+     * Connects a client which runs in the same JVM as the dispatcher. It is
+     * served like the remote clients, but its messages are passed by
+     * reference, without encoding, TCP and decoding. The dispatcher must be
+     * started.
+     *
+     * @return a new connected client
+     */
+    public LocalClient connect() {
+        LocalClient client = new LocalClient(
+                "local-" + localClients.incrementAndGet());
+        addClient(client.endpoint);
+        client.start();
+        return client;
+    }
+
+    private class Client implements Endpoint {
+
+        private final OutputStream output;
+        private final InputStream input;
+        private final WireEncoder encoder;
+        private final Outbox buffer;
+        private final String name;
+        private volatile boolean closed;
 
       public Client(Socket socket) throws IOException {
-        reader = new JSONTokener(socket.getInputStream());
-        streamWriter = new OutputStreamWriter(socket.getOutputStream());
-        writer = new JSONWriter(streamWriter);
-        buffer = new Queue<>();
+        input = socket.getInputStream();
+        output = socket.getOutputStream();
+        encoder = new WireEncoder(codecs);
+        buffer = newOutbox();
+        name = String.valueOf(socket.getRemoteSocketAddress());
         closed = false;
-        new Thread(this::inputLoop).start();
-        new Thread(this::outputLoop).start();
       }
 
+      /**
+       * Starts the input and output loops; the client must be already
+       * added, so that its control messages follow the join.
+       */
+      void start() {
+        Tools.startThread(this::inputLoop, "dispatcher-input", virtualThreads);
+        Tools.startThread(this::outputLoop, "dispatcher-output", virtualThreads);
+      }
+
+      @Override
       public void send(Object object) {
-        buffer.queue(object);
+        if (!buffer.offer(object)) {
+          logger.log(Level.WARNING, "Outbox overflow, disconnecting client {0}", name);
+          // the output loop closes the client
+          closed = true;
+          buffer.clear();
+          buffer.queue(WAKE_UP);
+        }
+      }
+
+      @Override
+      public String getName() {
+        return name;
+      }
+
+      @Override
+      public long getDropped() {
+        return buffer.getDropped();
+      }
+
+      @Override
+      public int getQueued() {
+        return buffer.size();
       }
 
       private void inputLoop() {
         try {
+          WireDecoder decoder = new WireDecoder(
+                  codecs, format -> selected(this, encoder, format));
+          byte[] array = new byte[8192];
+          ByteBuffer bytes = ByteBuffer.wrap(array);
+          bytes.limit(0);
           while (!closed) {
-              logger.finest("Going to wait for a message...");
-            Object object = reader.nextValue();
-            logger.log(Level.FINEST, "Message received!\n{0}", object.toString());
-            Dispatcher.this.buffer.queue(object);
+            Object object;
+            while ((object = decoder.decode(bytes)) != null) {
+              trace.message(Trace.Event.RECEIVED, name, object);
+              received(this, object);
+            }
+            int count = input.read(array);
+            if (count < 0) {
+              break;
+            }
+            metrics.bytesIn.add(count);
+            bytes.position(0);
+            bytes.limit(count);
           }
         } catch (Exception e) {
             logger.log(Level.SEVERE, null, e);
@@ -146,14 +1744,20 @@ public class Dispatcher {
 
       private void outputLoop() {
         try {
+          BatchWriter batchWriter = new BatchWriter(output, item -> {
+              try {
+                  byte[] bytes = encoder.apply(item);
+                  if (bytes != null) {
+                      metrics.bytesOut.add(bytes.length);
+                      metrics.sent(item);
+                  }
+                  return bytes;
+              } finally {
+                  Packet.release(item);
+              }
+          }, maxBatch, maxLatency);
           while (!closed) {
-            Object object = this.buffer.blockingDequeue();
-            if (object instanceof JSONObject) {
-                ((JSONObject)object).write(streamWriter);
-                streamWriter.flush();
-            } else {
-                logger.warning("Unsupported object!");
-            }
+            batchWriter.writeBatch(buffer);
           }
         } catch (Exception e) {
             logger.log(Level.SEVERE, null, e);
@@ -166,40 +1770,794 @@ public class Dispatcher {
         }
       }
 
+      @Override
       public void close() throws IOException {
         closed = true;
-        streamWriter.close();
+        buffer.clear();
+        buffer.queue(WAKE_UP);
+        output.close();
         //if (reader != null) reader.close();
-        //if (writer != null) writer.close();
         remove(this);
       }
 
     }
 
     /**
+     * A client which is served by an event loop through a non-blocking
+     * channel. Incoming bytes are decoded in the loop thread.
+     * Outgoing messages wait in the outbox and they are written by the loop
+     * whenever the channel accepts more data.
+     */
+    private class ChannelClient implements Endpoint, EventLoop.Handler {
+
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final ByteBuffer input;
+        private final WireDecoder decoder;
+        private final WireEncoder encoder;
+        private final Outbox output;
+        private final String name;
+
+        /**
+         * Messages which are being written by one gathering write; the
+         * ones between the offset and the length were not written
+         * completely yet.
+         */
+        private final ByteBuffer[] pending;
+
+        /** Packet of each pending buffer, released once it is written. */
+        private final Object[] pendingItems;
+        private int pendingOffset;
+        private int pendingLength;
+
+        /** True if the loop was already asked to write the output. */
+        private final AtomicBoolean writing;
+        private SelectionKey key;
+
+        ChannelClient(SocketChannel channel, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.input = ByteBuffer.allocate(8192);
+            this.encoder = new WireEncoder(codecs);
+            this.decoder = new WireDecoder(
+                    codecs, format -> selected(this, encoder, format));
+            this.output = newOutbox();
+            this.pending = new ByteBuffer[maxBatch + 1];
+            this.pendingItems = new Object[maxBatch + 1];
+            this.name = String.valueOf(channel.getRemoteAddress());
+            this.writing = new AtomicBoolean(true);
+        }
+
+        /**
+         * Registers the channel with the event loop; the client must be
+         * already added, so that its control messages follow the join.
+         */
+        void start() {
+            loop.register(channel, SelectionKey.OP_READ, this, this::registered);
+        }
+
+        private void registered(SelectionKey key) {
+            this.key = key;
+            writing.set(false);
+            if (!output.isEmpty()) {
+                write();
+            }
+        }
+
+        @Override
+        public void send(Object object) {
+            if (!output.offer(object)) {
+                logger.log(Level.WARNING, "Outbox overflow, disconnecting client {0}", name);
+                loop.execute(this::closeQuietly);
+            } else if (writing.compareAndSet(false, true)) {
+                loop.execute(this::write);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getDropped() {
+            return output.getDropped();
+        }
+
+        @Override
+        public int getQueued() {
+            return output.size();
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        }
+
+        private void read() throws IOException {
+            int count = channel.read(input);
+            if (count > 0) {
+                metrics.bytesIn.add(count);
+            }
+            input.flip();
+            Object object;
+            while ((object = decoder.decode(input)) != null) {
+                trace.message(Trace.Event.RECEIVED, name, object);
+                received(this, object);
+            }
+            input.clear();
+            if (count < 0) {
+                close();
+            }
+        }
+
+        /**
+         * Writes as much of the output as the channel accepts. Queued
+         * messages are written in batches by gathering writes. Called from
+         * the loop thread only.
+         */
+        private void write() {
+            try {
+                while (fill()) {
+                    metrics.bytesOut.add(channel.write(
+                            pending, pendingOffset, pendingLength - pendingOffset));
+                    while (pendingOffset < pendingLength
+                            && !pending[pendingOffset].hasRemaining()) {
+                        pending[pendingOffset] = null;
+                        if (pendingItems[pendingOffset] != null) {
+                            metrics.sent(pendingItems[pendingOffset]);
+                        }
+                        Packet.release(pendingItems[pendingOffset]);
+                        pendingItems[pendingOffset++] = null;
+                    }
+                    if (pendingOffset < pendingLength) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                writing.set(false);
+                if (!output.isEmpty() && writing.compareAndSet(false, true)) {
+                    write();
+                }
+            } catch (Exception e) {
+                logger.log(Level.FINE, null, e);
+                closeQuietly();
+            }
+        }
+
+        /**
+         * Moves messages from the outbox into the pending array unless there
+         * are still some pending bytes.
+         *
+         * @return false if there is nothing to write
+         */
+        private boolean fill() {
+            if (pendingOffset < pendingLength) {
+                return true;
+            }
+            pendingOffset = 0;
+            pendingLength = 0;
+            Object object;
+            while (pendingLength < pending.length - 1
+                    && (object = output.dequeue()) != null) {
+                // the buffers are shared with other clients
+                int length = encoder.gather(object, pending, pendingLength);
+                if (length > pendingLength) {
+                    pendingLength = length;
+                    pendingItems[length - 1] = object;
+                } else {
+                    Packet.release(object);
+                }
+            }
+            return pendingLength > 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (key != null) {
+                key.cancel();
+            }
+            output.clear();
+            // the pending array belongs to the loop thread
+            if (loop.isLoopThread()) {
+                releasePending();
+            } else {
+                loop.execute(this::releasePending);
+            }
+            channel.close();
+            remove(this);
+        }
+
+        /**
+         * Releases the packets which were not written completely. Called
+         * from the loop thread only.
+         */
+        private void releasePending() {
+            for (int i = pendingOffset; i < pendingLength; i++) {
+                pending[i] = null;
+                Packet.release(pendingItems[i]);
+                pendingItems[i] = null;
+            }
+            pendingOffset = 0;
+            pendingLength = 0;
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, null, e);
+            }
+        }
+
+    }
+
+    /**
+     * Writes the messages into the shared memory ring, see
+     * {@link #setSharedMemory}. Only the shard of the endpoint calls send,
+     * so the ring has a single writer.
+     */
+    private class RingEndpoint implements Endpoint {
+
+        private final MappedRing mapped;
+        private final String name;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /** Number of messages which were too long for the ring. */
+        private volatile long dropped;
+
+        RingEndpoint(MappedRing mapped, File file) {
+            this.mapped = mapped;
+            this.name = "shm:" + file;
+        }
+
+        @Override
+        public void send(Object object) {
+            try {
+                if (closed.get() || !(object instanceof Packet)) {
+                    return;
+                }
+                Packet packet = (Packet)object;
+                byte[] bytes = packet.getBytes(codecs[WireFormat.JSON.ordinal()]);
+                if (bytes == null) {
+                    return;
+                }
+                if (mapped.write(bytes)) {
+                    metrics.bytesOut.add(bytes.length);
+                    metrics.sent(packet);
+                } else {
+                    dropped++;
+                    logger.log(Level.WARNING, "Message too long for the ring {0}", name);
+                }
+            } finally {
+                Packet.release(object);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getDropped() {
+            return dropped;
+        }
+
+        @Override
+        public int getQueued() {
+            return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    mapped.closeWriter();
+                } finally {
+                    remove(this);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Sends the messages as datagrams to the multicast group, see
+     * {@link #setMulticast}. Only the shard of the endpoint calls send.
+     */
+    private class MulticastEndpoint implements Endpoint {
+
+        private final MulticastSocket socket;
+        private final String name;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /** Sequence number of the last sent message. */
+        private long last;
+
+        /** Number of messages which could not be sent. */
+        private volatile long dropped;
+
+        MulticastEndpoint() throws IOException {
+            this.socket = new MulticastSocket();
+            if (multicastInterface != null) {
+                socket.setNetworkInterface(multicastInterface);
+            }
+            this.name = "multicast:" + multicastGroup;
+        }
+
+        @Override
+        public void send(Object object) {
+            try {
+                if (closed.get() || !(object instanceof Packet)) {
+                    return;
+                }
+                Packet packet = (Packet)object;
+                // the snapshot and the sync are not for the group
+                if (packet.getSequence() <= last) {
+                    return;
+                }
+                last = packet.getSequence();
+                byte[] bytes = packet.getBytes(codecs[WireFormat.JSON.ordinal()]);
+                if (bytes == null) {
+                    return;
+                }
+                if (bytes.length > MAX_DATAGRAM) {
+                    // the clients request it through the connection
+                    dropped++;
+                    logger.log(Level.WARNING, "Message too long for a datagram");
+                    return;
+                }
+                socket.send(new DatagramPacket(bytes, bytes.length, multicastGroup));
+                metrics.bytesOut.add(bytes.length);
+                metrics.sent(packet);
+            } catch (IOException e) {
+                dropped++;
+                logger.log(Level.WARNING, "Cannot send a datagram", e);
+            } finally {
+                Packet.release(object);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getDropped() {
+            return dropped;
+        }
+
+        @Override
+        public int getQueued() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    socket.close();
+                } finally {
+                    remove(this);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * The link to a peer dispatcher, see {@link #addPeer}. It is a client
+     * of the peer, which connects again if the connection fails; the
+     * messages received from the peer are processed like the messages of
+     * the other clients. Only the shard of the endpoint calls send.
+     */
+    private class PeerEndpoint implements Endpoint {
+
+        private final InetSocketAddress address;
+        private final String name;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile cz.lidinsky.tools.dispatch.Client client;
+
+        /** Number of messages which could not be sent. */
+        private volatile long dropped;
+
+        PeerEndpoint(InetSocketAddress address) {
+            this.address = address;
+            this.name = "peer:" + address.getHostString() + ":" + address.getPort();
+        }
+
+        void start() {
+            Tools.startThread(this::connect, "dispatcher-peer", virtualThreads);
+        }
+
+        /**
+         * Waits until the first connection to the peer succeeds; the client
+         * connects again by itself afterwards.
+         */
+        private void connect() {
+            long delay = cz.lidinsky.tools.dispatch.Client.MIN_RECONNECT_DELAY;
+            while (client == null) {
+                try {
+                    client = new cz.lidinsky.tools.dispatch.Client(
+                            address.getHostString(), address.getPort(), WireFormat.BINARY);
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Cannot connect to the peer " + name, e);
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    delay = Math.min(2 * delay,
+                            cz.lidinsky.tools.dispatch.Client.MAX_RECONNECT_DELAY);
+                }
+                if (Dispatcher.this.closed) {
+                    closed.set(true);
+                    if (client != null) {
+                        closeClient();
+                    }
+                    return;
+                }
+            }
+            client.setOutbox(outboxCapacity, overflowPolicy)
+                    .setVirtualThreads(virtualThreads)
+                    .setFiltered();
+            client.setGreeting(() -> hello);
+            client.addConsumer(this::received);
+            peerConnections.add(this);
+            addClient(this);
+            client.start();
+            if (Dispatcher.this.closed) {
+                close();
+            }
+        }
+
+        private void received(Object message) {
+            if (message instanceof Signal) {
+                // the client releases it when the consumers return
+                ((Signal)message).retain();
+            }
+            Dispatcher.this.received(this, message);
+        }
+
+        @Override
+        public void send(Object object) {
+            try {
+                Object message = object instanceof Packet
+                        ? ((Packet)object).getMessage() : null;
+                if (closed.get()) {
+                    return;
+                } else if (message instanceof Signal) {
+                    client.send(((Signal)message).retain());
+                } else if (message instanceof JSONObject
+                        && ((JSONObject)message).has(INTEREST)) {
+                    // the interest must not be dropped from the outbox
+                    client.sendControl((JSONObject)message);
+                } else if (message instanceof JSONObject
+                        && !isControl((JSONObject)message)) {
+                    client.send((JSONObject)message);
+                } else {
+                    return;
+                }
+                metrics.sent(object);
+            } catch (IOException e) {
+                dropped++;
+            } finally {
+                Packet.release(object);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getDropped() {
+            return dropped;
+        }
+
+        @Override
+        public int getQueued() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    closeClient();
+                } finally {
+                    remove(this);
+                }
+            }
+        }
+
+        private void closeClient() {
+            try {
+                client.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, null, e);
+            }
+        }
+
+    }
+
+    /**
+     * A client in the same JVM as the dispatcher, see {@link #connect}.
+     * The messages it sends are queued for the broadcast thread as they
+     * are and the received messages are the objects sent by the other
+     * clients, so a message must not be modified once it was sent. If the
+     * messages are numbered, see {@link #setRetransmitRing}, the clients
+     * receive a numbered copy. Messages from the remote clients are parsed
+     * once for all of the local clients.
      *
+     * <p>Received messages wait in an outbox, see {@link #setOutbox}, and
+     * the consumers are called by the delivery thread of the client. A
+     * received {@link Signal} goes back to the pool when the consumers
+     * return, unless some of them retains it.
+     */
+    public class LocalClient {
+
+        private final String name;
+        private final Outbox outbox;
+        private final CopyOnWriteArrayList<Consumer<Object>> consumers;
+        private volatile boolean closed;
+
+        /** The client as seen by the broadcast thread and the shards. */
+        private final Endpoint endpoint = new Endpoint() {
+
+            @Override
+            public void send(Object object) {
+                if (!outbox.offer(object)) {
+                    logger.log(Level.WARNING, "Outbox overflow, disconnecting client {0}", name);
+                    // the delivery loop removes the client, the caller must
+                    // not wait for the buffer it is draining
+                    closed = true;
+                    outbox.clear();
+                    outbox.queue(WAKE_UP);
+                }
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public long getDropped() {
+                return outbox.getDropped();
+            }
+
+            @Override
+            public int getQueued() {
+                return outbox.size();
+            }
+
+            @Override
+            public void close() {
+                LocalClient.this.close();
+            }
+
+        };
+
+        private LocalClient(String name) {
+            this.name = name;
+            this.outbox = newOutbox();
+            this.consumers = new CopyOnWriteArrayList<>();
+        }
+
+        private void start() {
+            Tools.startThread(this::deliveryLoop, "dispatcher-local", virtualThreads);
+        }
+
+        /**
+         * Publishes the message to all of the clients of the dispatcher,
+         * including this one if it is interested in it.
+         *
+         * @param message
+         *            a message, it must not be modified afterwards
+         */
+        public void send(JSONObject message) {
+            if (closed) {
+                throw new CommonException()
+                        .setCode(ExceptionCode.ILLEGAL_STATE)
+                        .set("message", "The client is closed!")
+                        .set("client", name);
+            }
+            trace.message(Trace.Event.RECEIVED, name, message);
+            received(endpoint, message);
+        }
+
+        /**
+         * Publishes the signal to all of the clients of the dispatcher,
+         * including this one if it is interested in it. The reference to
+         * the signal is handed over.
+         */
+        public void send(Signal signal) {
+            if (closed) {
+                signal.release();
+                throw new CommonException()
+                        .setCode(ExceptionCode.ILLEGAL_STATE)
+                        .set("message", "The client is closed!")
+                        .set("client", name);
+            }
+            trace.message(Trace.Event.RECEIVED, name, signal);
+            received(endpoint, signal);
+        }
+
+        /**
+         * Restricts the received messages to the given topic pattern, see
+         * {@link cz.lidinsky.tools.dispatch.Client#subscribe}.
+         */
+        public void subscribe(String pattern) {
+            buffer.queue((Runnable)() -> Dispatcher.this.subscribe(endpoint, pattern));
+        }
+
+        /**
+         * Cancels the subscription of the given pattern.
+         */
+        public void unsubscribe(String pattern) {
+            buffer.queue((Runnable)() -> Dispatcher.this.unsubscribe(endpoint, pattern));
+        }
+
+        /**
+         * Adds a consumer which is called by the delivery thread for each
+         * received message.
+         */
+        public void addConsumer(Consumer<Object> consumer) {
+            consumers.addIfAbsent(consumer);
+        }
+
+        public void removeConsumer(Consumer<Object> consumer) {
+            consumers.remove(consumer);
+        }
+
+        /**
+         * Returns the name of the client, as it appears in the metrics.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Disconnects the client; the waiting messages are discarded.
+         */
+        public void close() {
+            closed = true;
+            outbox.clear();
+            outbox.queue(WAKE_UP);
+            remove(endpoint);
+        }
+
+        private void deliveryLoop() {
+            while (!closed) {
+                Object item = outbox.blockingDequeue();
+                try {
+                    Object message = item instanceof Packet
+                            ? ((Packet)item).getMessage() : item;
+                    if (message instanceof Signal || message instanceof JSONObject
+                            && !isControl((JSONObject)message)) {
+                        metrics.sent(item);
+                        consume(message);
+                    }
+                } finally {
+                    Packet.release(item);
+                }
+            }
+            remove(endpoint);
+        }
+
+        private void consume(Object message) {
+            for (Consumer<Object> consumer : consumers) {
+                try {
+                    consumer.accept(message);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Consumer failed", e);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Stops the server and all of the event loops.
      */
     public void close() {
       closed = true;
+      // a full buffer doesn't need it, the broadcast thread is not waiting
+      buffer.offer(WAKE_UP);
+      stopMetrics();
+      Closeable listener = this.listener;
+      if (listener != null) {
+          try {
+              listener.close();
+          } catch (IOException e) {
+              logger.log(Level.SEVERE, null, e);
+          }
+      }
+      for (EventLoop loop : loops) {
+          if (loop != null) {
+              loop.close();
+          }
+      }
+      Endpoint[] connected;
+      synchronized (this) {
+          connected = clients.toArray(new Endpoint[clients.size()]);
+      }
+      for (Endpoint client : connected) {
+          try {
+              client.close();
+          } catch (IOException e) {
+              logger.log(Level.SEVERE, null, e);
+          }
+      }
     }
 
     /** Port on which the server listens. */
     private final int port;
 
+    /** The server socket or channel, null if the server doesn't run. */
+    private volatile Closeable listener;
+
     /**
      * Opens server socket on the given port. New Client object is created for
      * each new incoming connection request.
      */
     private void server() {
+      if (loops.length > 0) {
+          channelServer();
+          return;
+      }
       try {
         ServerSocket socketServer = new ServerSocket(port);
+        listener = socketServer;
         logger.info("Server socket created...");
         while (!closed) {
           Socket socket = socketServer.accept();
-          addClient(new Client(socket));
+          Client client = new Client(socket);
+          addClient(client);
+          client.start();
+        }
+      } catch (Exception e) {
+          if (!closed) {
+              logger.log(Level.SEVERE, null, e);
+          }
+      } finally {
+        close();
+      }
+    }
+
+    /**
+     * Accepts incoming connections through a server socket channel and
+     * distributes them among the event loops in the round robin fashion.
+     */
+    private void channelServer() {
+      try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+        serverChannel.bind(new InetSocketAddress(port));
+        listener = serverChannel;
+        logger.info("Server socket channel created...");
+        int next = 0;
+        while (!closed) {
+          SocketChannel channel = serverChannel.accept();
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+          ChannelClient client = new ChannelClient(channel, loops[next]);
+          addClient(client);
+          client.start();
+          next = (next + 1) % loops.length;
         }
       } catch (Exception e) {
-          logger.log(Level.SEVERE, null, e);
+          if (!closed) {
+              logger.log(Level.SEVERE, null, e);
+          }
       } finally {
         close();
       }
@@ -207,7 +2565,9 @@ public class Dispatcher {
 
     /**
      * It expects port number as an command line argument. It creates an
-     * instance of the Dispatcher class and runs it.
+     * instance of the Dispatcher class and runs it. The optional second
+     * argument is the number of event loops; if given, the clients are
+     * served by non-blocking channels.
      *
      * @param args
      *
@@ -215,7 +2575,8 @@ public class Dispatcher {
      */
     public static void main(String[] args) throws Exception {
       int port = Integer.parseInt(args[0]);
-      Dispatcher instance = new Dispatcher(port);
+      int eventLoops = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+      Dispatcher instance = new Dispatcher(port, eventLoops);
       instance.start();
       instance.server();
     }
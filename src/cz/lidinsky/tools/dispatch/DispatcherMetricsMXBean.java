@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.Map;
+
+/**
+ * Counters and latency distributions of a dispatcher, see
+ * {@link Dispatcher#getMetrics}. Durations are in nanoseconds; each
+ * distribution is given by its count, mean, max and percentiles.
+ */
+public interface DispatcherMetricsMXBean {
+
+    /** Number of messages received from the clients. */
+    long getMessagesIn();
+
+    /** Number of messages written to the clients. */
+    long getMessagesOut();
+
+    /** Number of bytes received from the clients. */
+    long getBytesIn();
+
+    /** Number of bytes written to the clients. */
+    long getBytesOut();
+
+    /** Number of messages waiting in the outbox of each client. */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * Time spent handing one message over to all of its receivers in one
+     * shard, see {@link Dispatcher#setFanOutThreads}.
+     */
+    Map<String, Long> getFanOutTime();
+
+    /**
+     * Time between receiving a message, or taking it from the buffer if it
+     * was added directly, and writing it to a client.
+     */
+    Map<String, Long> getLatency();
+
+    /** Returns all of the metrics as text. */
+    String dump();
+
+}
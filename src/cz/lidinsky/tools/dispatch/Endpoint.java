@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.IOException;
+
+/**
+ * A destination the dispatcher delivers messages to, typically one connected
+ * client.
+ */
+interface Endpoint {
+
+    /**
+     * Hands the given message over for delivery. It must not block the
+     * caller on network I/O.
+     *
+     * @param object
+     *            a message to deliver
+     */
+    void send(Object object);
+
+    /**
+     * Returns a human readable identification of the endpoint, typically
+     * the remote address.
+     */
+    String getName();
+
+    /**
+     * Returns the number of messages which were discarded by the overflow
+     * policy of the endpoint.
+     */
+    long getDropped();
+
+    /**
+     * Returns the number of messages waiting to be delivered.
+     */
+    int getQueued();
+
+    /**
+     * Releases all of the resources held by this endpoint.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single thread which serves many non-blocking channels with the help of
+ * one selector. All of the channel operations are done in the loop thread;
+ * other threads may only pass it tasks through the {@link #execute} method.
+ */
+class EventLoop implements Runnable {
+
+    /**
+     * An object which is notified each time the channel it is attached to
+     * is ready for some operation.
+     */
+    interface Handler {
+
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called if the ready method throws an exception.
+         */
+        void close() throws IOException;
+
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final Logger logger;
+    private volatile boolean closed;
+
+    /** The loop thread, null until the loop runs. */
+    private volatile Thread thread;
+
+    EventLoop() throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.logger = Logger.getLogger(getClass().getName());
+        this.closed = false;
+    }
+
+    /**
+     * Registers the given channel within the loop. The registration is
+     * performed asynchronously, the key is passed to the given callback.
+     *
+     * @param channel
+     *            a channel in the non-blocking mode
+     *
+     * @param ops
+     *            initial interest set
+     *
+     * @param handler
+     *            an object which is notified about readiness of the channel
+     *
+     * @param registered
+     *            called in the loop thread when the channel is registered,
+     *            may be null
+     */
+    public void register(SelectableChannel channel, int ops, Handler handler,
+            Consumer<SelectionKey> registered) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, ops, handler);
+                if (registered != null) {
+                    registered.accept(key);
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, null, e);
+                close(handler);
+            }
+        });
+    }
+
+    /**
+     * Schedules the given task to be run by the loop thread.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Returns true if it is called from the loop thread.
+     */
+    boolean isLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!closed) {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Handler handler = (Handler)key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.ready(key);
+                        }
+                    } catch (Exception e) {
+                        logger.log(Level.FINE, null, e);
+                        close(handler);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, null, e);
+        } finally {
+            new ArrayList<>(selector.keys()).stream()
+                    .map(key -> (Handler)key.attachment())
+                    .forEach(this::close);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, null, e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, null, e);
+            }
+        }
+    }
+
+    private void close(Handler handler) {
+        try {
+            handler.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, null, e);
+        }
+    }
+
+    /**
+     * Stops the loop and closes all of the registered channels.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+}
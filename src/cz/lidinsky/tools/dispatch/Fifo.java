@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+/**
+ * FIFO for the exchange of items between threads, see {@link Queue} and
+ * {@link RingQueue}.
+ *
+ * @param <T>
+ */
+public interface Fifo<T> {
+
+    /**
+     * Adds an item at the end of the queue; it may wait until there is a
+     * room for it.
+     *
+     * @param item
+     *            an item to be added at the end of the queue
+     */
+    void queue(T item);
+
+    /**
+     * Adds an item at the end of the queue if there is a room for it,
+     * without waiting.
+     *
+     * @param item
+     *            an item to be added at the end of the queue
+     *
+     * @return false if the item was not added
+     */
+    boolean offer(T item);
+
+    /**
+     * Removes and returns an item from the head of the queue.
+     *
+     * @return an item at the head of the queue or null if the queue is empty
+     */
+    T dequeue();
+
+    /**
+     * Removes and returns an item from the head of the queue. If the queue
+     * is empty, it waits until there is an item to return.
+     *
+     * @return an item at the head of the queue
+     */
+    T blockingDequeue();
+
+    /**
+     * Removes all of the items.
+     */
+    void clear();
+
+    /**
+     * Returns true if there is no item in the queue.
+     */
+    boolean isEmpty();
+
+}
@@ -0,0 +1,178 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder of the length prefixed frames. Each frame consists of one byte
+ * frame type, the length of the body encoded as an unsigned variable
+ * length integer, and the body itself. The body is collected in a buffer
+ * which is reused for all of the frames.
+ */
+abstract class FrameDecoder implements Codec.Decoder {
+
+    /** Default maximal size of the frame body, 16 MiB. */
+    static final int MAX_FRAME_SIZE = 1 << 24;
+
+    private static final int TYPE = 0;
+    private static final int LENGTH = 1;
+    private static final int BODY = 2;
+
+    private final int maxFrameSize;
+    private int state = TYPE;
+    private int type;
+    private int length;
+    private int shift;
+    private int position;
+    private byte[] body = new byte[256];
+
+    FrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    public Object decode(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            switch (state) {
+                case TYPE:
+                    type = buffer.get() & 0xff;
+                    length = 0;
+                    shift = 0;
+                    state = LENGTH;
+                    break;
+                case LENGTH:
+                    int b = buffer.get();
+                    if (shift > 28) {
+                        throw new IOException("Malformed frame length!");
+                    }
+                    length |= (b & 0x7f) << shift;
+                    shift += 7;
+                    if ((b & 0x80) == 0) {
+                        if (length < 0 || length > maxFrameSize) {
+                            throw new IOException(
+                                    "Frame too long: " + (length & 0xffffffffL));
+                        }
+                        if (body.length < length) {
+                            body = new byte[Math.max(length, body.length * 2)];
+                        }
+                        position = 0;
+                        state = BODY;
+                    }
+                    break;
+                default:
+                    int count = Math.min(buffer.remaining(), length - position);
+                    buffer.get(body, position, count);
+                    position += count;
+            }
+            if (state == BODY && position == length) {
+                state = TYPE;
+                Object message = frame(type, body, length);
+                if (message != null) {
+                    return message;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called for each complete frame.
+     *
+     * @param type
+     *            frame type
+     *
+     * @param body
+     *            buffer with the frame body, it is reused for the next frame
+     *
+     * @param length
+     *            length of the body
+     *
+     * @return decoded message or null if the frame does not carry a message
+     *
+     * @throws IOException
+     *             if the frame is malformed
+     */
+    protected abstract Object frame(int type, byte[] body, int length)
+            throws IOException;
+
+    /**
+     * Writes an unsigned variable length integer, seven bits per byte, the
+     * least significant group first.
+     */
+    static void writeVarint(ByteArrayOutputStream output, long value) {
+        while ((value & ~0x7fL) != 0) {
+            output.write((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int)value);
+    }
+
+    /**
+     * Writes an unsigned variable length integer into the buffer.
+     */
+    static void writeVarint(ByteBuffer output, long value) {
+        while ((value & ~0x7fL) != 0) {
+            output.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        output.put((byte)value);
+    }
+
+    /**
+     * Returns the number of bytes of the variable length integer.
+     */
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Returns a complete frame with the given type and body.
+     */
+    static byte[] toFrame(int type, ByteArrayOutputStream body) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 6);
+        frame.write(type);
+        writeVarint(frame, body.size());
+        frame.write(body.toByteArray(), 0, body.size());
+        return frame.toByteArray();
+    }
+
+    /**
+     * Reads an unsigned variable length integer.
+     */
+    static long readVarint(ByteBuffer buffer) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            result |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed variable length integer!");
+    }
+
+}
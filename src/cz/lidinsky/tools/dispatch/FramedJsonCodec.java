@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.UnaryOperator;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * JSON texts in length prefixed frames, see {@link FrameDecoder}. The
+ * receiver knows the size of each message in advance, so it reads the
+ * input in bulk, rejects messages which exceed the limit without reading
+ * them whole into memory, and doesn't have to scan the text for the end
+ * of the message.
+ *
+ * <p>The decoder returns a {@link Packet} which keeps the received frame,
+ * so the dispatcher forwards the very same bytes to the other clients
+ * which use this format instead of encoding the message again. If the
+ * codec has a buffer pool, the decoder doesn't parse the frames at all;
+ * it copies them into pooled direct buffers which are written to the
+ * channels as they are. Only frames which may be subscription control
+ * messages are parsed. The dispatcher inserts the sequence number into the
+ * text of such a frame without parsing it, see {@link #number}.
+ */
+class FramedJsonCodec implements Codec {
+
+    static final int MESSAGE_FRAME = 1;
+
+    /** Each control message contains one of these sequences. */
+    private static final byte[][] CONTROL = {
+        (Subscriptions.SUBSCRIBE + "\"").getBytes(StandardCharsets.UTF_8),
+        (Dispatcher.REPLAY + "\"").getBytes(StandardCharsets.UTF_8),
+        (Dispatcher.MULTICAST + "\"").getBytes(StandardCharsets.UTF_8),
+        (Dispatcher.INTEREST + "\"").getBytes(StandardCharsets.UTF_8)
+    };
+
+    /** Name of the sequence number field, quoted. */
+    private static final byte[] SEQUENCE
+            = ("\"" + Dispatcher.SEQUENCE + "\"").getBytes(StandardCharsets.UTF_8);
+
+    private final int maxMessageSize;
+    private final BufferPool pool;
+
+    /**
+     * @param maxMessageSize
+     *            maximal size of a received message in bytes
+     */
+    FramedJsonCodec(int maxMessageSize) {
+        this(maxMessageSize, null);
+    }
+
+    /**
+     * @param maxMessageSize
+     *            maximal size of a received message in bytes
+     *
+     * @param pool
+     *            if not null, received frames are not parsed, they are kept
+     *            in buffers of this pool
+     */
+    FramedJsonCodec(int maxMessageSize, BufferPool pool) {
+        this.maxMessageSize = maxMessageSize;
+        this.pool = pool;
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        return WireFormat.FRAMED_JSON;
+    }
+
+    @Override
+    public byte[] encode(Object message) {
+        if (!(message instanceof JSONObject || message instanceof Signal)) {
+            return null;
+        }
+        byte[] text = message.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(text.length + 6);
+        frame.write(MESSAGE_FRAME);
+        FrameDecoder.writeVarint(frame, text.length);
+        frame.write(text, 0, text.length);
+        return frame.toByteArray();
+    }
+
+    @Override
+    public UnaryOperator<byte[]> newWriter() {
+        return UnaryOperator.identity();
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return new FrameDecoder(maxMessageSize) {
+
+            @Override
+            protected Object frame(int type, byte[] body, int length)
+                    throws IOException {
+                if (type != MESSAGE_FRAME) {
+                    throw new IOException("Unknown frame type: " + type);
+                }
+                if (pool != null && !isControl(body, length)) {
+                    return toPacket(pool, body, length);
+                }
+                Object message;
+                try {
+                    message = new JSONTokener(new String(
+                            body, 0, length, StandardCharsets.UTF_8)).nextValue();
+                } catch (JSONException e) {
+                    throw new IOException(e);
+                }
+                if (!(message instanceof JSONObject)) {
+                    return message;
+                }
+                ByteArrayOutputStream frame = new ByteArrayOutputStream(length + 6);
+                frame.write(type);
+                FrameDecoder.writeVarint(frame, length);
+                frame.write(body, 0, length);
+                return new Packet(message, null)
+                        .setBytes(FramedJsonCodec.this, frame.toByteArray());
+            }
+
+        };
+    }
+
+    /**
+     * Copies the given text into a pooled frame and returns the packet
+     * which keeps it without parsing it.
+     */
+    static Packet toPacket(BufferPool pool, byte[] text, int length) {
+        PooledBuffer raw = pool.acquire(
+                1 + FrameDecoder.varintSize(length) + length);
+        ByteBuffer frame = raw.buffer();
+        frame.put((byte)MESSAGE_FRAME);
+        FrameDecoder.writeVarint(frame, length);
+        frame.put(text, 0, length);
+        frame.flip();
+        return new Packet(raw, WireFormat.FRAMED_JSON, FramedJsonCodec::parse);
+    }
+
+    /**
+     * Returns the text of the given frame with the sequence number inserted
+     * as the first field of the object, without parsing the text.
+     *
+     * @return the numbered text, or null if the message is not an object
+     *            or if it may contain the sequence number already
+     */
+    static byte[] number(ByteBuffer frame, long sequence) {
+        byte[] text;
+        try {
+            frame.get();
+            text = new byte[(int)FrameDecoder.readVarint(frame)];
+            frame.get(text);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        int open = skipWhitespace(text, 0);
+        if (open == text.length || text[open] != '{'
+                || contains(text, text.length, SEQUENCE)) {
+            return null;
+        }
+        int next = skipWhitespace(text, open + 1);
+        boolean empty = next < text.length && text[next] == '}';
+        byte[] field = ("\"" + Dispatcher.SEQUENCE + "\":" + sequence
+                + (empty ? "" : ",")).getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[text.length + field.length];
+        System.arraycopy(text, 0, result, 0, open + 1);
+        System.arraycopy(field, 0, result, open + 1, field.length);
+        System.arraycopy(text, open + 1, result, open + 1 + field.length,
+                text.length - open - 1);
+        return result;
+    }
+
+    private static int skipWhitespace(byte[] text, int index) {
+        while (index < text.length && (text[index] == ' ' || text[index] == '\t'
+                || text[index] == '\n' || text[index] == '\r')) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the message of the given frame, or null if it is malformed.
+     */
+    static Object parse(ByteBuffer frame) {
+        try {
+            frame.get();
+            int length = (int)FrameDecoder.readVarint(frame);
+            byte[] text = new byte[length];
+            frame.get(text);
+            return new JSONTokener(
+                    new String(text, StandardCharsets.UTF_8)).nextValue();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean isControl(byte[] body, int length) {
+        for (byte[] pattern : CONTROL) {
+            if (contains(body, length, pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(byte[] body, int length, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= length; i++) {
+            int j = 0;
+            while (j < pattern.length && body[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Topics which the clients of a dispatcher are interested in, as it is
+ * told to the peer dispatchers, see {@link Dispatcher#addPeer}. It is the
+ * union of the patterns subscribed by the clients; the sole wildcard if
+ * some client has not subscribed anything, see {@link Subscriptions}. The
+ * object is not thread safe.
+ */
+class Interest {
+
+    /** Patterns subscribed by each client, null if it has not subscribed. */
+    private final Map<Endpoint, Set<String>> clients = new HashMap<>();
+
+    /** Number of clients which have subscribed each pattern. */
+    private final Map<String, Integer> counts = new HashMap<>();
+
+    /** Number of clients which have not subscribed anything. */
+    private int unfiltered;
+
+    /**
+     * Adds a client which is interested in everything until it subscribes
+     * something.
+     */
+    void add(Endpoint client) {
+        if (!clients.containsKey(client)) {
+            clients.put(client, null);
+            unfiltered++;
+        }
+    }
+
+    void remove(Endpoint client) {
+        if (!clients.containsKey(client)) {
+            return;
+        }
+        Set<String> patterns = clients.remove(client);
+        if (patterns == null) {
+            unfiltered--;
+        } else {
+            patterns.forEach(this::decrement);
+        }
+    }
+
+    void subscribe(Endpoint client, String pattern) {
+        if (!clients.containsKey(client)) {
+            return;
+        }
+        Set<String> patterns = clients.get(client);
+        if (patterns == null) {
+            patterns = new HashSet<>();
+            clients.put(client, patterns);
+            unfiltered--;
+        }
+        if (patterns.add(pattern)) {
+            counts.merge(pattern, 1, Integer::sum);
+        }
+    }
+
+    void unsubscribe(Endpoint client, String pattern) {
+        Set<String> patterns = clients.get(client);
+        if (patterns != null && patterns.remove(pattern)) {
+            decrement(pattern);
+        }
+    }
+
+    /**
+     * Returns a copy of the current patterns.
+     */
+    Set<String> getPatterns() {
+        if (unfiltered > 0) {
+            return Collections.singleton(Subscriptions.WILDCARD);
+        }
+        return new HashSet<>(counts.keySet());
+    }
+
+    private void decrement(String pattern) {
+        counts.computeIfPresent(pattern, (p, count) -> count > 1 ? count - 1 : null);
+    }
+
+}
@@ -0,0 +1,397 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append only journal of messages, stored in a directory as a sequence of
+ * memory mapped segment files of a fixed size. Each message gets a
+ * sequence number; the first segment begins with sequence number one.
+ * Name of each segment is the sequence number of its first record.
+ *
+ * <p>A record consists of the length of the message (int), the sequence
+ * number (long), the time of append in milliseconds (long) and the message
+ * bytes. The length is written last, so a record which was not written
+ * completely is ignored on recovery. Zero length marks the end of the
+ * written data.
+ *
+ * <p>Appended records are written into the page cache only, {@link #commit}
+ * forces them to the disk. Old segments are deleted, if the journal is
+ * larger than the maximal size when a new segment is created, or if they
+ * are older than the maximal age, see {@link #expire}.
+ *
+ * <p>Messages are appended by one thread. The records which were appended
+ * already may be read by any other thread at the same time.
+ */
+class Journal implements Closeable {
+
+    /** Default size of one segment, 64 MiB. */
+    static final int SEGMENT_SIZE = 64 << 20;
+
+    static final String SUFFIX = ".journal";
+
+    private static final int HEADER = 4 + 8 + 8;
+
+    /** A segment file. */
+    private static class Segment {
+        final File file;
+        final long first;
+        MappedByteBuffer buffer;
+
+        /** Time of the last record, -1 if it was not read yet. */
+        volatile long lastTime = -1;
+
+        Segment(File file, long first) {
+            this.file = file;
+            this.first = first;
+        }
+    }
+
+    /**
+     * Receives the records read from the journal.
+     */
+    interface RecordConsumer {
+        void accept(long sequence, byte[] message);
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSize;
+    private final long maxAge;
+
+    /** All of the segments, the active one is the last. */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /** The segment the records are appended to. */
+    private Segment active;
+
+    /** Written after the record, so the readers see it complete. */
+    private volatile long nextSequence;
+
+    /** True if there are records which were not forced yet. */
+    private boolean dirty;
+
+    /**
+     * Opens the journal in the given directory; the directory is created
+     * if it does not exist.
+     *
+     * @param directory
+     *            directory with the segment files
+     *
+     * @param segmentSize
+     *            size of a segment file in bytes
+     *
+     * @param maxSize
+     *            maximal total size of the segments in bytes, zero or less
+     *            means no limit
+     *
+     * @param maxAge
+     *            maximal age of a segment in milliseconds, measured from its
+     *            last record, zero or less means no limit
+     *
+     * @throws IOException
+     *             if the journal cannot be opened
+     */
+    Journal(File directory, int segmentSize, long maxSize, long maxAge)
+            throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory: " + directory);
+        }
+        File[] files = directory.listFiles(
+                (dir, name) -> name.endsWith(SUFFIX));
+        long[] firsts = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            try {
+                firsts[i] = Long.parseLong(
+                        name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected file in the journal: " + name);
+            }
+        }
+        Arrays.sort(firsts);
+        for (long first : firsts) {
+            segments.add(new Segment(file(first), first));
+        }
+        if (segments.isEmpty()) {
+            nextSequence = 1;
+            roll();
+        } else {
+            active = segments.get(segments.size() - 1);
+            ByteBuffer buffer = map(active);
+            nextSequence = active.first;
+            active.lastTime = 0;
+            int start = 0;
+            while (skip(buffer)) {
+                active.lastTime = buffer.getLong(start + 4 + 8);
+                start = buffer.position();
+                nextSequence++;
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number of the oldest record which was not
+     * deleted yet.
+     */
+    synchronized long getFirstSequence() {
+        return segments.get(0).first;
+    }
+
+    /**
+     * Returns the sequence number of the next appended message.
+     */
+    long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Appends a message.
+     *
+     * @param message
+     *            the message bytes
+     *
+     * @return sequence number of the message
+     *
+     * @throws IOException
+     *             if the message cannot be written
+     */
+    long append(byte[] message) throws IOException {
+        if (HEADER + message.length + 4 > segmentSize) {
+            throw new IOException("Message too long for the journal: "
+                    + message.length);
+        }
+        ByteBuffer buffer = active.buffer;
+        if (buffer.remaining() < HEADER + message.length + 4) {
+            commit();
+            roll();
+            buffer = active.buffer;
+        }
+        int start = buffer.position();
+        buffer.position(start + 4);
+        long time = System.currentTimeMillis();
+        buffer.putLong(nextSequence);
+        buffer.putLong(time);
+        buffer.put(message);
+        buffer.putInt(start, message.length);
+        active.lastTime = time;
+        dirty = true;
+        long sequence = nextSequence;
+        nextSequence = sequence + 1;
+        return sequence;
+    }
+
+    /**
+     * Forces all of the appended records to the disk.
+     */
+    void commit() {
+        if (dirty) {
+            active.buffer.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Reads the records of the given range of sequence numbers.
+     *
+     * @param from
+     *            sequence number of the first record; if it was already
+     *            deleted, the reading starts with the oldest record
+     *
+     * @param to
+     *            sequence number of the last record; the reading stops
+     *            earlier with the last appended record
+     *
+     * @param action
+     *            called with the sequence number and the bytes of each
+     *            message
+     *
+     * @return sequence number following the last record which was read,
+     *            or the from argument if there was none
+     *
+     * @throws IOException
+     *             if a segment cannot be read
+     */
+    synchronized long read(long from, long to, RecordConsumer action)
+            throws IOException {
+        long last = Math.min(to, nextSequence - 1);
+        long next = from;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (segment.first > last) {
+                break;
+            } else if (i + 1 < segments.size() && segments.get(i + 1).first <= from) {
+                continue;
+            }
+            long end = i + 1 < segments.size()
+                    ? Math.min(last, segments.get(i + 1).first - 1) : last;
+            ByteBuffer buffer = map(segment).duplicate();
+            buffer.position(0);
+            // the records of a segment are numbered one by one, so a record
+            // which is being appended is never touched
+            for (long sequence = segment.first; sequence <= end; sequence++) {
+                int length = buffer.getInt();
+                buffer.position(buffer.position() + 8 + 8);
+                if (sequence >= from) {
+                    byte[] message = new byte[length];
+                    buffer.get(message);
+                    action.accept(sequence, message);
+                    next = sequence + 1;
+                } else {
+                    buffer.position(buffer.position() + length);
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Deletes the old segments which are older than the maximal age. The
+     * active segment is never deleted. It may be called by any thread.
+     *
+     * @throws IOException
+     *             if a segment cannot be deleted
+     */
+    synchronized void expire() throws IOException {
+        if (maxAge <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1
+                && now - getLastTime(segments.get(0)) > maxAge) {
+            delete();
+        }
+    }
+
+    /**
+     * Commits the appended records.
+     */
+    @Override
+    public void close() {
+        commit();
+    }
+
+    /**
+     * Returns the number of segment files.
+     */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private File file(long first) {
+        return new File(directory, String.format("%020d%s", first, SUFFIX));
+    }
+
+    /**
+     * Creates a new active segment and deletes the old ones which exceed
+     * the retention limits.
+     */
+    private synchronized void roll() throws IOException {
+        Segment segment = new Segment(file(nextSequence), nextSequence);
+        map(segment);
+        segments.add(segment);
+        active = segment;
+        while (segments.size() > 1 && maxSize > 0
+                && (long)segments.size() * segmentSize > maxSize) {
+            delete();
+        }
+        expire();
+    }
+
+    /**
+     * Deletes the oldest segment.
+     */
+    private void delete() throws IOException {
+        Segment oldest = segments.remove(0);
+        if (!oldest.file.delete()) {
+            throw new IOException("Cannot delete: " + oldest.file);
+        }
+    }
+
+    /**
+     * Returns the mapped content of the segment; the file is created if it
+     * doesn't exist. The buffer of the active segment is positioned after
+     * the last record.
+     */
+    private MappedByteBuffer map(Segment segment) throws IOException {
+        if (segment.buffer == null) {
+            try (RandomAccessFile file = new RandomAccessFile(segment.file, "rw")) {
+                if (file.length() < segmentSize) {
+                    file.setLength(segmentSize);
+                }
+                segment.buffer = file.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, file.length());
+            }
+        }
+        return segment.buffer;
+    }
+
+    /**
+     * Returns the time of the last record of the segment. It is recorded
+     * by the append; a segment which was written before the journal was
+     * opened is read once.
+     */
+    private long getLastTime(Segment segment) throws IOException {
+        if (segment.lastTime >= 0) {
+            return segment.lastTime;
+        }
+        ByteBuffer buffer = map(segment).duplicate();
+        buffer.position(0);
+        long time = 0;
+        int start = 0;
+        while (skip(buffer)) {
+            time = buffer.getLong(start + 4 + 8);
+            start = buffer.position();
+        }
+        segment.lastTime = time;
+        return time;
+    }
+
+    /**
+     * Moves the position of the buffer behind the next record.
+     *
+     * @return false if there is no other record
+     */
+    private static boolean skip(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER) {
+            return false;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length <= 0 || length > buffer.remaining() - HEADER) {
+            return false;
+        }
+        buffer.position(buffer.position() + HEADER + length);
+        return true;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.UnaryOperator;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * The original wire format, JSON texts written one after another.
+ */
+class JsonCodec implements Codec {
+
+    @Override
+    public WireFormat getFormat() {
+        return WireFormat.JSON;
+    }
+
+    @Override
+    public byte[] encode(Object message) {
+        return message instanceof JSONObject || message instanceof Signal
+                ? message.toString().getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    @Override
+    public UnaryOperator<byte[]> newWriter() {
+        return UnaryOperator.identity();
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        JsonSplitter splitter = new JsonSplitter();
+        return buffer -> {
+            String text = splitter.next(buffer);
+            return text == null ? null : new JSONTokener(text).nextValue();
+        };
+    }
+
+}
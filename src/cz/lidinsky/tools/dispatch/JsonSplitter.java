@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Cuts a stream of concatenated JSON values, which arrives in arbitrary
+ * chunks, into the individual values. It is an incremental replacement of the
+ * JSONTokener for non-blocking channels; the input is scanned only for the
+ * structural characters, the parsing itself is left to the caller.
+ *
+ * <p>Objects, arrays and strings are supported on the top level. Any other
+ * top level token must be terminated by a white space. The object is not
+ * thread safe.
+ */
+class JsonSplitter {
+
+    /** Bytes of the value which is being collected. */
+    private byte[] value = new byte[256];
+
+    /** Number of valid bytes in the value array. */
+    private int length;
+
+    /** Nesting level of objects and arrays. */
+    private int depth;
+
+    private boolean inString;
+
+    private boolean escape;
+
+    /** True if a bare top level token (number, literal) is collected. */
+    private boolean inToken;
+
+    /**
+     * Consumes bytes from the given buffer until one complete value is
+     * collected.
+     *
+     * @param buffer
+     *            input bytes, the buffer must be prepared for reading
+     *
+     * @return the text of the next complete value or null if the buffer
+     *            does not contain enough bytes; in such a case, all of the
+     *            bytes are consumed and remembered
+     */
+    public String next(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (inString) {
+                append(b);
+                if (escape) {
+                    escape = false;
+                } else if (b == '\\') {
+                    escape = true;
+                } else if (b == '"') {
+                    inString = false;
+                    if (depth == 0) {
+                        return take();
+                    }
+                }
+            } else if (inToken) {
+                if (isWhitespace(b)) {
+                    inToken = false;
+                    return take();
+                }
+                append(b);
+            } else if (b == '{' || b == '[') {
+                depth++;
+                append(b);
+            } else if (b == '}' || b == ']') {
+                append(b);
+                if (--depth <= 0) {
+                    depth = 0;
+                    return take();
+                }
+            } else if (b == '"') {
+                inString = true;
+                append(b);
+            } else if (isWhitespace(b)) {
+                if (depth > 0) {
+                    append(b);
+                }
+            } else if (depth > 0) {
+                append(b);
+            } else {
+                inToken = true;
+                append(b);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if there is a part of a value which was not completed yet.
+     */
+    public boolean isPending() {
+        return length > 0;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private void append(byte b) {
+        if (length == value.length) {
+            value = Arrays.copyOf(value, value.length * 2);
+        }
+        value[length++] = b;
+    }
+
+    private String take() {
+        String result = new String(value, 0, length, StandardCharsets.UTF_8);
+        length = 0;
+        return result;
+    }
+
+}
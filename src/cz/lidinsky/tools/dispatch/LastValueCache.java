@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The last message of each signal. A newly connected client gets the
+ * content of the cache first, so it knows the state of all of the signals
+ * without waiting for their next change.
+ *
+ * <p>The number of entries is limited; if the limit is reached, the signal
+ * which was not updated for the longest time is forgotten. Packets held in
+ * the cache keep a reference to their raw frames. The object is not thread
+ * safe.
+ */
+class LastValueCache {
+
+    private final int capacity;
+
+    /** Packets ordered by the time of the last update. */
+    private final LinkedHashMap<Object, Packet> values = new LinkedHashMap<>();
+
+    /**
+     * @param capacity
+     *            maximal number of cached signals
+     */
+    LastValueCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Stores the packet as the last value of the signal given by its key.
+     * Packets without a key are ignored.
+     */
+    void put(Packet packet) {
+        Object key = packet.getKey();
+        if (key == null) {
+            return;
+        }
+        packet.retain();
+        Packet previous = values.remove(key);
+        if (previous != null) {
+            previous.release();
+        }
+        values.put(key, packet);
+        if (values.size() > capacity) {
+            Iterator<Packet> eldest = values.values().iterator();
+            eldest.next().release();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Calls the given action for each cached packet, the least recently
+     * updated first.
+     */
+    void forEach(Consumer<Packet> action) {
+        values.values().forEach(action);
+    }
+
+    /**
+     * Returns the number of cached signals.
+     */
+    int size() {
+        return values.size();
+    }
+
+    /**
+     * Removes all of the entries.
+     */
+    void clear() {
+        values.values().forEach(packet -> packet.release());
+        values.clear();
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers messages to a consumer on an executor, so that a slow consumer
+ * doesn't hold up the thread which receives the messages. The messages wait
+ * in a bounded outbox; if it is full, the overflow policy decides which one
+ * is lost. At most one task of the mailbox runs at a time, so the consumer
+ * gets the messages in order and it is never called concurrently.
+ *
+ * <p>The mailbox keeps a reference to each waiting signal; it is released
+ * after the consumer was called or when the signal is discarded.
+ */
+class Mailbox implements Consumer<Object>, Runnable {
+
+    /** Maximal number of messages delivered by one task. */
+    static final int MAX_DRAIN = 256;
+
+    private final Consumer<Object> consumer;
+    private final Executor executor;
+    private final Outbox outbox;
+
+    /** True if a task was submitted and it has not finished yet. */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Logger logger = Logger.getLogger(Mailbox.class.getName());
+
+    /**
+     * @param consumer
+     *            gets the messages
+     *
+     * @param executor
+     *            runs the delivery
+     *
+     * @param capacity
+     *            maximal number of waiting messages
+     *
+     * @param policy
+     *            what to do if there are too many waiting messages; the
+     *            disconnect policy discards the new message
+     */
+    Mailbox(Consumer<Object> consumer, Executor executor, int capacity,
+            OverflowPolicy policy) {
+        this.consumer = consumer;
+        this.executor = executor;
+        this.outbox = new Outbox(capacity, policy, Tools::nameOf,
+                Signal::release);
+    }
+
+    /**
+     * Queues the message; it returns immediately.
+     */
+    @Override
+    public void accept(Object message) {
+        if (message instanceof Signal) {
+            ((Signal)message).retain();
+        }
+        outbox.offer(message);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                logger.log(Level.WARNING, "Cannot deliver messages", e);
+            }
+        }
+    }
+
+    /**
+     * Delivers the waiting messages.
+     */
+    @Override
+    public void run() {
+        int count = 0;
+        Object message;
+        while (count < MAX_DRAIN && (message = outbox.dequeue()) != null) {
+            try {
+                consumer.accept(message);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Consumer failed", e);
+            }
+            Signal.release(message);
+            count++;
+        }
+        scheduled.set(false);
+        if (!outbox.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Returns true if the mailbox delivers to the given consumer.
+     */
+    boolean isFor(Consumer<Object> consumer) {
+        return this.consumer == consumer;
+    }
+
+    /**
+     * Returns the number of messages lost because the mailbox was full.
+     */
+    long getDropped() {
+        return outbox.getDropped();
+    }
+
+    /**
+     * Discards the waiting messages.
+     */
+    void clear() {
+        outbox.clear();
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * A ring buffer of messages in a memory mapped file, shared by processes on
+ * one host. There is a single writer, which never waits, and any number of
+ * readers, each with its own cursor. A reader which falls behind by more
+ * than the capacity is overrun; it detects it and continues with the newest
+ * messages.
+ *
+ * <p>The file begins with a header: magic number, capacity, closed flag and
+ * three positions, each on its own cache line. Positions are byte offsets
+ * from the beginning of the stream, the data offset is the position modulo
+ * the capacity. A record consists of the length (int) and the message
+ * bytes, aligned to eight bytes. A record which would cross the end of the
+ * data is preceded by a padding record.
+ *
+ * <ul>
+ *   <li>reserve: end of the record being written; the bytes up to reserve
+ *   minus capacity may be overwritten,</li>
+ *   <li>head: end of the last record written completely,</li>
+ *   <li>tail: beginning of the oldest record which was not overwritten.</li>
+ * </ul>
+ *
+ * <p>The writer publishes the reserve before it overwrites anything and the
+ * head after the record is written. A reader copies the record and then
+ * checks the reserve, so it never returns a record which was overwritten
+ * meanwhile. The head is written by a release store and read by an acquire
+ * load; the store of the reserve is followed by a store fence and its load
+ * is preceded by a load fence, like in a sequence lock. These are barriers
+ * of the processor, so they order the accesses of the other processes to
+ * the shared memory as well. The writer creates
+ * a new file each time, so that a reader which still maps the old one is
+ * never truncated.
+ */
+class MappedRing implements Closeable {
+
+    /** Default capacity, 4 MiB. */
+    static final int CAPACITY = 4 << 20;
+
+    private static final int MAGIC = 0x44524e47;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int CLOSED_OFFSET = 8;
+    private static final int RESERVE_OFFSET = 64;
+    private static final int HEAD_OFFSET = 128;
+    private static final int TAIL_OFFSET = 192;
+    private static final int HEADER = 256;
+
+    /** Length of a padding record. */
+    private static final int PADDING = -1;
+
+    private final File file;
+    private final RandomAccessFile access;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final Object fileKey;
+
+    /** Writer only: the head and the tail. */
+    private long head;
+    private long tail;
+
+    /** Ordered accesses to the positions in the mapped memory. */
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(
+            long[].class, ByteOrder.nativeOrder());
+
+    /** Ordered accesses to the magic number and to the closed flag. */
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(
+            int[].class, ByteOrder.nativeOrder());
+
+    private MappedRing(File file, RandomAccessFile access, int capacity)
+            throws IOException {
+        this.file = file;
+        this.access = access;
+        this.capacity = capacity;
+        this.buffer = access.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, HEADER + (long)capacity);
+        this.buffer.order(ByteOrder.nativeOrder());
+        this.fileKey = fileKey(file);
+    }
+
+    /**
+     * Creates a new empty ring for the writer; an existing file is deleted
+     * first.
+     *
+     * @param file
+     *            the ring file
+     *
+     * @param capacity
+     *            size of the data in bytes, a power of two
+     *
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    static MappedRing create(File file, int capacity) throws IOException {
+        if (capacity < 1024 || Integer.bitCount(capacity) != 1) {
+            throw new IOException("Capacity must be a power of two: " + capacity);
+        }
+        Files.deleteIfExists(file.toPath());
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.setLength(HEADER + (long)capacity);
+            MappedRing ring = new MappedRing(file, access, capacity);
+            ring.buffer.putInt(CAPACITY_OFFSET, capacity);
+            // the magic number is written last, it publishes the header
+            INTS.setRelease(ring.buffer, 0, MAGIC);
+            return ring;
+        } catch (IOException e) {
+            access.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a ring created by the writer, for reading.
+     *
+     * @throws IOException
+     *             if the file doesn't exist or it is not a ring
+     */
+    static MappedRing open(File file) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            if (access.length() < HEADER) {
+                throw new IOException("Not a ring file: " + file);
+            }
+            MappedByteBuffer header = access.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            header.order(ByteOrder.nativeOrder());
+            int magic = (int)INTS.getAcquire(header, 0);
+            int capacity = header.getInt(CAPACITY_OFFSET);
+            if (magic != MAGIC || Integer.bitCount(capacity) != 1
+                    || access.length() < HEADER + (long)capacity) {
+                throw new IOException("Not a ring file: " + file);
+            }
+            return new MappedRing(file, access, capacity);
+        } catch (IOException e) {
+            access.close();
+            throw e;
+        }
+    }
+
+    private static Object fileKey(File file) {
+        try {
+            return Files.readAttributes(file.toPath(),
+                    BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the maximal length of a message.
+     */
+    int getMaxLength() {
+        return capacity / 2;
+    }
+
+    private static int align(int length) {
+        return (4 + length + 7) & ~7;
+    }
+
+    private int offset(long position) {
+        return (int)(position & (capacity - 1));
+    }
+
+    /**
+     * Appends a message. Must be called by the writer only.
+     *
+     * @return false if the message is too long
+     */
+    boolean write(byte[] bytes) {
+        if (bytes.length > getMaxLength()) {
+            return false;
+        }
+        int size = align(bytes.length);
+        long position = head;
+        int offset = offset(position);
+        int padding = offset + size > capacity ? capacity - offset : 0;
+        long end = position + padding + size;
+        while (end - tail > capacity) {
+            int length = buffer.getInt(HEADER + offset(tail));
+            tail += length == PADDING
+                    ? capacity - offset(tail) : align(length);
+        }
+        LONGS.setRelease(buffer, TAIL_OFFSET, tail);
+        LONGS.setRelease(buffer, RESERVE_OFFSET, end);
+        // the reserve is visible before anything is overwritten
+        VarHandle.storeStoreFence();
+        if (padding > 0) {
+            buffer.putInt(HEADER + offset, PADDING);
+            offset = 0;
+        }
+        buffer.position(HEADER + offset + 4);
+        buffer.put(bytes);
+        buffer.putInt(HEADER + offset, bytes.length);
+        LONGS.setRelease(buffer, HEAD_OFFSET, end);
+        head = end;
+        return true;
+    }
+
+    /**
+     * Returns true if the writer has closed the ring, or if the file was
+     * replaced by a new one.
+     */
+    boolean isStale() {
+        return (int)INTS.getAcquire(buffer, CLOSED_OFFSET) != 0
+                || !Objects.equals(fileKey, fileKey(file));
+    }
+
+    /**
+     * Returns a new reader of the ring.
+     *
+     * @param oldest
+     *            if true, the reader begins with the oldest message in the
+     *            ring, otherwise with the next written one
+     */
+    Reader newReader(boolean oldest) {
+        return new Reader((long)LONGS.getAcquire(
+                buffer, oldest ? TAIL_OFFSET : HEAD_OFFSET));
+    }
+
+    /**
+     * Reads the messages with its own cursor. The object is not thread
+     * safe.
+     */
+    class Reader {
+
+        /** View of the data with its own position. */
+        private final ByteBuffer data = buffer.duplicate();
+
+        private long cursor;
+
+        /** How many times the reader was overrun by the writer. */
+        private long overruns;
+
+        private Reader(long cursor) {
+            this.cursor = cursor;
+        }
+
+        /**
+         * Returns the next message, or null if there is none.
+         */
+        byte[] read() {
+            while (true) {
+                long head = (long)LONGS.getAcquire(buffer, HEAD_OFFSET);
+                if (cursor == head) {
+                    return null;
+                } else if (head < cursor || head - cursor > capacity) {
+                    overrun(head);
+                    continue;
+                }
+                int offset = offset(cursor);
+                int length = buffer.getInt(HEADER + offset);
+                byte[] result = null;
+                long next;
+                if (length == PADDING) {
+                    next = cursor + capacity - offset;
+                } else if (length >= 0 && length <= capacity - offset - 4) {
+                    result = new byte[length];
+                    data.position(HEADER + offset + 4);
+                    data.get(result);
+                    next = cursor + align(length);
+                } else {
+                    next = -1;
+                }
+                // the record is read before the reserve is checked
+                VarHandle.loadLoadFence();
+                if (next < 0 || (long)LONGS.getAcquire(buffer, RESERVE_OFFSET)
+                        - cursor > capacity) {
+                    // overwritten while it was read
+                    overrun((long)LONGS.getAcquire(buffer, HEAD_OFFSET));
+                    continue;
+                }
+                cursor = next;
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+
+        private void overrun(long head) {
+            overruns++;
+            cursor = head;
+        }
+
+        long getOverruns() {
+            return overruns;
+        }
+
+    }
+
+    /**
+     * Closes the ring; if it was called by the writer, the readers find
+     * out that the ring is stale.
+     */
+    void closeWriter() throws IOException {
+        INTS.setRelease(buffer, CLOSED_OFFSET, 1);
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        access.close();
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of a dispatcher. The counters are striped, so that the threads of
+ * many clients may update them without contention, and nothing is
+ * allocated when they are updated.
+ */
+class Metrics implements DispatcherMetricsMXBean {
+
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final Histogram fanOut = new Histogram();
+    final Histogram latency = new Histogram();
+
+    private final Supplier<Map<String, Integer>> queueDepths;
+
+    /**
+     * @param queueDepths
+     *            returns the number of waiting messages for each client
+     */
+    Metrics(Supplier<Map<String, Integer>> queueDepths) {
+        this.queueDepths = queueDepths;
+    }
+
+    /**
+     * Counts a message written to a client and records its latency.
+     */
+    void sent(Object item) {
+        if (item instanceof Packet) {
+            messagesOut.increment();
+            latency.record(System.nanoTime() - ((Packet)item).getReceived());
+        }
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        return queueDepths.get();
+    }
+
+    @Override
+    public Map<String, Long> getFanOutTime() {
+        return summary(fanOut);
+    }
+
+    @Override
+    public Map<String, Long> getLatency() {
+        return summary(latency);
+    }
+
+    private static Map<String, Long> summary(Histogram histogram) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("count", histogram.getCount());
+        result.put("mean", Math.round(histogram.getMean()));
+        result.put("p50", histogram.getValueAtPercentile(50.0));
+        result.put("p90", histogram.getValueAtPercentile(90.0));
+        result.put("p99", histogram.getValueAtPercentile(99.0));
+        result.put("p99.9", histogram.getValueAtPercentile(99.9));
+        result.put("max", histogram.getMax());
+        return result;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append("messages in: ").append(getMessagesIn())
+                .append(", out: ").append(getMessagesOut())
+                .append("\nbytes in: ").append(getBytesIn())
+                .append(", out: ").append(getBytesOut())
+                .append("\nfan out [ns]: ").append(getFanOutTime())
+                .append("\nlatency [ns]: ").append(getLatency())
+                .append("\nqueue depths: ").append(getQueueDepths());
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return dump();
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Discards duplicate messages which come from peer dispatchers, see
+ * {@link Dispatcher#addPeer}. Each dispatcher numbers the messages of its
+ * own clients; the filter remembers which numbers of each origin were
+ * accepted within a sliding window below the highest one. Older numbers
+ * are discarded, so are the messages of the own origin. The object is not
+ * thread safe.
+ */
+class OriginFilter {
+
+    /** Default size of the window, a multiple of 64. */
+    static final int WINDOW = 4096;
+
+    /** Accepted numbers of one origin. */
+    private static class Window {
+
+        /** One bit for each number, indexed by the number modulo size. */
+        final long[] bits;
+
+        /** The highest accepted number. */
+        long highest;
+
+        Window(int size) {
+            bits = new long[size / 64];
+        }
+
+        boolean accept(long sequence) {
+            int size = bits.length * 64;
+            if (sequence > highest) {
+                if (sequence - highest >= size) {
+                    Arrays.fill(bits, 0L);
+                } else {
+                    for (long s = highest + 1; s < sequence; s++) {
+                        clear(s);
+                    }
+                }
+                highest = sequence;
+                set(sequence);
+                return true;
+            } else if (sequence <= highest - size || isSet(sequence)) {
+                return false;
+            }
+            set(sequence);
+            return true;
+        }
+
+        private int index(long sequence) {
+            return (int)Long.remainderUnsigned(sequence, bits.length * 64);
+        }
+
+        private boolean isSet(long sequence) {
+            int index = index(sequence);
+            return (bits[index >>> 6] & 1L << index) != 0;
+        }
+
+        private void set(long sequence) {
+            int index = index(sequence);
+            bits[index >>> 6] |= 1L << index;
+        }
+
+        private void clear(long sequence) {
+            int index = index(sequence);
+            bits[index >>> 6] &= ~(1L << index);
+        }
+
+    }
+
+    private final String self;
+    private final int size;
+    private final Map<String, Window> windows = new HashMap<>();
+
+    /**
+     * @param self
+     *            identifier of the own origin
+     *
+     * @param size
+     *            size of the window, a multiple of 64
+     */
+    OriginFilter(String self, int size) {
+        this.self = self;
+        this.size = size;
+    }
+
+    /**
+     * Returns true if the message with the given origin and number was
+     * not accepted yet; it is accepted now.
+     */
+    boolean accept(String origin, long sequence) {
+        if (origin.equals(self) || sequence <= 0) {
+            return false;
+        }
+        return windows.computeIfAbsent(origin, o -> new Window(size))
+                .accept(sequence);
+    }
+
+}
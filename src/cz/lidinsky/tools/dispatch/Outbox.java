@@ -0,0 +1,452 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A queue of messages waiting to be sent to one client. The number of
+ * messages is limited; if the limit is reached, the overflow policy decides
+ * which message is lost. The number of lost messages is counted. Each
+ * message which leaves the outbox other than by dequeue is passed to the
+ * discard action.
+ *
+ * <p>For the coalesce and conflate policies, the last queued message of
+ * each key is indexed, so it is replaced without going through the queue.
+ *
+ * <p>Control messages, like subscriptions, are kept apart, see
+ * {@link #queueControl}; they are never discarded by the policy.
+ *
+ * <p>If the messages are numbered, see {@link Dispatcher#setRetransmitRing},
+ * the client must learn which numbers were discarded on purpose, so that it
+ * doesn't ask for them again. The outbox remembers the ranges of the
+ * discarded numbers and returns a marker for each range before the next
+ * message with a greater number, or as soon as the outbox is empty. A
+ * replacing message then takes the place at the end of the queue, so the
+ * numbers leave the outbox in order, and a message with a lower number
+ * than the queued one of the same key, like a replayed one, never replaces
+ * it; it is discarded itself.
+ */
+class Outbox extends Queue<Object> {
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Function<Object, Object> keyExtractor;
+    private final Consumer<Object> discard;
+
+    /** Returns the number of a message, null if they are not numbered. */
+    private final ToLongFunction<Object> sequenceOf;
+
+    /** Creates the marker of a range of discarded numbers. */
+    private final BiFunction<Long, Long, Object> marker;
+
+    /**
+     * The last queued slot of each key, null if the policy doesn't replace
+     * messages. Guarded by the lock.
+     */
+    private final Map<Object, Slot> index;
+
+    /**
+     * The first and the last number of each range of discarded messages
+     * which the client was not told yet. Guarded by the lock.
+     */
+    private final TreeMap<Long, Long> skipped = new TreeMap<>();
+
+    /** Number of replaced slots which are still in the list. */
+    private int dead;
+
+    /** Control messages, they go first. Guarded by the lock. */
+    private final ArrayDeque<Object> control = new ArrayDeque<>();
+
+    /**
+     * A queued message which may be replaced by a newer one. The message
+     * is null if the slot was replaced by another one at the end.
+     */
+    private static final class Slot {
+
+        final Object key;
+        Object item;
+
+        Slot(Object key, Object item) {
+            this.key = key;
+            this.item = item;
+        }
+
+    }
+
+    /** Number of discarded messages. */
+    private volatile long dropped;
+
+    /**
+     * @param capacity
+     *            maximal number of messages
+     *
+     * @param policy
+     *            what to do if the outbox is full
+     *
+     * @param keyExtractor
+     *            returns the key of a message for the coalesce and
+     *            conflate policies; null key means that the message may
+     *            not be replaced
+     */
+    Outbox(int capacity, OverflowPolicy policy,
+            Function<Object, Object> keyExtractor) {
+        this(capacity, policy, keyExtractor, item -> {});
+    }
+
+    /**
+     * @param capacity
+     *            maximal number of messages
+     *
+     * @param policy
+     *            what to do if the outbox is full
+     *
+     * @param keyExtractor
+     *            returns the key of a message for the coalesce and
+     *            conflate policies; null key means that the message may
+     *            not be replaced
+     *
+     * @param discard
+     *            called for each message which is dropped, replaced or
+     *            cleared
+     */
+    Outbox(int capacity, OverflowPolicy policy,
+            Function<Object, Object> keyExtractor, Consumer<Object> discard) {
+        this(capacity, policy, keyExtractor, discard, null, null);
+    }
+
+    /**
+     * @param capacity
+     *            maximal number of messages
+     *
+     * @param policy
+     *            what to do if the outbox is full
+     *
+     * @param keyExtractor
+     *            returns the key of a message for the coalesce and
+     *            conflate policies; null key means that the message may
+     *            not be replaced
+     *
+     * @param discard
+     *            called for each message which is dropped, replaced or
+     *            cleared
+     *
+     * @param sequenceOf
+     *            returns the sequence number of a message, zero if it has
+     *            none; null if the messages are not numbered
+     *
+     * @param marker
+     *            returns the message which tells the client that the
+     *            messages with the numbers from the given range, inclusive,
+     *            were discarded
+     */
+    Outbox(int capacity, OverflowPolicy policy,
+            Function<Object, Object> keyExtractor, Consumer<Object> discard,
+            ToLongFunction<Object> sequenceOf,
+            BiFunction<Long, Long, Object> marker) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.keyExtractor = keyExtractor;
+        this.discard = discard;
+        this.sequenceOf = sequenceOf;
+        this.marker = marker;
+        this.index = policy == OverflowPolicy.COALESCE
+                || policy == OverflowPolicy.CONFLATE ? new HashMap<>() : null;
+    }
+
+    /**
+     * Adds a message at the end of the outbox, applying the overflow policy
+     * if the outbox is full.
+     *
+     * @param item
+     *            a message
+     *
+     * @return false if the outbox is full and the policy is disconnect; the
+     *            message is not queued in such a case
+     */
+    @Override
+    public boolean offer(Object item) {
+        lock.lock();
+        try {
+            Object key = index != null ? keyExtractor.apply(item) : null;
+            Slot slot = key != null ? index.get(key) : null;
+            boolean full = list.size() - dead >= capacity;
+            if (slot != null && policy == OverflowPolicy.CONFLATE) {
+                replace(slot, item);
+                return true;
+            }
+            if (full) {
+                dropped++;
+                switch (policy) {
+                    case DROP_NEWEST:
+                        skip(item);
+                        return true;
+                    case DISCONNECT:
+                        discard.accept(item);
+                        return false;
+                    case COALESCE:
+                        if (slot != null) {
+                            replace(slot, item);
+                            return true;
+                        }
+                        skip(poll());
+                        break;
+                    default:
+                        skip(poll());
+                }
+            }
+            append(key, item);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a control message, which is dequeued before any other message.
+     * It doesn't count toward the capacity and the overflow policy never
+     * discards it.
+     *
+     * @param item
+     *            a control message
+     */
+    public void queueControl(Object item) {
+        lock.lock();
+        try {
+            control.add(item);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the message at the end of the list. Must be called with the lock
+     * held.
+     */
+    private void append(Object key, Object item) {
+        if (key != null) {
+            Slot slot = new Slot(key, item);
+            index.put(key, slot);
+            super.queue(slot);
+        } else {
+            super.queue(item);
+        }
+    }
+
+    /**
+     * Replaces the queued message of the slot; the message keeps its place
+     * in the queue unless the messages are numbered. Must be called with
+     * the lock held.
+     */
+    private void replace(Slot slot, Object item) {
+        if (sequenceOf == null) {
+            discard.accept(slot.item);
+            slot.item = item;
+            return;
+        }
+        long sequence = sequenceOf.applyAsLong(item);
+        if (sequence > 0 && sequence < sequenceOf.applyAsLong(slot.item)) {
+            // an older message, sent again
+            skip(item);
+            return;
+        }
+        skip(slot.item);
+        slot.item = null;
+        index.remove(slot.key, slot);
+        if (++dead > list.size() / 2) {
+            list.removeIf(queued -> queued instanceof Slot
+                    && ((Slot)queued).item == null);
+            dead = 0;
+        }
+        append(slot.key, item);
+    }
+
+    /**
+     * Passes the message to the discard action and remembers its number.
+     * Must be called with the lock held.
+     */
+    private void skip(Object item) {
+        discard.accept(item);
+        long sequence = sequenceOf != null ? sequenceOf.applyAsLong(item) : 0;
+        if (sequence <= 0) {
+            return;
+        }
+        long from = sequence;
+        long to = sequence;
+        Map.Entry<Long, Long> lower = skipped.floorEntry(sequence);
+        if (lower != null && lower.getValue() >= sequence - 1) {
+            from = lower.getKey();
+            to = Math.max(to, lower.getValue());
+        }
+        Long upper = skipped.remove(to + 1);
+        if (upper != null) {
+            to = upper;
+        }
+        skipped.put(from, to);
+        notEmpty.signal();
+    }
+
+    /**
+     * Removes the first message from the list, or returns null if it is
+     * empty. Must be called with the lock held.
+     */
+    private Object poll() {
+        Object queued;
+        while ((queued = list.poll()) instanceof Slot) {
+            Slot slot = (Slot)queued;
+            if (slot.item != null) {
+                index.remove(slot.key, slot);
+                return slot.item;
+            }
+            dead--;
+        }
+        return queued;
+    }
+
+    /**
+     * Returns the first control message, or the first message, or the
+     * marker of discarded numbers which precede it, or null if there is
+     * nothing. Must be called with the lock held.
+     */
+    private Object next() {
+        if (!control.isEmpty()) {
+            return control.poll();
+        } else if (!skipped.isEmpty()) {
+            Object head = peek();
+            if (head == null
+                    || sequenceOf.applyAsLong(head) > skipped.firstKey()) {
+                Map.Entry<Long, Long> range = skipped.pollFirstEntry();
+                return marker.apply(range.getKey(), range.getValue());
+            }
+        }
+        return poll();
+    }
+
+    /**
+     * Returns the first message without removing it. Must be called with
+     * the lock held.
+     */
+    private Object peek() {
+        Object queued;
+        while ((queued = list.peek()) instanceof Slot) {
+            Slot slot = (Slot)queued;
+            if (slot.item != null) {
+                return slot.item;
+            }
+            list.poll();
+            dead--;
+        }
+        return queued;
+    }
+
+    @Override
+    public Object dequeue() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Object blockingDequeue() {
+        lock.lock();
+        try {
+            Object item;
+            while ((item = next()) == null) {
+                notEmpty.awaitUninterruptibly();
+            }
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all of the messages and passes them to the discard action.
+     */
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            Object item;
+            while ((item = poll()) != null) {
+                discard.accept(item);
+            }
+            while ((item = control.poll()) != null) {
+                discard.accept(item);
+            }
+            skipped.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as offer, the result is ignored.
+     */
+    @Override
+    public void queue(Object item) {
+        offer(item);
+    }
+
+    /**
+     * Returns the number of waiting messages, control messages included.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return list.size() - dead + control.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if there is neither a message nor a marker to dequeue.
+     */
+    @Override
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return list.size() == dead && skipped.isEmpty()
+                    && control.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages which were discarded because the
+     * outbox was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+/**
+ * What to do if a message should be sent to a client whose outbox is full.
+ */
+public enum OverflowPolicy {
+
+    /** The oldest message in the outbox is discarded. */
+    DROP_OLDEST,
+
+    /** The new message is discarded. */
+    DROP_NEWEST,
+
+    /**
+     * The new message replaces a queued message with the same key, for
+     * example the same signal name. If there is no such message, the oldest
+     * one is discarded.
+     */
+    COALESCE,
+
+    /**
+     * Each new message replaces a queued message with the same key even
+     * if the outbox is not full, so a client which does not keep up gets
+     * the newest value of each signal and the outbox holds at most one
+     * message per signal. A client which keeps up gets all of the
+     * messages. If the outbox is full and there is no message with the same
+     * key, the oldest one is discarded. If the messages are numbered, the
+     * newest value goes to the end of the outbox and the client is told
+     * which numbers were conflated, so it doesn't ask for them again, see
+     * {@link Dispatcher#setRetransmitRing}.
+     */
+    CONFLATE,
+
+    /** The client is disconnected. */
+    DISCONNECT
+
+}
@@ -0,0 +1,291 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * A message together with its encoded forms. Each message is encoded only
+ * once for each wire format and the same bytes are then written to all of
+ * the clients which use that format. The encoded bytes must not be
+ * modified.
+ *
+ * <p>A packet may also carry a raw frame, received in one of the formats
+ * and kept in a pooled buffer. Such a packet is forwarded without being
+ * parsed; the message is parsed only if somebody asks for it. The raw
+ * frame is reference counted, see {@link #retain} and {@link #release}.
+ * So is the message of a packet without a raw frame if it is a pooled
+ * {@link Signal}; the packet takes over the reference of its creator.
+ */
+final class Packet {
+
+    private volatile Object message;
+    private final Object key;
+
+    /** Encoded message for each wire format, indexed by the ordinal. */
+    private final AtomicReferenceArray<byte[]> encoded;
+
+    /** Received frame or null. */
+    private final PooledBuffer raw;
+
+    /** Format of the raw frame. */
+    private final WireFormat rawFormat;
+
+    /** Parses the raw frame. */
+    private final Function<ByteBuffer, Object> parser;
+
+    /** Sequence number of the message, zero if it has none. */
+    private long sequence;
+
+    /** When the message was received, see System.nanoTime. */
+    private long received = System.nanoTime();
+
+    /** True if the message was received from a peer dispatcher. */
+    private boolean forwarded;
+
+    /**
+     * Creates a packet for the given message.
+     *
+     * @param message
+     *            a JSON object
+     *
+     * @param key
+     *            key of the message, may be null
+     */
+    Packet(Object message, Object key) {
+        this(message, key, new AtomicReferenceArray<>(WireFormat.values().length),
+                null, null, null);
+    }
+
+    /**
+     * Creates a packet for the received frame which was not parsed. The
+     * packet takes over the reference to the buffer.
+     *
+     * @param raw
+     *            buffer with the whole frame
+     *
+     * @param format
+     *            format of the frame
+     *
+     * @param parser
+     *            returns the message of the frame, or null if the frame is
+     *            malformed
+     */
+    Packet(PooledBuffer raw, WireFormat format,
+            Function<ByteBuffer, Object> parser) {
+        this(null, null, new AtomicReferenceArray<>(WireFormat.values().length),
+                raw, format, parser);
+    }
+
+    private Packet(Object message, Object key,
+            AtomicReferenceArray<byte[]> encoded, PooledBuffer raw,
+            WireFormat rawFormat, Function<ByteBuffer, Object> parser) {
+        this.message = message;
+        this.key = key;
+        this.encoded = encoded;
+        this.raw = raw;
+        this.rawFormat = rawFormat;
+        this.parser = parser;
+    }
+
+    /**
+     * Returns a packet with the same message and the same encoded forms
+     * and with the given key. Both of the packets share the raw frame and
+     * its references.
+     */
+    Packet withKey(Object key) {
+        return new Packet(message, key, encoded, raw, rawFormat, parser)
+                .setSequence(sequence).setReceived(received)
+                .setForwarded(forwarded);
+    }
+
+    /**
+     * Returns the original message; the raw frame is parsed on the first
+     * call. The caller must hold a reference.
+     */
+    Object getMessage() {
+        Object result = message;
+        if (result == null && raw != null) {
+            result = parser.apply(raw.view());
+            message = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns false if the packet carries a raw frame which was not parsed
+     * yet.
+     */
+    boolean isParsed() {
+        return message != null || raw == null;
+    }
+
+    /**
+     * Returns the key of the message, see
+     * {@link Dispatcher#setKeyExtractor}.
+     */
+    Object getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the message encoded by the given codec. The message is encoded
+     * by the first caller, the others get the same bytes. The caller must
+     * hold a reference.
+     *
+     * @param codec
+     *            a codec, there must be at most one codec for each format
+     *
+     * @return encoded message, null if the codec doesn't support it
+     */
+    byte[] getBytes(Codec codec) {
+        int index = codec.getFormat().ordinal();
+        byte[] bytes = encoded.get(index);
+        if (bytes == null) {
+            bytes = raw != null && codec.getFormat() == rawFormat
+                    ? raw.toArray() : codec.encode(getMessage());
+            if (bytes != null && !encoded.compareAndSet(index, null, bytes)) {
+                bytes = encoded.get(index);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns a view of the raw frame if it is in the format of the given
+     * codec, null otherwise. The view may be written without any change,
+     * until the reference is released.
+     */
+    ByteBuffer getBuffer(Codec codec) {
+        return raw != null && codec.getFormat() == rawFormat ? raw.view() : null;
+    }
+
+    /**
+     * Returns the sequence number given to the message by the dispatcher,
+     * or zero.
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sets the sequence number of the message. The number must be already
+     * contained in the message itself.
+     *
+     * @return this object
+     */
+    Packet setSequence(long sequence) {
+        this.sequence = sequence;
+        return this;
+    }
+
+    /**
+     * Returns the value of System.nanoTime when the message was received,
+     * by default when the packet was created.
+     */
+    long getReceived() {
+        return received;
+    }
+
+    /**
+     * Sets the time when the message was received.
+     *
+     * @return this object
+     */
+    Packet setReceived(long received) {
+        this.received = received;
+        return this;
+    }
+
+    /**
+     * Returns true if the message was received from a peer dispatcher,
+     * so it is not sent to the other peers, see {@link Dispatcher#addPeer}.
+     */
+    boolean isForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * @return this object
+     */
+    Packet setForwarded(boolean forwarded) {
+        this.forwarded = forwarded;
+        return this;
+    }
+
+    /**
+     * Sets the encoded form of the message, for example the frame in which
+     * the message was received, so that it is forwarded as it is.
+     *
+     * @return this object
+     */
+    Packet setBytes(Codec codec, byte[] bytes) {
+        encoded.set(codec.getFormat().ordinal(), bytes);
+        return this;
+    }
+
+    /**
+     * Adds a reference to the raw frame or to the signal, if any.
+     */
+    void retain() {
+        if (raw != null) {
+            raw.retain();
+        } else if (message instanceof Signal) {
+            ((Signal)message).retain();
+        }
+    }
+
+    /**
+     * Releases a reference to the raw frame or to the signal, if any.
+     */
+    void release() {
+        if (raw != null) {
+            raw.release();
+        } else if (message instanceof Signal) {
+            ((Signal)message).release();
+        }
+    }
+
+    /**
+     * Releases the given item if it is a packet.
+     */
+    static void release(Object item) {
+        if (item instanceof Packet) {
+            ((Packet)item).release();
+        }
+    }
+
+    /**
+     * Returns the sequence number of the given item if it is a packet,
+     * zero otherwise.
+     */
+    static long sequenceOf(Object item) {
+        return item instanceof Packet ? ((Packet)item).sequence : 0;
+    }
+
+    /**
+     * Returns the key of the given item if it is a packet, null otherwise.
+     */
+    static Object keyOf(Object item) {
+        return item instanceof Packet ? ((Packet)item).key : null;
+    }
+
+}
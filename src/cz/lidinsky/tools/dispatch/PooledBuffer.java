@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import cz.lidinsky.tools.CommonException;
+import cz.lidinsky.tools.ExceptionCode;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer borrowed from the {@link BufferPool} together with the number of
+ * its references. The buffer goes back to the pool when the last reference
+ * is released, so the content must not be accessed by anyone who does not
+ * hold a reference.
+ */
+final class PooledBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.references = new AtomicInteger(1);
+    }
+
+    /**
+     * Returns the buffer itself; it is intended for the owner who fills it
+     * before the buffer is shared.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns a new view of the content, between zero and the limit of the
+     * buffer, with its own position.
+     */
+    ByteBuffer view() {
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        return view;
+    }
+
+    /**
+     * Returns a copy of the content.
+     */
+    byte[] toArray() {
+        byte[] result = new byte[buffer.limit()];
+        view().get(result);
+        return result;
+    }
+
+    /**
+     * Adds a reference.
+     */
+    void retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new CommonException()
+                    .setCode(ExceptionCode.ILLEGAL_STATE)
+                    .set("message", "The buffer was already released!");
+        }
+    }
+
+    /**
+     * Removes a reference; the last one returns the buffer into the pool.
+     */
+    void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            pool.recycle(buffer);
+        } else if (count < 0) {
+            throw new CommonException()
+                    .setCode(ExceptionCode.ILLEGAL_STATE)
+                    .set("message", "The buffer was already released!");
+        }
+    }
+
+}
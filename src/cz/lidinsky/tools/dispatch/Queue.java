@@ -19,30 +19,62 @@ package cz.lidinsky.tools.dispatch;
  */
 
 import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  *
  * FIFO data structure. This data structure is dedicated for information
- * exchange between threads. All of the methods are synchronized.
+ * exchange between threads. All of the methods are guarded by one lock.
+ * The lock is used instead of the object monitor, so the blocking dequeue
+ * does not pin the carrier thread if it is called from a virtual thread.
  *
  * @param <T>
  */
-public class Queue<T>
+public class Queue<T> implements Fifo<T>
 {
 
   /** The queue. */
   protected final LinkedList<T> list = new LinkedList<>();
 
+  /** Guards the list. */
+  protected final ReentrantLock lock = new ReentrantLock();
+
+  /** Signalled each time an item is added. */
+  protected final Condition notEmpty = lock.newCondition();
+
   /**
    *  Adds an item at the end of the queue.
    *
    *  @param item 
    *             an item to be added at the end of the queue
    */
-  public synchronized void queue(T item)
+  @Override
+  public void queue(T item)
+  {
+    lock.lock();
+    try {
+      list.add(item);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   *  Adds an item at the end of the queue if there is a room for it.
+   *  This queue is unbounded, so the item is always added.
+   *
+   *  @param item
+   *             an item to be added at the end of the queue
+   *
+   *  @return false if the item was not added
+   */
+  @Override
+  public boolean offer(T item)
   {
-    list.add(item);
-    notify();
+    queue(item);
+    return true;
   }
 
   /**
@@ -51,17 +83,29 @@ public class Queue<T>
    *  @return an item at the head of the queue or null if
    *             the queue is empty
    */
-  public synchronized T dequeue()
+  @Override
+  public T dequeue()
   {
-    return list.poll();
+    lock.lock();
+    try {
+      return list.poll();
+    } finally {
+      lock.unlock();
+    }
   }
   
   /**
    *  Removes all of the elements from this queue.
    */
-  public synchronized void clear()
+  @Override
+  public void clear()
   {
-    list.clear();
+    lock.lock();
+    try {
+      list.clear();
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -71,16 +115,18 @@ public class Queue<T>
    *  
    *  @return an item at the head of the queue 
    */
-  public synchronized T blockingDequeue()
+  @Override
+  public T blockingDequeue()
   {
-    while (list.isEmpty()) {
-      try { 
-          wait(); 
-      } catch (InterruptedException e) {
-      // it is OK
+    lock.lock();
+    try {
+      while (list.isEmpty()) {
+        notEmpty.awaitUninterruptibly();
       }
+      return list.poll();
+    } finally {
+      lock.unlock();
     }
-    return list.poll();
   }
 
   /**
@@ -89,9 +135,15 @@ public class Queue<T>
    *
    *  @return true if the queue is empty, false otherwise.
    */
-  public synchronized boolean isEmpty()
+  @Override
+  public boolean isEmpty()
   {
-    return list.isEmpty();
+    lock.lock();
+    try {
+      return list.isEmpty();
+    } finally {
+      lock.unlock();
+    }
   }
   
 }
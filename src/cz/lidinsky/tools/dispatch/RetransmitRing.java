@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.function.Consumer;
+
+/**
+ * The most recent sent packets, indexed by their sequence numbers. It is
+ * used to resend the messages which a client has missed without a full
+ * replay from the journal. The packets must be put in the order of their
+ * sequence numbers; the oldest packet is forgotten when the ring is full.
+ * The object is not thread safe.
+ */
+class RetransmitRing {
+
+    /** Default number of packets. */
+    static final int CAPACITY = 4096;
+
+    private final Packet[] packets;
+
+    /** Sequence number of the oldest packet in the ring. */
+    private long first;
+
+    /** Sequence number following the last packet in the ring. */
+    private long next;
+
+    /**
+     * @param capacity
+     *            maximal number of packets
+     */
+    RetransmitRing(int capacity) {
+        this.packets = new Packet[capacity];
+    }
+
+    /**
+     * Adds the packet, which must have the sequence number following the
+     * previous one; otherwise the ring is cleared first. The ring keeps a
+     * reference to the raw frame of the packet.
+     */
+    void put(Packet packet) {
+        long sequence = packet.getSequence();
+        if (sequence != next) {
+            clear();
+            first = sequence;
+        }
+        int index = (int)(sequence % packets.length);
+        if (packets[index] != null) {
+            packets[index].release();
+            first++;
+        }
+        packet.retain();
+        packets[index] = packet;
+        next = sequence + 1;
+    }
+
+    /**
+     * Returns the sequence number of the oldest packet; if the ring is
+     * empty, it returns the sequence number of the next packet.
+     */
+    long getFirst() {
+        return first;
+    }
+
+    /**
+     * Calls the action for all of the packets starting with the given
+     * sequence number, in order.
+     *
+     * @return false if the packet with the given sequence number was
+     *            already forgotten; nothing is done in such a case
+     */
+    boolean forEach(long from, Consumer<Packet> action) {
+        return forEach(from, Long.MAX_VALUE, action);
+    }
+
+    /**
+     * Calls the action for the packets with the sequence numbers from the
+     * given range, in order.
+     *
+     * @param to
+     *            the last sequence number, inclusive
+     *
+     * @return false if the packet with the given sequence number was
+     *            already forgotten; nothing is done in such a case
+     */
+    boolean forEach(long from, long to, Consumer<Packet> action) {
+        if (from < first) {
+            return false;
+        }
+        for (long sequence = from; sequence < next && sequence <= to; sequence++) {
+            action.accept(packets[(int)(sequence % packets.length)]);
+        }
+        return true;
+    }
+
+    /**
+     * Removes all of the packets and sets the sequence number of the next
+     * packet.
+     */
+    void reset(long sequence) {
+        clear();
+        first = sequence;
+        next = sequence;
+    }
+
+    /**
+     * Removes all of the packets.
+     */
+    void clear() {
+        for (int i = 0; i < packets.length; i++) {
+            if (packets[i] != null) {
+                packets[i].release();
+                packets[i] = null;
+            }
+        }
+        first = next;
+    }
+
+}
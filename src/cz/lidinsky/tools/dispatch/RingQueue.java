@@ -0,0 +1,212 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import cz.lidinsky.tools.CommonException;
+import cz.lidinsky.tools.ExceptionCode;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock free FIFO with preallocated slots. It may be used instead of
+ * the {@link Queue} wherever there is exactly one consuming thread. There
+ * may be either many producers or, if the queue is created as a single
+ * producer one, exactly one producing thread; the latter avoids the compare
+ * and swap on each insertion.
+ *
+ * <p>Each slot carries a sequence number which tells whether the slot is
+ * free for the producer or ready for the consumer. Nothing is allocated
+ * when an item is inserted or removed.
+ *
+ * <p>If the queue is full, the {@link #queue} method waits, according to
+ * the wait strategy, until there is a free slot. Use {@link #offer} to avoid
+ * waiting.
+ *
+ * @param <T>
+ */
+public class RingQueue<T> implements Fifo<T> {
+
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final boolean singleProducer;
+    private final WaitStrategy strategy;
+
+    /** Position of the next insertion. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Position of the next removal; written by the consumer only. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Consumer parked in the blocking dequeue, or null. */
+    private volatile Thread waiter;
+
+    /**
+     * @param capacity
+     *            maximal number of items; it is rounded up to the power of
+     *            two
+     *
+     * @param singleProducer
+     *            true if there is only one thread which inserts items
+     *
+     * @param strategy
+     *            what to do while waiting
+     */
+    public RingQueue(int capacity, boolean singleProducer,
+            WaitStrategy strategy) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new CommonException()
+                    .setCode(ExceptionCode.ILLEGAL_ARGUMENT)
+                    .set("message", "Capacity out of range!")
+                    .set("capacity", capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        size = size < capacity ? size << 1 : size;
+        this.items = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.singleProducer = singleProducer;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Inserts the item if there is a free slot.
+     *
+     * @param item
+     *            an item to be added at the end of the queue
+     *
+     * @return false if the queue is full
+     */
+    @Override
+    public boolean offer(T item) {
+        long position = tail.get();
+        while (true) {
+            int index = (int)position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (singleProducer) {
+                    tail.lazySet(position + 1);
+                    break;
+                } else if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            position = tail.get();
+        }
+        int index = (int)position & mask;
+        items[index] = item;
+        // volatile write, it must not be reordered with the waiter read
+        sequences.set(index, position + 1);
+        Thread parked = waiter;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an item at the end of the queue. If the queue is full, it waits
+     * until there is a free slot.
+     *
+     * @param item
+     *            an item to be added at the end of the queue
+     */
+    @Override
+    public void queue(T item) {
+        while (!offer(item)) {
+            strategy.idle();
+        }
+    }
+
+    /**
+     * Removes and returns an item from the head of the queue. It may be
+     * called by the consumer thread only.
+     *
+     * @return an item at the head of the queue or null if the queue is empty
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T dequeue() {
+        long position = head.get();
+        int index = (int)position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        T item = (T)items[index];
+        items[index] = null;
+        sequences.lazySet(index, position + mask + 1);
+        head.lazySet(position + 1);
+        return item;
+    }
+
+    /**
+     * Removes and returns an item from the head of the queue. If the queue
+     * is empty, this method waits, according to the wait strategy, until
+     * there is an item to return. It may be called by the consumer thread
+     * only.
+     *
+     * @return an item at the head of the queue
+     */
+    @Override
+    public T blockingDequeue() {
+        T item;
+        while ((item = dequeue()) == null) {
+            if (strategy == WaitStrategy.PARK) {
+                waiter = Thread.currentThread();
+                if (isEmpty()) {
+                    LockSupport.park(this);
+                }
+                waiter = null;
+            } else {
+                strategy.idle();
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Removes all of the items. It may be called by the consumer thread
+     * only.
+     */
+    @Override
+    public void clear() {
+        while (dequeue() != null) {
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        long position = head.get();
+        return sequences.get((int)position & mask) != position + 1;
+    }
+
+    /**
+     * Returns the number of slots.
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+}
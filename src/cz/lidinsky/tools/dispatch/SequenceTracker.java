@@ -0,0 +1,266 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Client side checking of the sequence numbers of the received messages,
+ * see {@link Dispatcher#setRetransmitRing}. Duplicate messages are
+ * discarded. If a message is missing, the subsequent messages are held
+ * back, the missing ones are requested from the dispatcher and all of them
+ * are delivered in order once the gap is filled. Messages which cannot be
+ * sent again are reported as lost. Messages which the dispatcher has
+ * discarded on purpose, because the client did not keep up, see
+ * {@link Outbox}, are skipped without being requested or reported.
+ *
+ * <p>The numbers are checked only after the sync control message, which
+ * follows the snapshot. Gap detection may be disabled, because a client
+ * which has subscribed some topics doesn't get all of the numbers; the
+ * duplicates are discarded anyway. The object is not thread safe.
+ *
+ * <p>After a reconnect, see {@link #reconnected}, the messages which were
+ * sent while the client was disconnected are requested at the sync.
+ *
+ * <p>By default, the dispatcher is expected to send all of the messages
+ * following the requested one. If the subsequent messages come by other
+ * way, like the multicast, just the gaps are requested, one at a time,
+ * see {@link #setRangeRequests}.
+ */
+class SequenceTracker {
+
+    /** Default maximal number of held back messages. */
+    static final int MAX_PENDING = 10000;
+
+    private final Consumer<Object> delivery;
+    private final LongConsumer resend;
+    private final BiConsumer<Long, Long> lost;
+    private final int maxPending;
+
+    /**
+     * Held back messages by their sequence numbers; a range of skipped
+     * numbers is held back as its last number at its first one.
+     */
+    private final TreeMap<Long, Object> pending = new TreeMap<>();
+
+    /** Sequence number of the next message, zero until the sync. */
+    private long expected;
+
+    private boolean gapDetection = true;
+
+    /** Messages up to this sequence number were already requested. */
+    private long requested;
+
+    /** True between a reconnect and the following sync. */
+    private boolean resuming;
+
+    /** Request just the missing messages. */
+    private boolean rangeRequests;
+
+    /**
+     * @param delivery
+     *            receives the messages in order
+     *
+     * @param resend
+     *            asks the dispatcher to send the messages again, starting
+     *            with the given sequence number
+     *
+     * @param lost
+     *            gets the first and the last sequence number of messages
+     *            which were lost
+     *
+     * @param maxPending
+     *            if more messages are held back, the missing ones are
+     *            considered lost
+     */
+    SequenceTracker(Consumer<Object> delivery, LongConsumer resend,
+            BiConsumer<Long, Long> lost, int maxPending) {
+        this.delivery = delivery;
+        this.resend = resend;
+        this.lost = lost;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Enables or disables the gap detection; held back messages are
+     * delivered when it is disabled.
+     */
+    void setGapDetection(boolean gapDetection) {
+        this.gapDetection = gapDetection;
+        while (!gapDetection && !pending.isEmpty()) {
+            skipGap();
+        }
+    }
+
+    /**
+     * If true, the resend asks just for the messages up to
+     * {@link #getRequested}; the next gap is requested once the previous
+     * one is filled.
+     */
+    void setRangeRequests(boolean rangeRequests) {
+        this.rangeRequests = rangeRequests;
+    }
+
+    /**
+     * Returns the sequence number of the last requested message; it is
+     * the end of the range while the resend is called.
+     */
+    long getRequested() {
+        return requested;
+    }
+
+    /**
+     * Returns the sequence number of the next expected message, or zero.
+     */
+    long getExpected() {
+        return expected;
+    }
+
+    /**
+     * Tells that the client has connected again. The messages received
+     * before the next sync are discarded and the sync requests all of the
+     * messages following the last delivered one, unless the gap detection
+     * is disabled.
+     */
+    void reconnected() {
+        resuming = gapDetection && expected > 0;
+    }
+
+    /**
+     * Processes a received message.
+     */
+    void received(Object object) {
+        if (object instanceof Signal) {
+            track(object, ((Signal)object).getSequence());
+            return;
+        } else if (!(object instanceof JSONObject)) {
+            delivery.accept(object);
+            return;
+        }
+        JSONObject message = (JSONObject)object;
+        if (message.has(Dispatcher.SYNC)) {
+            long last = message.getLong(Dispatcher.SYNC);
+            if (resuming && last >= expected) {
+                requested = last;
+                resend.accept(expected);
+            } else {
+                expected = last + 1;
+            }
+            resuming = false;
+            drain();
+        } else if (message.has(Dispatcher.LOST)) {
+            JSONArray range = message.getJSONArray(Dispatcher.LOST);
+            long to = range.getLong(1);
+            if (expected > 0 && to >= expected) {
+                lost.accept(Math.max(range.getLong(0), expected), to);
+                expected = to + 1;
+                drain();
+            }
+        } else if (message.has(Dispatcher.SKIPPED)) {
+            JSONArray range = message.getJSONArray(Dispatcher.SKIPPED);
+            skip(range.getLong(0), range.getLong(1));
+        } else {
+            track(message, message.optLong(Dispatcher.SEQUENCE));
+        }
+    }
+
+    /**
+     * Processes a received message which is not a control message.
+     */
+    private void track(Object message, long sequence) {
+        if (resuming && sequence > 0) {
+            // the snapshot, it is sent again after the sync
+        } else if (sequence <= 0 || expected == 0) {
+            delivery.accept(message);
+        } else if (sequence == expected
+                || sequence > expected && !gapDetection) {
+            delivery.accept(message);
+            expected = sequence + 1;
+            drain();
+        } else if (sequence > expected) {
+            if (pending.isEmpty() && expected > requested) {
+                requested = sequence - 1;
+                resend.accept(expected);
+            }
+            pending.put(sequence, message);
+            if (pending.size() > maxPending) {
+                skipGap();
+            }
+        }
+        // otherwise it is a duplicate
+    }
+
+    /**
+     * Processes the range of numbers of the messages which the dispatcher
+     * has discarded on purpose. If some messages before the range are
+     * missing, the range is held back like a message.
+     */
+    private void skip(long from, long to) {
+        if (resuming || expected == 0 || to < expected) {
+            return;
+        } else if (from <= expected || !gapDetection) {
+            expected = to + 1;
+            drain();
+        } else if (!pending.containsKey(from)) {
+            track(to, from);
+        }
+    }
+
+    /**
+     * Reports the messages before the first held back one as lost and
+     * delivers the held back messages.
+     */
+    private void skipGap() {
+        if (!pending.isEmpty()) {
+            long first = pending.firstKey();
+            lost.accept(expected, first - 1);
+            expected = first;
+            drain();
+        }
+    }
+
+    /**
+     * Delivers the held back messages which follow without a gap. In the
+     * range requests mode, the next gap is requested.
+     */
+    private void drain() {
+        while (!pending.isEmpty() && pending.firstKey() <= expected) {
+            Map.Entry<Long, Object> entry = pending.pollFirstEntry();
+            if (entry.getValue() instanceof Long) {
+                // skipped range
+                expected = Math.max(expected, (Long)entry.getValue() + 1);
+            } else if (entry.getKey() == expected) {
+                delivery.accept(entry.getValue());
+                expected++;
+            }
+        }
+        if (rangeRequests && gapDetection && !pending.isEmpty()
+                && expected > requested) {
+            requested = pending.firstKey() - 1;
+            resend.accept(expected);
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A part of the clients of the dispatcher together with their
+ * subscriptions. The shard hands the messages over to its clients. Every
+ * message for a client, and every change of its subscriptions, goes through
+ * the shard, so they are applied in the order in which they were posted.
+ *
+ * <p>A threaded shard has its own thread and an inbox, a single producer
+ * {@link RingQueue}; only the broadcast thread of the dispatcher may post
+ * to it. The subscriptions are accessed by the shard thread only, so no lock
+ * is needed. A shard which is not threaded does everything in the thread
+ * which posts.
+ *
+ * <p>Clients which receive the published messages by multicast, see
+ * {@link Dispatcher#setMulticast}, are skipped by the publish; they get just
+ * the messages sent to them directly, regardless of their subscriptions.
+ *
+ * <p>Peer dispatchers, see {@link Dispatcher#addPeer}, are skipped by the
+ * publish of the messages which were received from a peer.
+ */
+class Shard implements Runnable {
+
+    /** Capacity of the inbox of a threaded shard. */
+    static final int CAPACITY = 65536;
+
+    private final Subscriptions subscriptions = new Subscriptions();
+    private final Set<Endpoint> multicast = new HashSet<>();
+    private final Set<Endpoint> peers = new HashSet<>();
+    private final RingQueue<Object> inbox;
+    private final Histogram fanOut;
+    private final Logger logger;
+
+    /** Queued to stop the shard thread. */
+    private static final Object STOP = new Object();
+
+    /**
+     * @param threaded
+     *            if true, the messages are handed over by the shard thread,
+     *            see {@link #run}
+     *
+     * @param fanOut
+     *            records the time of handing each message over
+     *
+     * @param logger
+     *            logger of the dispatcher
+     */
+    Shard(boolean threaded, Histogram fanOut, Logger logger) {
+        this.inbox = threaded
+                ? new RingQueue<>(CAPACITY, true, WaitStrategy.PARK) : null;
+        this.fanOut = fanOut;
+        this.logger = logger;
+    }
+
+    /**
+     * Sends the packet to all of the clients of the shard which are
+     * interested in it. The shard takes over the reference of the caller.
+     */
+    void publish(Packet packet) {
+        post(packet);
+    }
+
+    /**
+     * Adds a client; it gets the given packets before any published one.
+     * The shard takes over the references to the packets.
+     */
+    void join(Endpoint client, List<Packet> snapshot) {
+        post((Runnable)() -> {
+            subscriptions.add(client);
+            snapshot.forEach(client::send);
+        });
+    }
+
+    /**
+     * Removes the client and closes it once more, which releases the
+     * messages it might have got after it was closed.
+     */
+    void leave(Endpoint client) {
+        post((Runnable)() -> {
+            subscriptions.remove(client);
+            multicast.remove(client);
+            peers.remove(client);
+            try {
+                client.close();
+            } catch (Exception e) {
+                logger.log(Level.FINE, null, e);
+            }
+        });
+    }
+
+    void subscribe(Endpoint client, String pattern) {
+        post((Runnable)() -> subscriptions.subscribe(client, pattern));
+    }
+
+    void unsubscribe(Endpoint client, String pattern) {
+        post((Runnable)() -> subscriptions.unsubscribe(client, pattern));
+    }
+
+    /**
+     * Replaces all of the subscriptions of the client, see
+     * {@link Subscriptions#replace}.
+     */
+    void interest(Endpoint client, Set<String> patterns) {
+        post((Runnable)() -> subscriptions.replace(client, patterns));
+    }
+
+    /**
+     * Marks the client as a peer dispatcher.
+     */
+    void peer(Endpoint client) {
+        post((Runnable)() -> peers.add(client));
+    }
+
+    /**
+     * Starts or stops skipping the client by the publish.
+     */
+    void multicast(Endpoint client, boolean enabled) {
+        post((Runnable)() -> {
+            if (enabled) {
+                multicast.add(client);
+            } else {
+                multicast.remove(client);
+            }
+        });
+    }
+
+    /**
+     * Sends the packet to one client of the shard. The shard takes over the
+     * reference of the caller.
+     *
+     * @param filter
+     *            if true, the packet is sent only if the client is
+     *            interested in it or if it is a multicast client
+     */
+    void send(Endpoint client, Packet packet, boolean filter) {
+        post((Runnable)() -> {
+            Object key = packet.getKey();
+            if (!filter || multicast.contains(client) || subscriptions.accepts(
+                    client, key == null ? null : key.toString())) {
+                client.send(packet);
+            } else {
+                packet.release();
+            }
+        });
+    }
+
+    /**
+     * Runs the task by the shard, after all of the items posted before.
+     */
+    void execute(Runnable task) {
+        post(task);
+    }
+
+    private void post(Object item) {
+        if (inbox != null) {
+            inbox.queue(item);
+        } else {
+            process(item);
+        }
+    }
+
+    private void process(Object item) {
+        try {
+            if (item instanceof Packet) {
+                route((Packet)item);
+            } else {
+                ((Runnable)item).run();
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, null, e);
+        }
+    }
+
+    private void route(Packet packet) {
+        long start = System.nanoTime();
+        Object key = packet.getKey();
+        boolean forwarded = packet.isForwarded() && !peers.isEmpty();
+        subscriptions.route(key == null ? null : key.toString(), client -> {
+            if ((multicast.isEmpty() || !multicast.contains(client))
+                    && !(forwarded && peers.contains(client))) {
+                // the reference is released by the outbox or by the writer
+                packet.retain();
+                client.send(packet);
+            }
+        });
+        fanOut.record(System.nanoTime() - start);
+        packet.release();
+    }
+
+    /**
+     * The loop of the shard thread.
+     */
+    @Override
+    public void run() {
+        Object item;
+        while ((item = inbox.blockingDequeue()) != STOP) {
+            process(item);
+        }
+        while ((item = inbox.dequeue()) != null) {
+            Packet.release(item);
+        }
+    }
+
+    /**
+     * Stops the shard thread, if any.
+     */
+    void close() {
+        if (inbox != null) {
+            inbox.queue(STOP);
+        }
+    }
+
+}
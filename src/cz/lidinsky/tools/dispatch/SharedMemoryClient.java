@@ -0,0 +1,217 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Receives the messages of a dispatcher on the same host through shared
+ * memory, see {@link Dispatcher#setSharedMemory}. It reads the ring file
+ * written by the dispatcher, so there is no socket and no system call per
+ * message. The dispatcher doesn't wait for the readers; a reader which
+ * falls behind by more than the capacity of the ring skips to the newest
+ * messages, see {@link #getOverruns}. The messages are sent in the other
+ * direction through {@link Client}.
+ *
+ * <p>A reader thread polls the ring and calls the consumers. When the
+ * dispatcher is restarted, the client opens the new ring file.
+ */
+public class SharedMemoryClient {
+
+    /** How often the reader checks whether the ring was replaced, in ns. */
+    private static final long CHECK_PERIOD = 1_000_000_000L;
+
+    private final File file;
+    private final CopyOnWriteArrayList<Consumer<Object>> consumers;
+    private final Logger logger;
+    private MappedRing ring;
+    private WaitStrategy waitStrategy = WaitStrategy.PARK;
+    private boolean oldest;
+    private volatile boolean closed;
+
+    /** True if the reader thread was started, it closes the ring then. */
+    private boolean started;
+    private volatile long overruns;
+
+    /**
+     * Opens the ring file of the dispatcher.
+     *
+     * @param file
+     *            the file given to the dispatcher
+     *
+     * @throws IOException
+     *             if the file doesn't exist or it is not a ring
+     */
+    public SharedMemoryClient(File file) throws IOException {
+        this.file = file;
+        this.consumers = new CopyOnWriteArrayList<>();
+        this.logger = Logger.getLogger(getClass().getName());
+        this.ring = MappedRing.open(file);
+    }
+
+    /**
+     * Selects what the reader does while there is no message. Busy spinning
+     * gives the lowest latency, it burns one core though. Parking is the
+     * default.
+     *
+     * @return this object
+     */
+    public SharedMemoryClient setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    /**
+     * If true, the reader begins with the oldest message which is still in
+     * the ring, otherwise with the first message written after start. It
+     * must be set before start.
+     *
+     * @return this object
+     */
+    public SharedMemoryClient setHistory(boolean oldest) {
+        this.oldest = oldest;
+        return this;
+    }
+
+    /**
+     * Adds a consumer which is called by the reader thread for each
+     * message.
+     */
+    public void addConsumer(Consumer<Object> consumer) {
+        consumers.addIfAbsent(consumer);
+    }
+
+    public void removeConsumer(Consumer<Object> consumer) {
+        consumers.remove(consumer);
+    }
+
+    /**
+     * Starts the reader thread.
+     */
+    public synchronized void start() {
+        if (closed) {
+            return;
+        }
+        started = true;
+        MappedRing.Reader reader = ring.newReader(oldest);
+        Tools.startThread(() -> readLoop(reader), "dispatch-shared-memory", false);
+    }
+
+    /**
+     * Returns how many times the reader was overrun by the dispatcher and
+     * skipped some messages.
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Stops the reader thread; the ring is closed by the reader thread, or
+     * right away if it was not started.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (!started) {
+            try {
+                ring.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, null, e);
+            }
+        }
+    }
+
+    private void readLoop(MappedRing.Reader reader) {
+        long checked = System.nanoTime();
+        while (!closed) {
+            byte[] bytes = reader.read();
+            if (bytes != null) {
+                consume(bytes);
+                continue;
+            }
+            overruns = reader.getOverruns();
+            if (System.nanoTime() - checked > CHECK_PERIOD) {
+                checked = System.nanoTime();
+                if (ring.isStale() && reopen()) {
+                    // all of the messages in the new ring are new
+                    reader = ring.newReader(true);
+                    continue;
+                }
+            }
+            waitStrategy.idle();
+        }
+        try {
+            ring.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, null, e);
+        }
+    }
+
+    /**
+     * Opens the new ring file, returns false if it is not available yet.
+     */
+    private boolean reopen() {
+        try {
+            MappedRing opened = MappedRing.open(file);
+            if (opened.isStale()) {
+                opened.close();
+                return false;
+            }
+            ring.close();
+            ring = opened;
+            logger.log(Level.INFO, "Shared memory ring opened again");
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Cannot open the shared memory ring", e);
+            return false;
+        }
+    }
+
+    private void consume(byte[] bytes) {
+        Object message;
+        try {
+            message = new JSONTokener(
+                    new String(bytes, StandardCharsets.UTF_8)).nextValue();
+        } catch (JSONException e) {
+            logger.log(Level.WARNING, "Malformed message in the ring", e);
+            return;
+        }
+        if (!(message instanceof JSONObject)
+                || ((JSONObject)message).has(Dispatcher.SYNC)) {
+            return;
+        }
+        for (Consumer<Object> consumer : consumers) {
+            try {
+                consumer.accept(message);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Consumer failed", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,331 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import cz.lidinsky.tools.CommonException;
+import cz.lidinsky.tools.ExceptionCode;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONObject;
+
+/**
+ * One update of a signal: its name, time stamp, validity and value. It is
+ * a compact alternative to the JSON object with the same fields, for
+ * example
+ * <code>{"name":"a","timestamp":1476000000000,"valid":true,"value":1.5}</code>,
+ * which needs a hash map for each update. The codecs write and read the
+ * signals directly; the binary format has its own frame for them, see
+ * {@link BinaryCodec}, the JSON formats use the JSON object above. Signals
+ * decoded from the JSON formats are JSON objects.
+ *
+ * <p>The name is kept as a small identifier; the names are interned in
+ * a dictionary shared by the whole JVM. Names received from the network
+ * may take only a part of it, see {@link #MAX_REMOTE_NAMES}, so that the
+ * remote clients cannot exhaust it.
+ *
+ * <p>Signals are taken from a pool, see {@link #obtain}, and their
+ * references are counted like those of the pooled buffers. The one who
+ * obtains a signal holds the only reference; sending the signal hands the
+ * reference over. A received signal is valid only until the consumer
+ * returns, unless the consumer retains it. A signal which is never released
+ * is just left to the garbage collector.
+ */
+public final class Signal {
+
+    /** Maximal number of free signals in the pool. */
+    static final int MAX_FREE = 4096;
+
+    /**
+     * Maximal number of names in the dictionary for a name received from
+     * the network to be interned; the rest is left for the local code.
+     */
+    static final int MAX_REMOTE_NAMES = Dictionary.MAX_SIZE / 2;
+
+    /** Names of all of the signals. */
+    private static final Dictionary NAMES = new Dictionary();
+
+    /** Free signals, guarded by the array itself. */
+    private static final Signal[] POOL = new Signal[MAX_FREE];
+    private static int poolSize;
+
+    private final AtomicInteger references = new AtomicInteger();
+    private int nameId;
+    private long timestamp;
+    private boolean valid;
+    private double value;
+    private long sequence;
+    private String origin;
+    private long originSequence;
+
+    private Signal() {
+    }
+
+    /**
+     * Returns a signal from the pool, a new one if the pool is empty. Its
+     * fields are cleared and the caller holds the only reference.
+     */
+    public static Signal obtain() {
+        Signal result = null;
+        synchronized (POOL) {
+            if (poolSize > 0) {
+                result = POOL[--poolSize];
+                POOL[poolSize] = null;
+            }
+        }
+        if (result == null) {
+            result = new Signal();
+        }
+        result.nameId = 0;
+        result.timestamp = 0;
+        result.valid = false;
+        result.value = 0.0;
+        result.sequence = 0;
+        result.origin = null;
+        result.originSequence = 0;
+        result.references.set(1);
+        return result;
+    }
+
+    /**
+     * Returns the number of free signals in the pool.
+     */
+    static int getFree() {
+        synchronized (POOL) {
+            return poolSize;
+        }
+    }
+
+    /**
+     * Sets all of the fields.
+     *
+     * @return this object
+     */
+    public Signal set(String name, long timestamp, boolean valid, double value) {
+        setName(name);
+        this.timestamp = timestamp;
+        this.valid = valid;
+        this.value = value;
+        return this;
+    }
+
+    /**
+     * Sets the name; it is interned, see {@link #getNameId}.
+     *
+     * @return this object
+     *
+     * @throws CommonException
+     *             if there are too many distinct names
+     */
+    public Signal setName(String name) {
+        int id = NAMES.intern(name);
+        if (id < 0) {
+            throw new CommonException()
+                .setCode(ExceptionCode.ILLEGAL_STATE)
+                .set("message", "Too many signal names!")
+                .set("name", name);
+        }
+        this.nameId = id;
+        return this;
+    }
+
+    public String getName() {
+        return NAMES.get(nameId);
+    }
+
+    /**
+     * Returns the identifier of the name; it is the same for all of the
+     * signals with the same name in this JVM.
+     */
+    public int getNameId() {
+        return nameId;
+    }
+
+    /**
+     * Sets the name by its identifier, see {@link #getNameId}.
+     *
+     * @return this object
+     */
+    public Signal setNameId(int nameId) {
+        if (nameId < 0 || nameId >= NAMES.size()) {
+            throw new CommonException()
+                .setCode(ExceptionCode.ILLEGAL_STATE)
+                .set("message", "Unknown signal name!")
+                .set("id", nameId);
+        }
+        this.nameId = nameId;
+        return this;
+    }
+
+    /**
+     * Returns the identifier of the given name, see {@link #getNameId}, or
+     * -1 if there are too many names.
+     */
+    static int intern(String name) {
+        return NAMES.intern(name);
+    }
+
+    /**
+     * Returns the identifier of the given name received from the network,
+     * see {@link #getNameId}, or -1 if the names received from the network
+     * already fill their part of the dictionary.
+     */
+    static int internRemote(String name) {
+        return NAMES.intern(name, MAX_REMOTE_NAMES);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return this object
+     */
+    public Signal setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return this object
+     */
+    public Signal setValid(boolean valid) {
+        this.valid = valid;
+        return this;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @return this object
+     */
+    public Signal setValue(double value) {
+        this.value = value;
+        return this;
+    }
+
+    /**
+     * Returns the sequence number given to the signal by the dispatcher,
+     * or zero, see {@link Dispatcher#setRetransmitRing}.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    Signal setSequence(long sequence) {
+        this.sequence = sequence;
+        return this;
+    }
+
+    /**
+     * Returns the identifier of the dispatcher which has received the
+     * signal from its publisher, or null, see {@link Dispatcher#addPeer}.
+     */
+    String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Returns the number given to the signal by its origin.
+     */
+    long getOriginSequence() {
+        return originSequence;
+    }
+
+    Signal setOrigin(String origin, long originSequence) {
+        this.origin = origin;
+        this.originSequence = originSequence;
+        return this;
+    }
+
+    /**
+     * Adds a reference.
+     *
+     * @return this object
+     */
+    public Signal retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new CommonException()
+                    .setCode(ExceptionCode.ILLEGAL_STATE)
+                    .set("message", "The signal was already released!");
+        }
+        return this;
+    }
+
+    /**
+     * Removes a reference; the last one returns the signal into the pool.
+     */
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            synchronized (POOL) {
+                if (poolSize < MAX_FREE) {
+                    POOL[poolSize++] = this;
+                }
+            }
+        } else if (count < 0) {
+            throw new CommonException()
+                    .setCode(ExceptionCode.ILLEGAL_STATE)
+                    .set("message", "The signal was already released!");
+        }
+    }
+
+    /**
+     * Releases the given object if it is a signal.
+     */
+    static void release(Object object) {
+        if (object instanceof Signal) {
+            ((Signal)object).release();
+        }
+    }
+
+    /**
+     * Returns the signal as a JSON text; a value which is not finite is
+     * written as null.
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(96)
+                .append("{\"name\":").append(JSONObject.quote(getName()))
+                .append(",\"timestamp\":").append(timestamp)
+                .append(",\"valid\":").append(valid)
+                .append(",\"value\":");
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            result.append("null");
+        } else {
+            result.append(value);
+        }
+        if (sequence > 0) {
+            result.append(",\"").append(Dispatcher.SEQUENCE).append("\":")
+                    .append(sequence);
+        }
+        if (origin != null) {
+            result.append(",\"").append(Dispatcher.ORIGIN).append("\":")
+                    .append(JSONObject.quote(origin))
+                    .append(",\"").append(Dispatcher.ORIGIN_SEQUENCE).append("\":")
+                    .append(originSequence);
+        }
+        return result.append('}').toString();
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Routing table which says which endpoints are interested in a message
+ * with the given topic. Topic is a dot separated signal name, for example
+ * <code>plant1.boiler.temperature</code>.
+ *
+ * <p>A pattern is either an exact topic, or a prefix followed by the
+ * wildcard, like <code>plant1.boiler.*</code>, which matches all of the
+ * topics that start with <code>plant1.boiler.</code>. The sole wildcard
+ * matches any topic. Exact topics are kept in a hash map, prefixes in a
+ * trie of the topic segments, so the cost of routing depends on the
+ * topic length and on the number of matching endpoints only.
+ *
+ * <p>An endpoint that has never subscribed receives all of the messages.
+ * Messages without a topic are delivered to all of the endpoints. The
+ * object is not thread safe.
+ */
+class Subscriptions {
+
+    /**
+     * Field of a control message which subscribes the pattern given as its
+     * value, for example <code>{"subscribe":"plant1.boiler.*"}</code>.
+     */
+    static final String SUBSCRIBE = "subscribe";
+
+    /** Field of a control message which cancels a subscription. */
+    static final String UNSUBSCRIBE = "unsubscribe";
+
+    /** The wildcard pattern suffix. */
+    static final String WILDCARD = "*";
+
+    /** A node of the prefix trie. */
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>();
+        final Set<Endpoint> subscribers = new HashSet<>();
+
+        boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+
+    /** Endpoints which have not subscribed anything. */
+    private final Set<Endpoint> unfiltered = new HashSet<>();
+
+    /** Patterns subscribed by each endpoint. */
+    private final Map<Endpoint, Set<String>> patterns = new HashMap<>();
+
+    private final Map<String, Set<Endpoint>> exact = new HashMap<>();
+
+    private final Node root = new Node();
+
+    /** Used to remove duplicates during routing. */
+    private final Set<Endpoint> matched = new HashSet<>();
+
+    /**
+     * Adds a new endpoint, which receives all of the messages until it
+     * subscribes something.
+     */
+    void add(Endpoint endpoint) {
+        unfiltered.add(endpoint);
+    }
+
+    /**
+     * Removes the endpoint together with all of its subscriptions.
+     */
+    void remove(Endpoint endpoint) {
+        unfiltered.remove(endpoint);
+        Set<String> subscribed = patterns.remove(endpoint);
+        if (subscribed != null) {
+            for (String pattern : subscribed) {
+                removePattern(endpoint, pattern);
+            }
+        }
+    }
+
+    /**
+     * From now on, the endpoint receives messages with topics matching the
+     * given pattern. The first subscription stops delivery of all of the
+     * other messages.
+     */
+    void subscribe(Endpoint endpoint, String pattern) {
+        unfiltered.remove(endpoint);
+        if (!patterns.computeIfAbsent(endpoint, e -> new HashSet<>())
+                .add(pattern)) {
+            return;
+        }
+        if (isPrefix(pattern)) {
+            Node node = root;
+            for (String segment : segments(pattern)) {
+                node = node.children.computeIfAbsent(segment, s -> new Node());
+            }
+            node.subscribers.add(endpoint);
+        } else {
+            exact.computeIfAbsent(pattern, p -> new HashSet<>()).add(endpoint);
+        }
+    }
+
+    /**
+     * Cancels the subscription of the given pattern.
+     */
+    void unsubscribe(Endpoint endpoint, String pattern) {
+        Set<String> subscribed = patterns.get(endpoint);
+        if (subscribed != null && subscribed.remove(pattern)) {
+            removePattern(endpoint, pattern);
+        }
+    }
+
+    /**
+     * Replaces all of the subscriptions of the endpoint with the given
+     * patterns. Unlike the subscribe, an empty set stops delivery of all
+     * of the messages which have a topic.
+     */
+    void replace(Endpoint endpoint, Set<String> subscribed) {
+        Set<String> previous = patterns.get(endpoint);
+        if (previous != null) {
+            for (String pattern : new ArrayList<>(previous)) {
+                if (!subscribed.contains(pattern)) {
+                    unsubscribe(endpoint, pattern);
+                }
+            }
+        }
+        for (String pattern : subscribed) {
+            subscribe(endpoint, pattern);
+        }
+        unfiltered.remove(endpoint);
+        patterns.computeIfAbsent(endpoint, e -> new HashSet<>());
+    }
+
+    /**
+     * Calls the given action for each endpoint interested in the topic;
+     * each endpoint is called at most once.
+     *
+     * @param topic
+     *            topic of the message, null means all of the endpoints
+     *
+     * @param action
+     *            a code to be called for each interested endpoint
+     */
+    void route(String topic, Consumer<Endpoint> action) {
+        unfiltered.forEach(action);
+        if (topic == null) {
+            patterns.keySet().forEach(action);
+            return;
+        }
+        matched.clear();
+        Set<Endpoint> subscribers = exact.get(topic);
+        if (subscribers != null) {
+            matched.addAll(subscribers);
+        }
+        Node node = root;
+        int start = 0;
+        while (node != null && start < topic.length()) {
+            matched.addAll(node.subscribers);
+            int end = topic.indexOf('.', start);
+            if (end < 0) {
+                break;
+            }
+            node = node.children.get(topic.substring(start, end));
+            start = end + 1;
+        }
+        matched.forEach(action);
+    }
+
+    /**
+     * Returns true if the endpoint is interested in the given topic.
+     *
+     * @param topic
+     *            topic of a message, null matches any endpoint
+     */
+    boolean accepts(Endpoint endpoint, String topic) {
+        Set<String> subscribed = patterns.get(endpoint);
+        if (topic == null || subscribed == null) {
+            return topic == null || unfiltered.contains(endpoint);
+        }
+        for (String pattern : subscribed) {
+            if (pattern.equals(topic) || pattern.equals(WILDCARD)
+                    || isPrefix(pattern) && topic.startsWith(
+                            pattern.substring(0, pattern.length() - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if some endpoint has subscribed, so the topic of each
+     * message matters.
+     */
+    boolean isFiltering() {
+        return !patterns.isEmpty();
+    }
+
+    private static boolean isPrefix(String pattern) {
+        return pattern.equals(WILDCARD) || pattern.endsWith("." + WILDCARD);
+    }
+
+    /**
+     * Returns segments of the prefix pattern without the wildcard.
+     */
+    private static String[] segments(String pattern) {
+        if (pattern.equals(WILDCARD)) {
+            return new String[0];
+        }
+        return pattern.substring(0, pattern.length() - 2).split("\\.");
+    }
+
+    private void removePattern(Endpoint endpoint, String pattern) {
+        if (isPrefix(pattern)) {
+            removePrefix(root, segments(pattern), 0, endpoint);
+        } else {
+            Set<Endpoint> subscribers = exact.get(pattern);
+            if (subscribers != null) {
+                subscribers.remove(endpoint);
+                if (subscribers.isEmpty()) {
+                    exact.remove(pattern);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the endpoint from the trie and prunes empty nodes.
+     */
+    private static void removePrefix(Node node, String[] segments, int index,
+            Endpoint endpoint) {
+        if (index == segments.length) {
+            node.subscribers.remove(endpoint);
+            return;
+        }
+        Node child = node.children.get(segments[index]);
+        if (child != null) {
+            removePrefix(child, segments, index + 1, endpoint);
+            if (child.isEmpty()) {
+                node.children.remove(segments[index]);
+            }
+        }
+    }
+
+}
@@ -5,10 +5,121 @@
  */
 package cz.lidinsky.tools.dispatch;
 
+import java.lang.reflect.Method;
+import java.util.logging.Logger;
+import org.json.JSONObject;
+
 /**
  *
  * @author jilm
  */
 class Tools {
-    
+
+    /**
+     * Name of the system property which, if set to true, makes the
+     * dispatcher and the client use virtual threads by default.
+     */
+    static final String VIRTUAL_THREADS_PROPERTY
+            = "cz.lidinsky.tools.dispatch.virtualThreads";
+
+    /** Thread.ofVirtual(), null if the runtime does not support it. */
+    private static final Method OF_VIRTUAL;
+
+    /** Thread.Builder.name(String) */
+    private static final Method NAME;
+
+    /** Thread.Builder.unstarted(Runnable) */
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            // virtual threads are not available, platform threads are used
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    /**
+     * Returns the value of the {@link #VIRTUAL_THREADS_PROPERTY}.
+     */
+    static boolean isVirtualThreadsDefault() {
+        return Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+    }
+
+    /**
+     * Returns true if the runtime supports virtual threads.
+     */
+    static boolean isVirtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Returns the value of the <code>name</code> field if the given message
+     * is a JSON object, the name of a {@link Signal}, null otherwise. It is
+     * the default key extractor, signals are identified by their names.
+     */
+    static Object nameOf(Object message) {
+        if (message instanceof Signal) {
+            return ((Signal)message).getName();
+        }
+        return message instanceof JSONObject
+                ? ((JSONObject)message).opt("name") : null;
+    }
+
+    /**
+     * Returns a shallow copy of the given message, so that fields may be
+     * added to it without touching the original, which belongs to its
+     * sender.
+     */
+    static JSONObject copyOf(JSONObject message) {
+        JSONObject result = new JSONObject();
+        for (String key : message.keySet()) {
+            result.put(key, message.opt(key));
+        }
+        return result;
+    }
+
+    /**
+     * Creates and starts a new thread.
+     *
+     * @param task
+     *            a code to be run by the thread
+     *
+     * @param name
+     *            name of the thread
+     *
+     * @param virtual
+     *            if true, a virtual thread is created; if the runtime doesn't
+     *            support virtual threads, a platform thread is created
+     *            instead
+     *
+     * @return started thread
+     */
+    static Thread startThread(Runnable task, String name, boolean virtual) {
+        Thread thread = null;
+        if (virtual && isVirtualThreadsSupported()) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                thread = (Thread)UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                Logger.getLogger(Tools.class.getName()).warning(
+                        "Cannot create a virtual thread: " + e.getMessage());
+            }
+        }
+        if (thread == null) {
+            thread = new Thread(task, name);
+        }
+        thread.start();
+        return thread;
+    }
+
 }
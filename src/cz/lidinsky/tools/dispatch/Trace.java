@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Tracing of individual messages. Events are logged at the finest level,
+ * so tracing costs just one level check unless it is enabled. Even then,
+ * only every n-th message is traced, see {@link #SAMPLE_PROPERTY}, and the
+ * message is not formatted until a handler publishes the record.
+ *
+ * <p>Each record carries the event, the endpoint and the message as its
+ * parameters, so a handler may process them without parsing the text.
+ */
+final class Trace {
+
+    /**
+     * Name of the system property with the sampling period; only every n-th
+     * message is traced. The default is one, every message.
+     */
+    static final String SAMPLE_PROPERTY = "cz.lidinsky.tools.dispatch.traceSample";
+
+    /** Traced events. */
+    enum Event {
+
+        /** A message was received from an endpoint. */
+        RECEIVED,
+
+        /** A message is going to be sent to the subscribed endpoints. */
+        DISPATCHED
+
+    }
+
+    private final Logger logger;
+    private final int sample;
+
+    /** Counts the messages while the tracing is enabled. */
+    private final AtomicLong count = new AtomicLong();
+
+    Trace(Logger logger) {
+        this(logger, Integer.getInteger(SAMPLE_PROPERTY, 1));
+    }
+
+    /**
+     * @param logger
+     *            logger which gets the records
+     *
+     * @param sample
+     *            only every n-th message is traced
+     */
+    Trace(Logger logger, int sample) {
+        this.logger = logger;
+        this.sample = Math.max(1, sample);
+    }
+
+    /**
+     * Returns true if the messages are traced.
+     */
+    boolean isEnabled() {
+        return logger.isLoggable(Level.FINEST);
+    }
+
+    /**
+     * Traces the given event if the tracing is enabled and the message is
+     * sampled.
+     *
+     * @param event
+     *            what has happened
+     *
+     * @param endpoint
+     *            name of the endpoint, may be null
+     *
+     * @param message
+     *            the message; a packet whose frame was not parsed yet is
+     *            not parsed for tracing
+     */
+    void message(Event event, Object endpoint, Object message) {
+        if (!logger.isLoggable(Level.FINEST)
+                || sample > 1 && count.getAndIncrement() % sample != 0) {
+            return;
+        }
+        if (message instanceof Packet) {
+            Packet packet = (Packet)message;
+            message = packet.isParsed() ? packet.getMessage() : "(raw frame)";
+        }
+        LogRecord record = new LogRecord(Level.FINEST, "{0} {1}: {2}");
+        record.setLoggerName(logger.getName());
+        record.setParameters(new Object[] {event, endpoint, message});
+        logger.log(record);
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Determines what a thread does while it waits for a {@link RingQueue}
+ * to become non empty, or non full respectively.
+ */
+public enum WaitStrategy {
+
+    /**
+     * Busy spinning; the lowest latency, but it burns one core per waiting
+     * thread.
+     */
+    SPIN,
+
+    /**
+     * The thread yields the processor between the attempts.
+     */
+    YIELD,
+
+    /**
+     * The thread is parked. The consumer is woken up by the producer, a
+     * producer waiting for a free slot polls in short intervals.
+     */
+    PARK;
+
+    /** How long a producer sleeps if the queue is full. */
+    private static final long PARK_NANOS = 10_000L;
+
+    /**
+     * Waits a while before the next attempt. Used by the producers.
+     */
+    void idle() {
+        switch (this) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Decoder of one connection which first finds out the wire format.
+ *
+ * <p>On the dispatcher side, the format is given by the first received
+ * byte, see {@link WireFormat#of}. On the client side, the format is known
+ * in advance; if it has a preface, all of the bytes up to the preface echoed
+ * by the dispatcher are skipped, because the dispatcher may have sent some
+ * JSON messages before it received the preface of the client.
+ */
+class WireDecoder implements Codec.Decoder {
+
+    private final Codec[] codecs;
+    private final Codec expected;
+    private final Consumer<WireFormat> selected;
+    private Codec.Decoder decoder;
+
+    /**
+     * Decoder for the dispatcher side.
+     *
+     * @param codecs
+     *            codec for each of the formats, indexed by the format
+     *            ordinal number
+     *
+     * @param selected
+     *            called once, when the format of the connection is known
+     */
+    WireDecoder(Codec[] codecs, Consumer<WireFormat> selected) {
+        this.codecs = codecs;
+        this.expected = null;
+        this.selected = selected;
+    }
+
+    /**
+     * Decoder for the client side.
+     *
+     * @param codec
+     *            the codec the client has chosen
+     */
+    WireDecoder(Codec codec) {
+        this.codecs = null;
+        this.expected = codec;
+        this.selected = null;
+        if (!codec.getFormat().hasPreface()) {
+            decoder = codec.newDecoder();
+        }
+    }
+
+    @Override
+    public Object decode(ByteBuffer buffer) throws IOException {
+        if (decoder == null) {
+            if (expected != null) {
+                skipToPreface(buffer);
+            } else if (buffer.hasRemaining()) {
+                WireFormat format
+                        = WireFormat.of(buffer.get(buffer.position()) & 0xff);
+                if (format.hasPreface()) {
+                    buffer.get();
+                }
+                decoder = codecs[format.ordinal()].newDecoder();
+                selected.accept(format);
+            }
+            if (decoder == null) {
+                return null;
+            }
+        }
+        return decoder.decode(buffer);
+    }
+
+    private void skipToPreface(ByteBuffer buffer) {
+        WireFormat format = expected.getFormat();
+        while (buffer.hasRemaining()) {
+            if (WireFormat.of(buffer.get() & 0xff) == format) {
+                decoder = expected.newDecoder();
+                return;
+            }
+        }
+    }
+
+}
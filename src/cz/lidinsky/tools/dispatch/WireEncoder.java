@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Encoder of the packets for one connection of the dispatcher. It uses the
+ * JSON format until the format requested by the client is selected; the
+ * first message written after the switch is preceded by the preface of the
+ * new format, which tells the client where the new format starts.
+ */
+class WireEncoder implements Function<Object, byte[]> {
+
+    private final Codec[] codecs;
+    private volatile WireFormat requested;
+    private WireFormat current;
+    private Codec codec;
+    private UnaryOperator<byte[]> writer;
+
+    /**
+     * @param codecs
+     *            codec for each of the formats, indexed by the format
+     *            ordinal number
+     */
+    WireEncoder(Codec[] codecs) {
+        this.codecs = codecs;
+        this.requested = WireFormat.JSON;
+        this.current = null;
+    }
+
+    /**
+     * Selects the format of the subsequent messages. It may be called by
+     * any thread.
+     */
+    void select(WireFormat format) {
+        requested = format;
+    }
+
+    /**
+     * Returns the bytes to be written for the given packet.
+     *
+     * @param item
+     *            a packet, other objects are ignored
+     *
+     * @return bytes to write or null if there is nothing to write
+     */
+    @Override
+    public byte[] apply(Object item) {
+        boolean preface = update();
+        byte[] bytes = encode(item);
+        return preface ? prefaced(bytes) : bytes;
+    }
+
+    /**
+     * Stores the buffers to be written for the given packet into the array.
+     * The raw frame of the packet is used as it is if it is in the format
+     * of the connection. It needs at most two free slots.
+     *
+     * @param item
+     *            a packet, other objects are ignored
+     *
+     * @param target
+     *            buffers to be written by one gathering write
+     *
+     * @param index
+     *            index of the first free slot
+     *
+     * @return index of the first free slot after the stored buffers
+     */
+    int gather(Object item, ByteBuffer[] target, int index) {
+        boolean preface = update();
+        ByteBuffer raw = item instanceof Packet
+                ? ((Packet)item).getBuffer(codec) : null;
+        if (raw == null) {
+            byte[] bytes = encode(item);
+            if (preface) {
+                bytes = prefaced(bytes);
+            }
+            if (bytes != null) {
+                target[index++] = ByteBuffer.wrap(bytes);
+            }
+        } else {
+            // the writer of a format with raw frames prepends nothing
+            if (preface) {
+                target[index++] = ByteBuffer.wrap(prefaced(null));
+            }
+            target[index++] = raw;
+        }
+        return index;
+    }
+
+    /**
+     * Switches to the requested format.
+     *
+     * @return true if the preface must be sent
+     */
+    private boolean update() {
+        WireFormat format = requested;
+        if (format == current) {
+            return false;
+        }
+        current = format;
+        codec = codecs[format.ordinal()];
+        writer = codec.newWriter();
+        return format.hasPreface();
+    }
+
+    private byte[] encode(Object item) {
+        byte[] bytes = item instanceof Packet
+                ? ((Packet)item).getBytes(codec) : null;
+        return bytes == null ? null : writer.apply(bytes);
+    }
+
+    private byte[] prefaced(byte[] bytes) {
+        byte[] prefaced = new byte[bytes == null ? 1 : bytes.length + 1];
+        prefaced[0] = (byte)current.getPreface();
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, prefaced, 1, bytes.length);
+        }
+        return prefaced;
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.lidinsky.tools.dispatch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The way messages are represented on the wire. The client selects the
+ * format by the first byte it sends after the connection is established;
+ * the dispatcher then uses the same format for the messages it sends to
+ * that client.
+ */
+public enum WireFormat {
+
+    /**
+     * Concatenated JSON texts without any framing; the default. The client
+     * sends no preface, the first byte belongs to the first message.
+     */
+    JSON(-1),
+
+    /**
+     * Compact binary frames with interned names, see {@link BinaryCodec}.
+     */
+    BINARY(1),
+
+    /**
+     * JSON texts in length prefixed frames, see {@link FramedJsonCodec}.
+     */
+    FRAMED_JSON(2);
+
+    private final int preface;
+
+    WireFormat(int preface) {
+        this.preface = preface;
+    }
+
+    /**
+     * Returns the format selected by the first byte of a connection.
+     *
+     * @param first
+     *            the first received byte
+     *
+     * @return selected format; JSON if the byte is not a known preface, in
+     *            such a case the byte belongs to the first message
+     */
+    static WireFormat of(int first) {
+        for (WireFormat format : values()) {
+            if (format.preface >= 0 && format.preface == first) {
+                return format;
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * Returns true if the first byte of the connection is a preface which
+     * is not a part of any message.
+     */
+    boolean hasPreface() {
+        return preface >= 0;
+    }
+
+    /**
+     * Returns the preface byte, or -1 if the format has no preface.
+     */
+    int getPreface() {
+        return preface;
+    }
+
+    /**
+     * Writes the preface which selects this format, if any.
+     */
+    void writePreface(OutputStream output) throws IOException {
+        if (hasPreface()) {
+            output.write(preface);
+        }
+    }
+
+    /**
+     * Creates a new instance of the codec with the default message size
+     * limit.
+     */
+    Codec newCodec() {
+        return newCodec(FrameDecoder.MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Creates a new instance of the codec.
+     *
+     * @param maxMessageSize
+     *            maximal size of a received message in bytes; it is not
+     *            enforced by the unframed JSON format
+     */
+    Codec newCodec(int maxMessageSize) {
+        switch (this) {
+            case BINARY:
+                return new BinaryCodec(new Dictionary(), maxMessageSize);
+            case FRAMED_JSON:
+                return new FramedJsonCodec(maxMessageSize);
+            default:
+                return new JsonCodec();
+        }
+    }
+
+}
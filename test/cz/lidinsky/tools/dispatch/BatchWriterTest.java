@@ -0,0 +1,57 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BatchWriterTest {
+
+  /** Counts the flushes. */
+  private static class Output extends ByteArrayOutputStream {
+    int flushes;
+    @Override
+    public void flush() {
+      flushes++;
+    }
+  }
+
+  private Output output;
+  private Queue<Object> queue;
+
+  @Before
+  public void init() {
+    output = new Output();
+    queue = new Queue<>();
+    for (int i = 0; i < 10; i++) {
+      queue.queue(Integer.toString(i));
+    }
+  }
+
+  private static byte[] encode(Object object) {
+    return object.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testAllQueuedInOneFlush() throws IOException {
+    BatchWriter writer = new BatchWriter(output, BatchWriterTest::encode,
+        BatchWriter.MAX_BATCH, BatchWriter.MAX_LATENCY);
+    assertEquals(10, writer.writeBatch(queue));
+    assertEquals(1, output.flushes);
+    assertEquals("0123456789", output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testMaxBatch() throws IOException {
+    BatchWriter writer = new BatchWriter(output, BatchWriterTest::encode,
+        4, BatchWriter.MAX_LATENCY);
+    assertEquals(4, writer.writeBatch(queue));
+    assertEquals(4, writer.writeBatch(queue));
+    assertEquals(2, writer.writeBatch(queue));
+    assertEquals(3, output.flushes);
+    assertEquals("0123456789", output.toString("UTF-8"));
+  }
+
+}
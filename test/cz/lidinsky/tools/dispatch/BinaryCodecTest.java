@@ -0,0 +1,171 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.UnaryOperator;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BinaryCodecTest {
+
+  private BinaryCodec codec;
+  private UnaryOperator<byte[]> writer;
+  private Codec.Decoder decoder;
+
+  @Before
+  public void init() {
+    codec = new BinaryCodec(new Dictionary());
+    writer = codec.newWriter();
+    decoder = codec.newDecoder();
+  }
+
+  private static JSONObject signal(double value) {
+    return new JSONObject()
+        .put("class", "control4j.Signal")
+        .put("name", "plant1.boiler.temperature")
+        .put("valid", true)
+        .put("value", value);
+  }
+
+  private byte[] write(JSONObject message) {
+    return writer.apply(codec.encode(message));
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    JSONObject message = signal(45.689d)
+        .put("count", -123456789012L)
+        .put("small", 7)
+        .put("nested", new JSONObject().put("a", JSONObject.NULL))
+        .put("array", new JSONArray().put(1).put("x").put(false))
+        .put("text", new String(new char[100]).replace('\0', 'x'));
+    Object decoded = decoder.decode(ByteBuffer.wrap(write(message)));
+    assertEquals(message.toString(), decoded.toString());
+  }
+
+  @Test
+  public void testDefinitionsAreSentOnce() throws IOException {
+    byte[] first = write(signal(1.0));
+    byte[] second = write(signal(2.0));
+    assertTrue(second.length < first.length);
+    // the encoded message doesn't depend on the connection
+    assertArrayEquals(second, codec.encode(signal(2.0)));
+    ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length);
+    buffer.put(first).put(second).flip();
+    assertEquals(1.0, ((JSONObject)decoder.decode(buffer)).getDouble("value"), 0.0);
+    assertEquals(2.0, ((JSONObject)decoder.decode(buffer)).getDouble("value"), 0.0);
+    assertNull(decoder.decode(buffer));
+  }
+
+  @Test
+  public void testValuesAreNotInterned() throws IOException {
+    Dictionary dictionary = new Dictionary();
+    codec = new BinaryCodec(dictionary);
+    writer = codec.newWriter();
+    write(signal(1.0).put("text", "a"));
+    int size = dictionary.size();
+    for (int i = 0; i < 100; i++) {
+      write(signal(1.0).put("text", "value" + i));
+    }
+    assertEquals(size, dictionary.size());
+    JSONObject message = signal(2.0).put("text", "b");
+    assertEquals(message.toString(), codec.newDecoder().decode(
+        ByteBuffer.wrap(codec.newWriter().apply(codec.encode(message)))).toString());
+  }
+
+  @Test
+  public void testSignal() throws IOException {
+    Signal signal = Signal.obtain()
+        .set("plant1.boiler.temperature", 1476000000000L, true, 45.689)
+        .setSequence(42);
+    byte[] first = writer.apply(codec.encode(signal));
+    byte[] second = writer.apply(codec.encode(signal.setValid(false)));
+    assertTrue(second.length < first.length);
+    ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length);
+    buffer.put(first).put(second).flip();
+    Signal decoded = (Signal)decoder.decode(buffer);
+    assertEquals("plant1.boiler.temperature", decoded.getName());
+    assertEquals(signal.getNameId(), decoded.getNameId());
+    assertEquals(1476000000000L, decoded.getTimestamp());
+    assertTrue(decoded.isValid());
+    assertEquals(45.689, decoded.getValue(), 0.0);
+    assertEquals(42, decoded.getSequence());
+    assertFalse(((Signal)decoder.decode(buffer)).isValid());
+  }
+
+  @Test
+  public void testSignalOrigin() throws IOException {
+    Signal signal = Signal.obtain().set("a", 1000L, true, 1.0)
+        .setOrigin("node1", 1L << 50);
+    Signal decoded = (Signal)decoder.decode(
+        ByteBuffer.wrap(writer.apply(codec.encode(signal))));
+    assertEquals("node1", decoded.getOrigin());
+    assertEquals(1L << 50, decoded.getOriginSequence());
+    assertEquals(1.0, decoded.getValue(), 0.0);
+  }
+
+  /** Returns the definition of the name and a signal frame with it. */
+  private static ByteBuffer remoteSignal(int id, String name) {
+    ByteArrayOutputStream definition = new ByteArrayOutputStream();
+    FrameDecoder.writeVarint(definition, id);
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    definition.write(bytes, 0, bytes.length);
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    FrameDecoder.writeVarint(body, id);
+    FrameDecoder.writeVarint(body, 0);
+    FrameDecoder.writeVarint(body, 1000);
+    body.write(2);
+    body.write(ByteBuffer.allocate(8).putDouble(1.5).array(), 0, 8);
+    byte[] first = FrameDecoder.toFrame(BinaryCodec.DEFINITION_FRAME, definition);
+    byte[] second = FrameDecoder.toFrame(BinaryCodec.SIGNAL_FRAME, body);
+    return (ByteBuffer)ByteBuffer.allocate(first.length + second.length)
+        .put(first).put(second).flip();
+  }
+
+  @Test
+  public void testTooManyRemoteNames() throws IOException {
+    Object decoded = null;
+    int id = 0;
+    while (!(decoded instanceof JSONObject) && id <= Signal.MAX_REMOTE_NAMES) {
+      decoded = decoder.decode(remoteSignal(id, "remote." + id++));
+      Signal.release(decoded);
+    }
+    JSONObject message = (JSONObject)decoded;
+    assertEquals("remote." + (id - 1), message.getString("name"));
+    assertEquals(1.5, message.getDouble("value"), 0.0);
+    // the local code may still use new names
+    Signal.obtain().setName("local.after.remote").release();
+  }
+
+  @Test
+  public void testByteByByte() throws IOException {
+    byte[] bytes = write(signal(3.0));
+    Object decoded = null;
+    for (int i = 0; i < bytes.length; i++) {
+      assertNull(decoded);
+      decoded = decoder.decode(ByteBuffer.wrap(bytes, i, 1));
+    }
+    assertEquals(signal(3.0).toString(), decoded.toString());
+  }
+
+  @Test
+  public void testLateConnection() throws IOException {
+    write(signal(1.0));
+    // a new connection gets all of the definitions with its first message
+    UnaryOperator<byte[]> late = codec.newWriter();
+    Object decoded = codec.newDecoder().decode(
+        ByteBuffer.wrap(late.apply(codec.encode(signal(4.0)))));
+    assertEquals(signal(4.0).toString(), decoded.toString());
+  }
+
+  @Test(expected=IOException.class)
+  public void testUnknownFrame() throws IOException {
+    decoder.decode(ByteBuffer.wrap(new byte[] {9, 0}));
+  }
+
+}
@@ -0,0 +1,40 @@
+package cz.lidinsky.tools.dispatch;
+
+import cz.lidinsky.tools.CommonException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+  @Test
+  public void testAcquire() {
+    BufferPool pool = new BufferPool(1024, 4);
+    PooledBuffer buffer = pool.acquire(300);
+    assertEquals(512, buffer.buffer().capacity());
+    assertEquals(300, buffer.buffer().limit());
+    assertTrue(buffer.buffer().isDirect());
+    assertEquals(5000, pool.acquire(5000).buffer().capacity());
+  }
+
+  @Test
+  public void testRecycle() {
+    BufferPool pool = new BufferPool(1024, 4);
+    PooledBuffer buffer = pool.acquire(100);
+    buffer.retain();
+    buffer.release();
+    assertEquals(0, pool.getFree());
+    buffer.release();
+    assertEquals(1, pool.getFree());
+    assertSame(buffer.buffer(), pool.acquire(200).buffer());
+    assertEquals(0, pool.getFree());
+  }
+
+  @Test(expected = CommonException.class)
+  public void testReleased() {
+    PooledBuffer buffer = new BufferPool().acquire(10);
+    buffer.release();
+    buffer.retain();
+  }
+
+}
@@ -0,0 +1,229 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class FederationTest {
+
+  private final List<Dispatcher> dispatchers = new ArrayList<>();
+  private int[] ports;
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /** Starts the dispatchers, each one connected to all of the previous. */
+  private void start(int nodes) throws IOException {
+    ports = new int[nodes];
+    for (int i = 0; i < nodes; i++) {
+      ports[i] = freePort();
+    }
+    for (int i = 0; i < nodes; i++) {
+      Dispatcher dispatcher = new Dispatcher(ports[i]).setNodeId("node" + i);
+      for (int j = 0; j < i; j++) {
+        dispatcher.addPeer("localhost", ports[j]);
+      }
+      dispatcher.start();
+      dispatcher.listen();
+      dispatchers.add(dispatcher);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    dispatchers.forEach(Dispatcher::close);
+  }
+
+  private static Client connect(int port) throws Exception {
+    for (int i = 0; ; i++) {
+      try {
+        return new Client("localhost", port);
+      } catch (IOException e) {
+        if (i == 50) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  private static BlockingQueue<Object> received(Dispatcher.LocalClient client) {
+    BlockingQueue<Object> result = new LinkedBlockingQueue<>();
+    // a signal is valid only during the call
+    client.addConsumer(message -> result.add(message instanceof Signal
+        ? new JSONObject(message.toString()) : message));
+    return result;
+  }
+
+  /**
+   * Publishes until a message arrives, which means that the peers are
+   * connected and they know the interest; then waits for the last one.
+   */
+  private static void await(Dispatcher.LocalClient publisher, String name,
+      BlockingQueue<Object> messages) throws InterruptedException {
+    for (int i = 1; i <= 100; i++) {
+      publisher.send(new JSONObject().put("name", name).put("value", -i));
+      Object message = messages.poll(100, TimeUnit.MILLISECONDS);
+      if (message != null) {
+        while (((JSONObject)message).getInt("value") != -i) {
+          message = messages.poll(5, TimeUnit.SECONDS);
+        }
+        return;
+      }
+    }
+    fail("No message " + name);
+  }
+
+  private long messagesIn(int node) {
+    return dispatchers.get(node).getMetrics().getMessagesIn();
+  }
+
+  @Test
+  public void testDelivery() throws Exception {
+    start(3);
+    Dispatcher.LocalClient publisher = dispatchers.get(0).connect();
+    Client remote = connect(ports[2]);
+    try {
+      remote.subscribe("a.*");
+      BlockingQueue<Object> remoteMessages = new LinkedBlockingQueue<>();
+      remote.addConsumer(remoteMessages::add);
+      remote.start();
+      Dispatcher.LocalClient local = dispatchers.get(1).connect();
+      local.subscribe("b");
+      BlockingQueue<Object> localMessages = received(local);
+      await(publisher, "a.ready", remoteMessages);
+      await(publisher, "b", localMessages);
+      for (int i = 0; i < 100; i++) {
+        publisher.send(new JSONObject().put("name", "a.x").put("value", i));
+        publisher.send(new JSONObject().put("name", "b").put("value", i));
+        publisher.send(new JSONObject().put("name", "c").put("value", i));
+      }
+      publisher.send(Signal.obtain().set("b", 1000L, true, 100));
+      for (int i = 0; i < 100; i++) {
+        JSONObject message = (JSONObject)remoteMessages.poll(5, TimeUnit.SECONDS);
+        assertEquals("a.x", message.getString("name"));
+        assertEquals(i, message.getInt("value"));
+        assertEquals("node0", message.getString(Dispatcher.ORIGIN));
+        message = (JSONObject)localMessages.poll(5, TimeUnit.SECONDS);
+        assertEquals("b", message.getString("name"));
+        assertEquals(i, message.getInt("value"));
+      }
+      JSONObject signal = (JSONObject)localMessages.poll(5, TimeUnit.SECONDS);
+      assertEquals(100, signal.getInt("value"));
+      assertEquals("node0", signal.getString(Dispatcher.ORIGIN));
+      // no duplicates through the third dispatcher
+      assertNull(remoteMessages.poll(200, TimeUnit.MILLISECONDS));
+      assertNull(localMessages.poll(200, TimeUnit.MILLISECONDS));
+    } finally {
+      remote.close();
+    }
+  }
+
+  @Test
+  public void testPartitioned() throws Exception {
+    int nodes = 3;
+    int count = 1000;
+    start(nodes);
+    Dispatcher.LocalClient[] publishers = new Dispatcher.LocalClient[nodes];
+    List<BlockingQueue<Object>> queues = new ArrayList<>();
+    for (int i = 0; i < nodes; i++) {
+      // a client which has not subscribed anything gets everything
+      publishers[i] = dispatchers.get(i).connect();
+      publishers[i].subscribe("n" + i + ".*");
+      queues.add(received(publishers[i]));
+    }
+    for (int i = 0; i < nodes; i++) {
+      for (int j = 0; j < nodes; j++) {
+        await(publishers[i], "n" + j + ".ready", queues.get(j));
+      }
+    }
+    // the clients of each dispatcher are interested in its own messages
+    long[] before = new long[nodes];
+    for (int i = 0; i < nodes; i++) {
+      before[i] = messagesIn(i);
+    }
+    publish(publishers, count, queues);
+    for (int i = 0; i < nodes; i++) {
+      long received = messagesIn(i) - before[i];
+      assertTrue("" + received, received >= count && received < count + 10);
+    }
+    // a client of the first one is interested in everything
+    Dispatcher.LocalClient all = dispatchers.get(0).connect();
+    all.subscribe("*");
+    BlockingQueue<Object> allMessages = received(all);
+    for (int i = 0; i < nodes; i++) {
+      await(publishers[i], "x", allMessages);
+    }
+    for (int i = 0; i < nodes; i++) {
+      before[i] = messagesIn(i);
+    }
+    publish(publishers, count, queues);
+    for (int i = 0; i < nodes * count; i++) {
+      assertNotNull(allMessages.poll(5, TimeUnit.SECONDS));
+    }
+    assertTrue(messagesIn(0) - before[0] >= nodes * count);
+    for (int i = 1; i < nodes; i++) {
+      assertTrue(messagesIn(i) - before[i] < count + 10);
+    }
+  }
+
+  @Test
+  public void testClientMessages() throws Exception {
+    start(2);
+    Dispatcher.LocalClient publisher = dispatchers.get(0).connect();
+    Dispatcher.LocalClient subscriber = dispatchers.get(1).connect();
+    BlockingQueue<Object> messages = received(subscriber);
+    await(publisher, "ready", messages);
+    // fields of the control messages of the peers
+    Client remote = connect(ports[0]);
+    try {
+      remote.send(new JSONObject().put("name", "a").put(Dispatcher.PEER, "x")
+          .put(Dispatcher.INTEREST, new JSONArray().put("none")));
+      remote.send(new JSONObject().put(Dispatcher.INTEREST, new JSONArray().put("b")));
+      assertEquals("a", ((JSONObject)messages.poll(5, TimeUnit.SECONDS)).getString("name"));
+      assertTrue(((JSONObject)messages.poll(5, TimeUnit.SECONDS)).has(Dispatcher.INTEREST));
+    } finally {
+      remote.close();
+    }
+    JSONObject original = new JSONObject().put("name", "c").put("value", 1);
+    publisher.send(original);
+    JSONObject received = (JSONObject)messages.poll(5, TimeUnit.SECONDS);
+    assertEquals("node0", received.getString(Dispatcher.ORIGIN));
+    assertFalse(original.has(Dispatcher.ORIGIN));
+    // a received message published again is not a duplicate
+    publisher.send(received);
+    JSONObject again = (JSONObject)messages.poll(5, TimeUnit.SECONDS);
+    assertEquals("c", again.getString("name"));
+    assertTrue(again.getLong(Dispatcher.ORIGIN_SEQUENCE)
+        > received.getLong(Dispatcher.ORIGIN_SEQUENCE));
+  }
+
+  private static void publish(Dispatcher.LocalClient[] publishers, int count,
+      List<BlockingQueue<Object>> queues) throws InterruptedException {
+    for (int k = 0; k < count; k++) {
+      for (int i = 0; i < publishers.length; i++) {
+        publishers[i].send(new JSONObject().put("name", "n" + i + ".x").put("value", k));
+      }
+    }
+    for (int i = 0; i < publishers.length; i++) {
+      for (int k = 0; k < count; k++) {
+        JSONObject message = (JSONObject)queues.get(i).poll(5, TimeUnit.SECONDS);
+        assertEquals(k, message.getInt("value"));
+      }
+      assertNull(queues.get(i).poll(10, TimeUnit.MILLISECONDS));
+    }
+  }
+
+}
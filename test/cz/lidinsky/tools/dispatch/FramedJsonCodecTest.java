@@ -0,0 +1,111 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.json.JSONObject;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class FramedJsonCodecTest {
+
+  private static JSONObject signal(String name, double value) {
+    return new JSONObject().put("name", name).put("value", value);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Codec codec = new FramedJsonCodec(1024);
+    JSONObject message = signal("a", 1.5);
+    Object decoded = codec.newDecoder().decode(
+        ByteBuffer.wrap(codec.encode(message)));
+    assertTrue(decoded instanceof Packet);
+    assertEquals(message.toString(), ((Packet)decoded).getMessage().toString());
+  }
+
+  @Test
+  public void testChunks() throws IOException {
+    Codec codec = new FramedJsonCodec(1024);
+    byte[] first = codec.encode(signal("a", 1));
+    byte[] second = codec.encode(signal("b", 2));
+    byte[] stream = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, stream, first.length, second.length);
+    Codec.Decoder decoder = codec.newDecoder();
+    int count = 0;
+    for (byte b : stream) {
+      if (decoder.decode(ByteBuffer.wrap(new byte[] {b})) != null) {
+        count++;
+      }
+    }
+    assertEquals(2, count);
+  }
+
+  @Test
+  public void testForwardedBytes() throws IOException {
+    Codec codec = new FramedJsonCodec(1024);
+    byte[] frame = codec.encode(signal("a", 1));
+    Packet packet = (Packet)codec.newDecoder().decode(ByteBuffer.wrap(frame));
+    Packet forwarded = packet.withKey("a");
+    assertArrayEquals(frame, forwarded.getBytes(codec));
+    assertEquals("a", forwarded.getKey());
+  }
+
+  @Test
+  public void testPassThrough() throws IOException {
+    BufferPool pool = new BufferPool();
+    Codec codec = new FramedJsonCodec(1024, pool);
+    byte[] frame = codec.encode(signal("a", 1));
+    Packet packet = (Packet)codec.newDecoder().decode(ByteBuffer.wrap(frame));
+    assertFalse(packet.isParsed());
+    assertEquals(ByteBuffer.wrap(frame), packet.getBuffer(codec));
+    assertEquals("a", ((JSONObject)packet.getMessage()).getString("name"));
+    packet.release();
+    assertEquals(1, pool.getFree());
+  }
+
+  @Test
+  public void testControlIsParsed() throws IOException {
+    Codec codec = new FramedJsonCodec(1024, new BufferPool());
+    byte[] frame = codec.encode(
+        new JSONObject().put(Subscriptions.UNSUBSCRIBE, "a.*"));
+    Packet packet = (Packet)codec.newDecoder().decode(ByteBuffer.wrap(frame));
+    assertTrue(packet.isParsed());
+    assertNull(packet.getBuffer(codec));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTooLong() throws IOException {
+    byte[] frame = new FramedJsonCodec(1024).encode(signal("a", 1));
+    new FramedJsonCodec(8).newDecoder().decode(ByteBuffer.wrap(frame));
+  }
+
+  @Test
+  public void testNumber() throws IOException {
+    Codec codec = new FramedJsonCodec(1024);
+    byte[] text = FramedJsonCodec.number(
+        ByteBuffer.wrap(codec.encode(signal("a", 1))), 42);
+    JSONObject numbered = new JSONObject(new String(text, "UTF-8"));
+    assertEquals(42, numbered.getLong("sequence"));
+    assertEquals("a", numbered.getString("name"));
+    assertEquals("{\"sequence\":7}", new String(FramedJsonCodec.number(
+        ByteBuffer.wrap(codec.encode(new JSONObject())), 7), "UTF-8"));
+    assertNull(FramedJsonCodec.number(ByteBuffer.wrap(
+        codec.encode(new JSONObject().put("sequence", 1))), 42));
+  }
+
+  @Test
+  public void testNumberedPacket() throws IOException {
+    BufferPool pool = new BufferPool();
+    Codec codec = new FramedJsonCodec(1024, pool);
+    Packet packet = (Packet)codec.newDecoder().decode(
+        ByteBuffer.wrap(codec.encode(signal("a", 1))));
+    byte[] text = FramedJsonCodec.number(packet.getBuffer(codec), 42);
+    packet.release();
+    Packet numbered = FramedJsonCodec.toPacket(pool, text, text.length);
+    assertFalse(numbered.isParsed());
+    assertEquals(42, ((JSONObject)numbered.getMessage()).getLong("sequence"));
+    numbered.release();
+  }
+
+}
@@ -0,0 +1,39 @@
+package cz.lidinsky.tools.dispatch;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+  @Test
+  public void testBuckets() {
+    for (long value : new long[] {0, 1, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE}) {
+      long highest = Histogram.highestValue(Histogram.index(value));
+      assertTrue(highest >= value);
+      assertTrue(highest - value <= value / 16);
+    }
+    assertEquals(Histogram.index(Long.MAX_VALUE), Histogram.index(Long.MAX_VALUE - 1));
+  }
+
+  @Test
+  public void testPercentiles() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000000, histogram.getMax());
+    assertEquals(500500.0, histogram.getMean(), 0.1);
+    assertEquals(500000.0, histogram.getValueAtPercentile(50.0), 500000.0 / 16);
+    assertEquals(990000.0, histogram.getValueAtPercentile(99.0), 990000.0 / 16);
+    assertEquals(1000000, histogram.getValueAtPercentile(100.0));
+  }
+
+  @Test
+  public void testEmpty() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getValueAtPercentile(99.0));
+    assertEquals(0.0, histogram.getMean(), 0.0);
+  }
+
+}
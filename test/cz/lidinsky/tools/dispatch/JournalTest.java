@@ -0,0 +1,115 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static List<String> read(Journal journal, long from)
+      throws IOException {
+    return read(journal, from, Long.MAX_VALUE);
+  }
+
+  private static List<String> read(Journal journal, long from, long to)
+      throws IOException {
+    List<String> result = new ArrayList<>();
+    journal.read(from, to, (sequence, message) ->
+        result.add(sequence + ":" + new String(message, StandardCharsets.UTF_8)));
+    return result;
+  }
+
+  @Test
+  public void testAppendAndRead() throws IOException {
+    Journal journal = new Journal(folder.getRoot(), 4096, 0, 0);
+    assertEquals(1, journal.append(bytes("a")));
+    assertEquals(2, journal.append(bytes("b")));
+    assertEquals(3, journal.append(bytes("c")));
+    assertEquals(Arrays.asList("2:b", "3:c"), read(journal, 2));
+  }
+
+  @Test
+  public void testRecovery() throws IOException {
+    File directory = folder.getRoot();
+    Journal journal = new Journal(directory, 4096, 0, 0);
+    journal.append(bytes("a"));
+    journal.append(bytes("b"));
+    journal.close();
+    journal = new Journal(directory, 4096, 0, 0);
+    assertEquals(3, journal.getNextSequence());
+    journal.append(bytes("c"));
+    assertEquals(Arrays.asList("1:a", "2:b", "3:c"), read(journal, 0));
+  }
+
+  @Test
+  public void testSegments() throws IOException {
+    Journal journal = new Journal(folder.getRoot(), 256, 0, 0);
+    for (int i = 0; i < 20; i++) {
+      journal.append(bytes("message " + i));
+    }
+    assertTrue(journal.getSegmentCount() > 1);
+    assertEquals(20, read(journal, 1).size());
+    assertEquals(Arrays.asList("20:message 19"), read(journal, 20));
+  }
+
+  @Test
+  public void testReadRange() throws IOException {
+    Journal journal = new Journal(folder.getRoot(), 256, 0, 0);
+    for (int i = 0; i < 20; i++) {
+      journal.append(bytes("message " + i));
+    }
+    assertEquals(Arrays.asList("5:message 4", "6:message 5"),
+        read(journal, 5, 6));
+    assertEquals(8, journal.read(5, 7, (sequence, message) -> {}));
+    assertEquals(21, journal.read(19, 100, (sequence, message) -> {}));
+    assertEquals(21, journal.read(21, 100, (sequence, message) -> {}));
+  }
+
+  @Test
+  public void testRetention() throws IOException {
+    Journal journal = new Journal(folder.getRoot(), 256, 512, 0);
+    for (int i = 0; i < 40; i++) {
+      journal.append(bytes("message " + i));
+    }
+    assertEquals(2, journal.getSegmentCount());
+    assertEquals(2, folder.getRoot().list().length);
+    List<String> records = read(journal, 1);
+    assertEquals("40:message 39", records.get(records.size() - 1));
+    assertTrue(records.size() < 40);
+  }
+
+  @Test
+  public void testExpire() throws Exception {
+    Journal journal = new Journal(folder.getRoot(), 256, 0, 50);
+    for (int i = 0; i < 20; i++) {
+      journal.append(bytes("message " + i));
+    }
+    assertTrue(journal.getSegmentCount() > 1);
+    journal.expire();
+    assertTrue(journal.getSegmentCount() > 1);
+    Thread.sleep(100);
+    // without any append, the active segment is kept
+    journal.expire();
+    assertEquals(1, journal.getSegmentCount());
+    assertEquals(1, folder.getRoot().list().length);
+    List<String> records = read(journal, 1);
+    assertEquals(journal.getFirstSequence() + ":message "
+        + (journal.getFirstSequence() - 1), records.get(0));
+    assertEquals("20:message 19", records.get(records.size() - 1));
+  }
+
+}
@@ -0,0 +1,50 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class JsonSplitterTest {
+
+  private JsonSplitter splitter;
+
+  @Before
+  public void init() {
+    splitter = new JsonSplitter();
+  }
+
+  private static ByteBuffer bytes(String text) {
+    return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testConcatenatedObjects() {
+    ByteBuffer buffer = bytes("{\"a\":1}\n{\"b\":[1,{\"c\":2}]}");
+    assertEquals("{\"a\":1}", splitter.next(buffer));
+    assertEquals("{\"b\":[1,{\"c\":2}]}", splitter.next(buffer));
+    assertNull(splitter.next(buffer));
+    assertFalse(splitter.isPending());
+  }
+
+  @Test
+  public void testSplitAcrossChunks() {
+    assertNull(splitter.next(bytes("{\"name\":\"x")));
+    assertTrue(splitter.isPending());
+    assertEquals("{\"name\":\"x}\"}", splitter.next(bytes("}\"}")));
+  }
+
+  @Test
+  public void testBracesInStrings() {
+    ByteBuffer buffer = bytes("{\"a\":\"}\\\"{\"} ");
+    assertEquals("{\"a\":\"}\\\"{\"}", splitter.next(buffer));
+  }
+
+  @Test
+  public void testMultibyteCharacters() {
+    assertEquals("{\"a\":\"\u017elu\u0165ou\u010dk\u00fd\"}",
+        splitter.next(bytes("{\"a\":\"\u017elu\u0165ou\u010dk\u00fd\"}")));
+  }
+
+}
@@ -0,0 +1,52 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class LastValueCacheTest {
+
+  private static List<Object> messages(LastValueCache cache) {
+    List<Object> result = new ArrayList<>();
+    cache.forEach(packet -> result.add(packet.getMessage()));
+    return result;
+  }
+
+  @Test
+  public void testLastValue() {
+    LastValueCache cache = new LastValueCache(10);
+    cache.put(new Packet("a1", "a"));
+    cache.put(new Packet("b1", "b"));
+    cache.put(new Packet("a2", "a"));
+    cache.put(new Packet("x", null));
+    assertEquals(2, cache.size());
+    assertEquals(Arrays.asList("b1", "a2"), messages(cache));
+  }
+
+  @Test
+  public void testCapacity() {
+    LastValueCache cache = new LastValueCache(2);
+    cache.put(new Packet("a1", "a"));
+    cache.put(new Packet("b1", "b"));
+    cache.put(new Packet("a2", "a"));
+    cache.put(new Packet("c1", "c"));
+    assertEquals(Arrays.asList("a2", "c1"), messages(cache));
+  }
+
+  @Test
+  public void testReferences() {
+    BufferPool pool = new BufferPool();
+    LastValueCache cache = new LastValueCache(1);
+    Packet first = new Packet(pool.acquire(10), WireFormat.FRAMED_JSON, b -> null)
+        .withKey("a");
+    cache.put(first);
+    first.release();
+    assertEquals(0, pool.getFree());
+    cache.put(new Packet("b1", "b"));
+    assertEquals(1, pool.getFree());
+  }
+
+}
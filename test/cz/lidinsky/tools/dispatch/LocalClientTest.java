@@ -0,0 +1,179 @@
+package cz.lidinsky.tools.dispatch;
+
+import cz.lidinsky.tools.CommonException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class LocalClientTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Dispatcher dispatcher;
+
+  @Before
+  public void setUp() throws Exception {
+    // the port is not used, the dispatcher doesn't listen
+    dispatcher = new Dispatcher(0);
+    dispatcher.start();
+  }
+
+  @After
+  public void tearDown() {
+    dispatcher.close();
+  }
+
+  private static BlockingQueue<Object> received(Dispatcher.LocalClient client) {
+    BlockingQueue<Object> result = new LinkedBlockingQueue<>();
+    client.addConsumer(result::add);
+    return result;
+  }
+
+  @Test
+  public void testByReference() throws Exception {
+    Dispatcher.LocalClient publisher = dispatcher.connect();
+    Dispatcher.LocalClient subscriber = dispatcher.connect();
+    BlockingQueue<Object> messages = received(subscriber);
+    JSONObject message = new JSONObject().put("name", "a").put("value", 1);
+    publisher.send(message);
+    assertSame(message, messages.poll(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testSubscribe() throws Exception {
+    Dispatcher.LocalClient publisher = dispatcher.connect();
+    Dispatcher.LocalClient subscriber = dispatcher.connect();
+    BlockingQueue<Object> messages = received(subscriber);
+    subscriber.subscribe("b");
+    publisher.send(new JSONObject().put("name", "a").put("value", 1));
+    publisher.send(new JSONObject().put("name", "b").put("value", 2));
+    JSONObject message = (JSONObject)messages.poll(5, TimeUnit.SECONDS);
+    assertEquals("b", message.getString("name"));
+    assertNull(messages.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testSignal() throws Exception {
+    Dispatcher.LocalClient publisher = dispatcher.connect();
+    Dispatcher.LocalClient subscriber = dispatcher.connect();
+    BlockingQueue<Object> messages = new LinkedBlockingQueue<>();
+    // the signal is valid only during the call
+    subscriber.addConsumer(message -> messages.add(message.toString()));
+    publisher.send(Signal.obtain().set("a", 1000L, true, 1.5));
+    JSONObject message = new JSONObject((String)messages.poll(5, TimeUnit.SECONDS));
+    assertEquals("a", message.getString("name"));
+    assertEquals(1.5, message.getDouble("value"), 0.0);
+    assertFalse(message.has("sequence"));
+  }
+
+  @Test
+  public void testNumberedCopy() throws Exception {
+    dispatcher.close();
+    dispatcher = new Dispatcher(0).setRetransmitRing(RetransmitRing.CAPACITY);
+    dispatcher.start();
+    Dispatcher.LocalClient publisher = dispatcher.connect();
+    Dispatcher.LocalClient subscriber = dispatcher.connect();
+    BlockingQueue<Object> messages = received(subscriber);
+    JSONObject message = new JSONObject().put("name", "a").put("value", 1);
+    publisher.send(message);
+    JSONObject numbered = (JSONObject)messages.poll(5, TimeUnit.SECONDS);
+    assertTrue(numbered.getLong("sequence") > 0);
+    assertEquals(1, numbered.getInt("value"));
+    assertFalse(message.has("sequence"));
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    Dispatcher.LocalClient publisher = dispatcher.connect();
+    Dispatcher.LocalClient subscriber = dispatcher.connect();
+    BlockingQueue<Object> messages = received(subscriber);
+    subscriber.close();
+    publisher.send(new JSONObject().put("name", "a").put("value", 1));
+    assertNull(messages.poll(100, TimeUnit.MILLISECONDS));
+    try {
+      subscriber.send(new JSONObject().put("name", "a"));
+      fail();
+    } catch (CommonException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testOverflowWithFullRing() throws Exception {
+    dispatcher.close();
+    dispatcher = new Dispatcher(0).setRingBuffer(2, WaitStrategy.YIELD)
+        .setOutbox(1, OverflowPolicy.DISCONNECT);
+    dispatcher.start();
+    Dispatcher.LocalClient subscriber = dispatcher.connect();
+    CountDownLatch blocked = new CountDownLatch(1);
+    subscriber.addConsumer(message -> {
+      try {
+        blocked.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Thread thread = new Thread(() -> {
+      for (int i = 0; i < 1000; i++) {
+        dispatcher.add(new JSONObject().put("name", "a").put("value", i));
+      }
+    });
+    thread.start();
+    // the broadcast thread keeps draining the ring after the overflow
+    thread.join(5000);
+    assertFalse(thread.isAlive());
+    try {
+      subscriber.send(new JSONObject().put("name", "a"));
+      fail();
+    } catch (CommonException e) {
+      // expected
+    }
+    blocked.countDown();
+  }
+
+  @Test
+  public void testReplayIntoSmallOutbox() throws Exception {
+    dispatcher.close();
+    dispatcher = new Dispatcher(0)
+        .setJournal(folder.getRoot(), 0, 0, TimeUnit.SECONDS)
+        .setOutbox(4, OverflowPolicy.DISCONNECT);
+    dispatcher.start();
+    Dispatcher.LocalClient publisher = dispatcher.connect();
+    Dispatcher.LocalClient watcher = dispatcher.connect();
+    watcher.subscribe("last");
+    BlockingQueue<Object> last = received(watcher);
+    for (int i = 0; i < 200; i++) {
+      publisher.send(new JSONObject().put("name", "a").put("value", i));
+    }
+    publisher.send(new JSONObject().put("name", "last"));
+    assertNotNull(last.poll(5, TimeUnit.SECONDS));
+    Dispatcher.LocalClient subscriber = dispatcher.connect();
+    BlockingQueue<Object> messages = new LinkedBlockingQueue<>();
+    subscriber.addConsumer(message -> {
+      try {
+        // slower than the journal is read
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      messages.add(message);
+    });
+    subscriber.send(new JSONObject().put("replay", 1).put("to", 200));
+    // the replay waits for the free space of the outbox
+    for (int i = 0; i < 200; i++) {
+      JSONObject message = (JSONObject)messages.poll(5, TimeUnit.SECONDS);
+      assertEquals(i + 1, message.getLong("sequence"));
+      assertEquals(i, message.getInt("value"));
+    }
+    assertNull(messages.poll(100, TimeUnit.MILLISECONDS));
+    subscriber.send(new JSONObject().put("name", "a"));
+  }
+
+}
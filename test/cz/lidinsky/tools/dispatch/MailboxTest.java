@@ -0,0 +1,103 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Consumer;
+import org.json.JSONObject;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class MailboxTest {
+
+  /** Tasks submitted to the executor, run by the test. */
+  private LinkedList<Runnable> tasks;
+  private List<Object> delivered;
+
+  @Before
+  public void init() {
+    tasks = new LinkedList<>();
+    delivered = new ArrayList<>();
+  }
+
+  private Mailbox mailbox(int capacity, OverflowPolicy policy) {
+    return new Mailbox((Consumer<Object>)delivered::add, tasks::add,
+        capacity, policy);
+  }
+
+  private static JSONObject signal(String name, int value) {
+    return new JSONObject().put("name", name).put("value", value);
+  }
+
+  @Test
+  public void testOneTaskAtATime() {
+    Mailbox mailbox = mailbox(10, OverflowPolicy.DROP_OLDEST);
+    mailbox.accept("a");
+    mailbox.accept("b");
+    assertEquals(1, tasks.size());
+    assertTrue(delivered.isEmpty());
+    tasks.poll().run();
+    assertEquals(Arrays.asList("a", "b"), delivered);
+    mailbox.accept("c");
+    assertEquals(1, tasks.size());
+  }
+
+  @Test
+  public void testCoalesce() {
+    Mailbox mailbox = mailbox(2, OverflowPolicy.COALESCE);
+    mailbox.accept(signal("a", 1));
+    mailbox.accept(signal("b", 1));
+    mailbox.accept(signal("a", 2));
+    tasks.poll().run();
+    assertEquals(1, mailbox.getDropped());
+    assertEquals(2, delivered.size());
+    assertEquals(2, ((JSONObject)delivered.get(0)).getInt("value"));
+  }
+
+  @Test
+  public void testFailingConsumer() {
+    Mailbox mailbox = new Mailbox(message -> {
+      delivered.add(message);
+      throw new IllegalStateException();
+    }, tasks::add, 10, OverflowPolicy.DROP_OLDEST);
+    mailbox.accept("a");
+    mailbox.accept("b");
+    tasks.poll().run();
+    assertEquals(Arrays.asList("a", "b"), delivered);
+  }
+
+  @Test
+  public void testDrainLimit() {
+    Mailbox mailbox = mailbox(1000, OverflowPolicy.DROP_OLDEST);
+    for (int i = 0; i < Mailbox.MAX_DRAIN + 1; i++) {
+      mailbox.accept(i);
+    }
+    tasks.poll().run();
+    assertEquals(Mailbox.MAX_DRAIN, delivered.size());
+    tasks.poll().run();
+    assertEquals(Mailbox.MAX_DRAIN + 1, delivered.size());
+    assertTrue(tasks.isEmpty());
+  }
+
+  @Test
+  public void testSignalReleased() {
+    Mailbox mailbox = mailbox(1, OverflowPolicy.DROP_OLDEST);
+    Signal a = Signal.obtain().set("a", 1000L, true, 1.0);
+    Signal b = Signal.obtain().set("b", 1000L, true, 2.0);
+    int free = Signal.getFree();
+    // the receiver releases its reference right after the accept
+    mailbox.accept(a);
+    a.release();
+    assertEquals(free, Signal.getFree());
+    mailbox.accept(b);
+    b.release();
+    // the dropped one
+    assertEquals(free + 1, Signal.getFree());
+    tasks.poll().run();
+    assertEquals(Arrays.asList(b), delivered);
+    assertEquals(free + 2, Signal.getFree());
+  }
+
+}
@@ -0,0 +1,115 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class MappedRingTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String read(MappedRing.Reader reader) {
+    byte[] bytes = reader.read();
+    return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    File file = new File(folder.getRoot(), "ring");
+    MappedRing writer = MappedRing.create(file, 1024);
+    MappedRing.Reader first = MappedRing.open(file).newReader(false);
+    MappedRing.Reader second = MappedRing.open(file).newReader(false);
+    writer.write(bytes("a"));
+    writer.write(bytes("bc"));
+    assertEquals("a", read(first));
+    assertEquals("bc", read(first));
+    assertNull(read(first));
+    // independent cursors
+    assertEquals("a", read(second));
+    assertEquals("bc", read(second));
+  }
+
+  @Test
+  public void testWrapAround() throws IOException {
+    File file = new File(folder.getRoot(), "ring");
+    MappedRing writer = MappedRing.create(file, 1024);
+    MappedRing.Reader reader = MappedRing.open(file).newReader(false);
+    for (int i = 0; i < 1000; i++) {
+      // 100 does not divide the capacity, so padding is needed
+      String message = String.format("%096d", i);
+      assertTrue(writer.write(bytes(message)));
+      assertEquals(message, read(reader));
+    }
+    assertEquals(0, reader.getOverruns());
+  }
+
+  @Test
+  public void testOverrun() throws IOException {
+    File file = new File(folder.getRoot(), "ring");
+    MappedRing writer = MappedRing.create(file, 1024);
+    MappedRing.Reader reader = MappedRing.open(file).newReader(false);
+    for (int i = 0; i < 100; i++) {
+      writer.write(bytes(String.format("%060d", i)));
+    }
+    assertNull(read(reader));
+    assertEquals(1, reader.getOverruns());
+    writer.write(bytes("next"));
+    assertEquals("next", read(reader));
+  }
+
+  @Test
+  public void testHistory() throws IOException {
+    File file = new File(folder.getRoot(), "ring");
+    MappedRing writer = MappedRing.create(file, 1024);
+    for (int i = 0; i < 100; i++) {
+      writer.write(bytes(String.format("%060d", i)));
+    }
+    MappedRing.Reader reader = MappedRing.open(file).newReader(true);
+    int count = 0;
+    String last = null;
+    String message;
+    while ((message = read(reader)) != null) {
+      last = message;
+      count++;
+    }
+    // 64 bytes per record
+    assertEquals(16, count);
+    assertEquals(String.format("%060d", 99), last);
+    assertEquals(0, reader.getOverruns());
+  }
+
+  @Test
+  public void testTooLong() throws IOException {
+    MappedRing writer = MappedRing.create(new File(folder.getRoot(), "ring"), 1024);
+    assertFalse(writer.write(new byte[513]));
+    assertTrue(writer.write(new byte[512]));
+  }
+
+  @Test
+  public void testStale() throws IOException {
+    File file = new File(folder.getRoot(), "ring");
+    MappedRing writer = MappedRing.create(file, 1024);
+    MappedRing reader = MappedRing.open(file);
+    assertFalse(reader.isStale());
+    writer.closeWriter();
+    assertTrue(reader.isStale());
+    MappedRing.create(file, 1024);
+    assertFalse(MappedRing.open(file).isStale());
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotRing() throws IOException {
+    File file = folder.newFile();
+    MappedRing.open(file);
+  }
+
+}
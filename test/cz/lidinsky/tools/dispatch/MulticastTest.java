@@ -0,0 +1,86 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class MulticastTest {
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static Client connect(int port) throws Exception {
+    for (int i = 0; ; i++) {
+      try {
+        return new Client("localhost", port);
+      } catch (IOException e) {
+        if (i == 50) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  @Test
+  public void testReceive() throws Exception {
+    int port = freePort();
+    InetSocketAddress group = new InetSocketAddress(
+        InetAddress.getByName("239.255.43.21"), freePort());
+    NetworkInterface loopback = NetworkInterface.getByInetAddress(
+        InetAddress.getLoopbackAddress());
+    Dispatcher dispatcher = new Dispatcher(port)
+        .setRetransmitRing(RetransmitRing.CAPACITY)
+        .setMulticast(group, loopback);
+    dispatcher.start();
+    dispatcher.listen();
+    Client client = connect(port);
+    try {
+      // nothing comes through the connection but the replayed messages
+      client.subscribe("none");
+      client.setMulticast(group, loopback);
+      BlockingQueue<Object> messages = new LinkedBlockingQueue<>();
+      client.addConsumer(messages::add);
+      client.start();
+      Dispatcher.LocalClient publisher = dispatcher.connect();
+      int count = 0;
+      Object first = null;
+      while (first == null && count < 50) {
+        publisher.send(new JSONObject().put("name", "a").put("value", count++));
+        first = messages.poll(100, TimeUnit.MILLISECONDS);
+      }
+      assertNotNull(first);
+      // too long for a datagram, it is requested through the connection
+      char[] text = new char[Dispatcher.MAX_DATAGRAM];
+      Arrays.fill(text, 'x');
+      publisher.send(new JSONObject().put("name", "a").put("value", count++)
+          .put("text", new String(text)));
+      for (int i = 0; i < 10; i++) {
+        publisher.send(new JSONObject().put("name", "a").put("value", count++));
+      }
+      assertEquals(0, ((JSONObject)first).getInt("value"));
+      for (int i = 1; i < count; i++) {
+        JSONObject message = (JSONObject)messages.poll(5, TimeUnit.SECONDS);
+        assertEquals(i, message.getInt("value"));
+      }
+      assertNull(messages.poll(100, TimeUnit.MILLISECONDS));
+    } finally {
+      client.close();
+      dispatcher.close();
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+package cz.lidinsky.tools.dispatch;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class OriginFilterTest {
+
+  private OriginFilter filter;
+
+  @Before
+  public void init() {
+    filter = new OriginFilter("self", 128);
+  }
+
+  @Test
+  public void testDuplicates() {
+    assertTrue(filter.accept("a", 1));
+    assertTrue(filter.accept("a", 2));
+    assertFalse(filter.accept("a", 2));
+    // each origin has its own numbers
+    assertTrue(filter.accept("b", 2));
+    assertFalse(filter.accept("self", 3));
+  }
+
+  @Test
+  public void testOutOfOrder() {
+    assertTrue(filter.accept("a", 10));
+    assertTrue(filter.accept("a", 5));
+    assertFalse(filter.accept("a", 5));
+    assertTrue(filter.accept("a", 7));
+    assertFalse(filter.accept("a", 10));
+  }
+
+  @Test
+  public void testWindow() {
+    assertTrue(filter.accept("a", 1));
+    assertTrue(filter.accept("a", 129));
+    // out of the window
+    assertFalse(filter.accept("a", 1));
+    assertTrue(filter.accept("a", 2));
+    // a jump over the whole window forgets everything
+    assertTrue(filter.accept("a", 1000));
+    assertTrue(filter.accept("a", 999));
+    assertFalse(filter.accept("a", 1000));
+  }
+
+}
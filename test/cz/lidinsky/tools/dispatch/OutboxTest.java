@@ -0,0 +1,200 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+
+  private static JSONObject signal(String name, double value) {
+    return new JSONObject().put("name", name).put("value", value);
+  }
+
+  private static double value(Object message) {
+    return ((JSONObject)message).getDouble("value");
+  }
+
+  private static JSONObject numbered(String name, long sequence) {
+    return signal(name, sequence).put("sequence", sequence);
+  }
+
+  private static Outbox numberedOutbox(int capacity, OverflowPolicy policy) {
+    return new Outbox(capacity, policy, Tools::nameOf, item -> {},
+        item -> ((JSONObject)item).optLong("sequence"),
+        (from, to) -> new JSONObject().put(
+            "skipped", new JSONArray().put(from).put(to)));
+  }
+
+  private static String skipped(Object message) {
+    JSONArray range = ((JSONObject)message).getJSONArray("skipped");
+    return range.getLong(0) + "-" + range.getLong(1);
+  }
+
+  @Test
+  public void testDropOldest() {
+    Outbox outbox = new Outbox(2, OverflowPolicy.DROP_OLDEST, Tools::nameOf);
+    assertTrue(outbox.offer(signal("a", 1)));
+    assertTrue(outbox.offer(signal("b", 2)));
+    assertTrue(outbox.offer(signal("c", 3)));
+    assertEquals(1, outbox.getDropped());
+    assertEquals(2.0, value(outbox.dequeue()), 0.0);
+    assertEquals(3.0, value(outbox.dequeue()), 0.0);
+    assertTrue(outbox.isEmpty());
+  }
+
+  @Test
+  public void testDropNewest() {
+    Outbox outbox = new Outbox(2, OverflowPolicy.DROP_NEWEST, Tools::nameOf);
+    outbox.queue(signal("a", 1));
+    outbox.queue(signal("b", 2));
+    outbox.queue(signal("c", 3));
+    assertEquals(1, outbox.getDropped());
+    assertEquals(1.0, value(outbox.dequeue()), 0.0);
+    assertEquals(2.0, value(outbox.dequeue()), 0.0);
+    assertNull(outbox.dequeue());
+  }
+
+  @Test
+  public void testCoalesce() {
+    Outbox outbox = new Outbox(2, OverflowPolicy.COALESCE, Tools::nameOf);
+    outbox.queue(signal("a", 1));
+    outbox.queue(signal("b", 2));
+    outbox.queue(signal("a", 3));
+    outbox.queue(signal("c", 4));
+    assertEquals(2, outbox.getDropped());
+    // a was replaced in place, then the oldest one was dropped for c
+    assertEquals(2.0, value(outbox.dequeue()), 0.0);
+    assertEquals(4.0, value(outbox.dequeue()), 0.0);
+  }
+
+  @Test
+  public void testConflate() {
+    Outbox outbox = new Outbox(10, OverflowPolicy.CONFLATE, Tools::nameOf);
+    outbox.queue(signal("a", 1));
+    outbox.queue(signal("b", 2));
+    outbox.queue(signal("a", 3));
+    outbox.queue(new JSONObject().put("value", 4));
+    outbox.queue(new JSONObject().put("value", 5));
+    assertEquals(0, outbox.getDropped());
+    assertEquals(4, outbox.size());
+    // the newest value of a keeps the place of the first one
+    assertEquals(3.0, value(outbox.dequeue()), 0.0);
+    // a dequeued message is not replaced any more
+    outbox.queue(signal("a", 6));
+    assertEquals(2.0, value(outbox.dequeue()), 0.0);
+    assertEquals(4.0, value(outbox.dequeue()), 0.0);
+    assertEquals(5.0, value(outbox.dequeue()), 0.0);
+    assertEquals(6.0, value(outbox.blockingDequeue()), 0.0);
+    assertTrue(outbox.isEmpty());
+  }
+
+  @Test
+  public void testConflateFull() {
+    List<Object> discarded = new ArrayList<>();
+    Outbox outbox = new Outbox(
+        2, OverflowPolicy.CONFLATE, Tools::nameOf, discarded::add);
+    for (int i = 0; i < 100; i++) {
+      outbox.queue(signal("a", i));
+      outbox.queue(signal("b", -i));
+    }
+    assertEquals(0, outbox.getDropped());
+    outbox.queue(signal("c", 1));
+    assertEquals(1, outbox.getDropped());
+    assertEquals(-99.0, value(outbox.dequeue()), 0.0);
+    assertEquals(1.0, value(outbox.dequeue()), 0.0);
+    assertEquals(199, discarded.size());
+  }
+
+  @Test
+  public void testDisconnect() {
+    Outbox outbox = new Outbox(1, OverflowPolicy.DISCONNECT, Tools::nameOf);
+    assertTrue(outbox.offer(signal("a", 1)));
+    assertFalse(outbox.offer(signal("b", 2)));
+    assertEquals(1, outbox.getDropped());
+  }
+
+  @Test
+  public void testDiscard() {
+    List<Object> discarded = new ArrayList<>();
+    Outbox outbox = new Outbox(
+        2, OverflowPolicy.COALESCE, Tools::nameOf, discarded::add);
+    JSONObject a = signal("a", 1);
+    outbox.queue(a);
+    outbox.queue(signal("b", 2));
+    outbox.queue(signal("a", 3));
+    assertSame(a, discarded.get(0));
+    outbox.clear();
+    assertEquals(3, discarded.size());
+  }
+
+  @Test
+  public void testSkippedRange() {
+    Outbox outbox = numberedOutbox(2, OverflowPolicy.DROP_OLDEST);
+    for (long i = 1; i <= 4; i++) {
+      outbox.queue(numbered("a" + i, i));
+    }
+    assertFalse(outbox.isEmpty());
+    assertEquals("1-2", skipped(outbox.dequeue()));
+    assertEquals(3.0, value(outbox.dequeue()), 0.0);
+    outbox.queue(numbered("b", 5));
+    outbox.queue(numbered("c", 6));
+    assertEquals("4-4", skipped(outbox.dequeue()));
+    assertEquals(5.0, value(outbox.dequeue()), 0.0);
+    assertEquals(6.0, value(outbox.dequeue()), 0.0);
+    assertTrue(outbox.isEmpty());
+  }
+
+  @Test
+  public void testSkippedNewest() {
+    Outbox outbox = numberedOutbox(1, OverflowPolicy.DROP_NEWEST);
+    outbox.queue(numbered("a", 1));
+    outbox.queue(numbered("b", 2));
+    assertEquals(1.0, value(outbox.dequeue()), 0.0);
+    // the marker is sent as soon as the outbox is empty
+    assertEquals("2-2", skipped(outbox.blockingDequeue()));
+    assertNull(outbox.dequeue());
+  }
+
+  @Test
+  public void testNumberedConflate() {
+    Outbox outbox = numberedOutbox(10, OverflowPolicy.CONFLATE);
+    outbox.queue(numbered("a", 1));
+    outbox.queue(numbered("b", 2));
+    outbox.queue(numbered("a", 3));
+    assertEquals(2, outbox.size());
+    // the newest value of a goes to the end, so the numbers stay in order
+    assertEquals("1-1", skipped(outbox.dequeue()));
+    assertEquals(2.0, value(outbox.dequeue()), 0.0);
+    assertEquals(3.0, value(outbox.dequeue()), 0.0);
+    assertTrue(outbox.isEmpty());
+  }
+
+  @Test
+  public void testReplayedDoesNotReplace() {
+    Outbox outbox = numberedOutbox(10, OverflowPolicy.CONFLATE);
+    outbox.queue(numbered("a", 5));
+    // sent again on request of the client
+    outbox.queue(numbered("a", 3));
+    assertEquals("3-3", skipped(outbox.dequeue()));
+    assertEquals(5.0, value(outbox.dequeue()), 0.0);
+    assertTrue(outbox.isEmpty());
+  }
+
+  @Test
+  public void testControl() {
+    Outbox outbox = new Outbox(1, OverflowPolicy.DROP_NEWEST, Tools::nameOf);
+    outbox.queue(signal("a", 1));
+    outbox.queue(signal("b", 2));
+    outbox.queueControl(new JSONObject().put("subscribe", "c"));
+    assertEquals(1, outbox.getDropped());
+    assertEquals(2, outbox.size());
+    assertEquals("c", ((JSONObject)outbox.dequeue()).getString("subscribe"));
+    assertEquals(1.0, value(outbox.dequeue()), 0.0);
+    assertTrue(outbox.isEmpty());
+  }
+
+}
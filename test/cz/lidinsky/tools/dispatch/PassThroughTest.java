@@ -0,0 +1,113 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class PassThroughTest {
+
+  private Dispatcher dispatcher;
+  private final List<Client> clients = new ArrayList<>();
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private void start(Dispatcher dispatcher) throws IOException {
+    this.dispatcher = dispatcher.setPassThrough(true);
+    dispatcher.start();
+    dispatcher.listen();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (Client client : clients) {
+      client.close();
+    }
+    dispatcher.close();
+  }
+
+  private Client connect(int port) throws Exception {
+    for (int i = 0; ; i++) {
+      try {
+        Client client = new Client("localhost", port, WireFormat.FRAMED_JSON);
+        clients.add(client);
+        return client;
+      } catch (IOException e) {
+        if (i == 50) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  @Test
+  public void testNumbered() throws Exception {
+    int port = freePort();
+    start(new Dispatcher(port, 1).setRetransmitRing(RetransmitRing.CAPACITY));
+    Client subscriber = connect(port);
+    BlockingQueue<Object> messages = new LinkedBlockingQueue<>();
+    subscriber.addConsumer(messages::add);
+    subscriber.start();
+    Client publisher = connect(port);
+    publisher.start();
+    JSONObject message = new JSONObject().put("name", "a").put("value", 1);
+    publisher.send(message).get(5, TimeUnit.SECONDS);
+    publisher.send(new JSONObject().put("name", "b").put("value", 2));
+    JSONObject first = (JSONObject)messages.poll(5, TimeUnit.SECONDS);
+    JSONObject second = (JSONObject)messages.poll(5, TimeUnit.SECONDS);
+    assertEquals(1, first.getInt("value"));
+    assertEquals(first.getLong("sequence") + 1, second.getLong("sequence"));
+    assertFalse(message.has("sequence"));
+  }
+
+  @Test
+  public void testMulticast() throws Exception {
+    int port = freePort();
+    InetSocketAddress group = new InetSocketAddress(
+        InetAddress.getByName("239.255.43.22"), freePort());
+    NetworkInterface loopback = NetworkInterface.getByInetAddress(
+        InetAddress.getLoopbackAddress());
+    start(new Dispatcher(port, 1).setRetransmitRing(RetransmitRing.CAPACITY)
+        .setMulticast(group, loopback));
+    Dispatcher.LocalClient observer = dispatcher.connect();
+    BlockingQueue<Object> observed = new LinkedBlockingQueue<>();
+    observer.addConsumer(observed::add);
+    Client client = connect(port);
+    // nothing comes through the connection but the replayed messages
+    client.subscribe("none");
+    client.setMulticast(group, loopback);
+    BlockingQueue<Object> messages = new LinkedBlockingQueue<>();
+    client.addConsumer(messages::add);
+    client.start();
+    Dispatcher.LocalClient publisher = dispatcher.connect();
+    int count = 0;
+    Object first = null;
+    while (first == null && count < 50) {
+      publisher.send(new JSONObject().put("name", "a").put("value", count++));
+      first = messages.poll(100, TimeUnit.MILLISECONDS);
+    }
+    assertNotNull(first);
+    // the request is a control message, it is not published
+    for (int i = 0; i < count; i++) {
+      JSONObject message = (JSONObject)observed.poll(5, TimeUnit.SECONDS);
+      assertEquals(i, message.getInt("value"));
+    }
+    assertNull(observed.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+}
@@ -0,0 +1,64 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class RetransmitRingTest {
+
+  private static Packet packet(long sequence) {
+    return new Packet("m" + sequence, null).setSequence(sequence);
+  }
+
+  private static List<Object> read(RetransmitRing ring, long from) {
+    List<Object> result = new ArrayList<>();
+    assertTrue(ring.forEach(from, packet -> result.add(packet.getMessage())));
+    return result;
+  }
+
+  @Test
+  public void testResend() {
+    RetransmitRing ring = new RetransmitRing(4);
+    for (long i = 1; i <= 3; i++) {
+      ring.put(packet(i));
+    }
+    assertEquals(1, ring.getFirst());
+    assertEquals(Arrays.asList("m2", "m3"), read(ring, 2));
+    assertTrue(read(ring, 4).isEmpty());
+  }
+
+  @Test
+  public void testRange() {
+    RetransmitRing ring = new RetransmitRing(4);
+    for (long i = 1; i <= 4; i++) {
+      ring.put(packet(i));
+    }
+    List<Object> result = new ArrayList<>();
+    assertTrue(ring.forEach(2, 3, packet -> result.add(packet.getMessage())));
+    assertEquals(Arrays.asList("m2", "m3"), result);
+  }
+
+  @Test
+  public void testOverwrite() {
+    RetransmitRing ring = new RetransmitRing(4);
+    for (long i = 1; i <= 10; i++) {
+      ring.put(packet(i));
+    }
+    assertEquals(7, ring.getFirst());
+    assertFalse(ring.forEach(6, packet -> fail()));
+    assertEquals(Arrays.asList("m7", "m8", "m9", "m10"), read(ring, 7));
+  }
+
+  @Test
+  public void testReset() {
+    RetransmitRing ring = new RetransmitRing(4);
+    ring.reset(100);
+    assertFalse(ring.forEach(99, packet -> fail()));
+    ring.put(packet(100));
+    assertEquals(Arrays.asList("m100"), read(ring, 100));
+  }
+
+}
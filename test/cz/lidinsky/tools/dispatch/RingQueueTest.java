@@ -0,0 +1,72 @@
+package cz.lidinsky.tools.dispatch;
+
+import cz.lidinsky.tools.CommonException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class RingQueueTest {
+
+  @Test
+  public void testFifo() {
+    RingQueue<Integer> queue = new RingQueue<>(4, true, WaitStrategy.SPIN);
+    assertTrue(queue.isEmpty());
+    assertNull(queue.dequeue());
+    for (int i = 0; i < 10; i++) {
+      queue.queue(i);
+      queue.queue(i + 100);
+      assertEquals(Integer.valueOf(i), queue.dequeue());
+      assertEquals(Integer.valueOf(i + 100), queue.dequeue());
+    }
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testCapacity() {
+    RingQueue<Integer> queue = new RingQueue<>(5, false, WaitStrategy.YIELD);
+    assertEquals(8, queue.capacity());
+    for (int i = 0; i < 8; i++) {
+      assertTrue(queue.offer(i));
+    }
+    assertFalse(queue.offer(8));
+    assertEquals(Integer.valueOf(0), queue.dequeue());
+    assertTrue(queue.offer(8));
+    queue.clear();
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test(expected=CommonException.class)
+  public void testIllegalCapacity() {
+    new RingQueue<Integer>(0, false, WaitStrategy.PARK);
+  }
+
+  @Test(timeout=30000)
+  public void testMultipleProducers() throws InterruptedException {
+    final int producers = 4;
+    final int count = 100000;
+    RingQueue<int[]> queue = new RingQueue<>(64, false, WaitStrategy.PARK);
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < count; i++) {
+          queue.queue(new int[] {producer, i});
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    int[] next = new int[producers];
+    for (int i = 0; i < producers * count; i++) {
+      int[] item = queue.blockingDequeue();
+      assertEquals(next[item[0]]++, item[1]);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(queue.isEmpty());
+  }
+
+}
@@ -0,0 +1,165 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SequenceTrackerTest {
+
+  private List<Long> delivered;
+  private List<Long> resent;
+  private List<String> lost;
+  private SequenceTracker tracker;
+
+  @Before
+  public void init() {
+    delivered = new ArrayList<>();
+    resent = new ArrayList<>();
+    lost = new ArrayList<>();
+    tracker = new SequenceTracker(
+        message -> delivered.add(message instanceof Signal
+            ? ((Signal)message).getSequence()
+            : ((JSONObject)message).optLong("sequence")),
+        resent::add, (from, to) -> lost.add(from + "-" + to), 3);
+    tracker.received(new JSONObject().put("sequence", 7));
+    tracker.received(new JSONObject().put("sync", 10));
+  }
+
+  private void receive(long... sequences) {
+    for (long sequence : sequences) {
+      tracker.received(new JSONObject().put("sequence", sequence));
+    }
+  }
+
+  @Test
+  public void testInOrder() {
+    receive(11, 12, 12, 5, 13);
+    assertEquals(Arrays.asList(7L, 11L, 12L, 13L), delivered);
+    assertTrue(resent.isEmpty());
+  }
+
+  @Test
+  public void testGapFilled() {
+    receive(11, 14, 15, 12, 13);
+    assertEquals(Arrays.asList(12L), resent);
+    assertEquals(Arrays.asList(7L, 11L, 12L, 13L, 14L, 15L), delivered);
+    assertTrue(lost.isEmpty());
+  }
+
+  @Test
+  public void testRangeRequests() {
+    tracker.setRangeRequests(true);
+    receive(11, 13, 14, 16);
+    assertEquals(Arrays.asList(12L), resent);
+    assertEquals(12, tracker.getRequested());
+    receive(12);
+    assertEquals(Arrays.asList(12L, 15L), resent);
+    assertEquals(15, tracker.getRequested());
+    receive(15);
+    assertEquals(Arrays.asList(7L, 11L, 12L, 13L, 14L, 15L, 16L), delivered);
+  }
+
+  @Test
+  public void testSignal() {
+    receive(11);
+    Signal signal = Signal.obtain().setName("a").setSequence(13);
+    tracker.received(signal);
+    assertEquals(Arrays.asList(12L), resent);
+    receive(12);
+    assertEquals(Arrays.asList(7L, 11L, 12L, 13L), delivered);
+    signal.release();
+  }
+
+  @Test
+  public void testLost() {
+    receive(11, 14, 15);
+    tracker.received(new JSONObject().put("lost", new JSONArray().put(12).put(13)));
+    assertEquals(Arrays.asList("12-13"), lost);
+    assertEquals(Arrays.asList(7L, 11L, 14L, 15L), delivered);
+  }
+
+  @Test
+  public void testTooManyPending() {
+    receive(11, 13, 14, 15, 16);
+    assertEquals(Arrays.asList("12-12"), lost);
+    assertEquals(Arrays.asList(7L, 11L, 13L, 14L, 15L, 16L), delivered);
+  }
+
+  @Test
+  public void testGapDetectionDisabled() {
+    receive(11, 13);
+    tracker.setGapDetection(false);
+    receive(20, 18);
+    assertEquals(Arrays.asList(7L, 11L, 13L, 20L), delivered);
+  }
+
+  @Test
+  public void testReconnected() {
+    receive(11);
+    tracker.reconnected();
+    receive(15);
+    tracker.received(new JSONObject().put("sync", 16));
+    receive(17, 12, 13, 14, 15, 16);
+    assertEquals(Arrays.asList(12L), resent);
+    assertEquals(Arrays.asList(7L, 11L, 12L, 13L, 14L, 15L, 16L, 17L), delivered);
+  }
+
+  @Test
+  public void testReconnectedToRestartedDispatcher() {
+    receive(11);
+    tracker.reconnected();
+    tracker.received(new JSONObject().put("sync", 2));
+    receive(3);
+    assertTrue(resent.isEmpty());
+    assertEquals(Arrays.asList(7L, 11L, 3L), delivered);
+  }
+
+  @Test
+  public void testSkipped() {
+    receive(11);
+    tracker.received(new JSONObject().put("skipped", new JSONArray().put(12).put(14)));
+    receive(15);
+    assertTrue(resent.isEmpty());
+    assertTrue(lost.isEmpty());
+    assertEquals(Arrays.asList(7L, 11L, 15L), delivered);
+  }
+
+  @Test
+  public void testSkippedAfterGap() {
+    receive(11, 15);
+    assertEquals(Arrays.asList(12L), resent);
+    // the marker of the outbox may follow a replayed message
+    tracker.received(new JSONObject().put("skipped", new JSONArray().put(13).put(14)));
+    receive(12);
+    assertEquals(Arrays.asList(7L, 11L, 12L, 15L), delivered);
+    assertEquals(Arrays.asList(12L), resent);
+    assertTrue(lost.isEmpty());
+  }
+
+  @Test
+  public void testConflated() {
+    Outbox outbox = new Outbox(10, OverflowPolicy.CONFLATE,
+        item -> ((JSONObject)item).opt("name"), item -> {},
+        item -> ((JSONObject)item).optLong("sequence"),
+        (from, to) -> new JSONObject().put(
+            "skipped", new JSONArray().put(from).put(to)));
+    String[] names = {"a", "b", "a", "c", "b", "a"};
+    for (int i = 0; i < names.length; i++) {
+      outbox.queue(new JSONObject().put("name", names[i]).put("sequence", 11 + i));
+    }
+    Object message;
+    while ((message = outbox.dequeue()) != null) {
+      tracker.received(message);
+    }
+    receive(17);
+    assertTrue(resent.isEmpty());
+    assertTrue(lost.isEmpty());
+    assertEquals(Arrays.asList(7L, 14L, 15L, 16L, 17L), delivered);
+  }
+
+}
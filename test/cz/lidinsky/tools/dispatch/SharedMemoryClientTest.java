@@ -0,0 +1,45 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class SharedMemoryClientTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testReceive() throws Exception {
+    File file = new File(folder.getRoot(), "dispatcher.ring");
+    // the port is not used, the dispatcher doesn't listen
+    Dispatcher dispatcher = new Dispatcher(0).setSharedMemory(file, 1 << 16);
+    dispatcher.start();
+    SharedMemoryClient client = new SharedMemoryClient(file)
+        .setWaitStrategy(WaitStrategy.YIELD);
+    BlockingQueue<Object> messages = new LinkedBlockingQueue<>();
+    client.addConsumer(messages::add);
+    client.start();
+    try {
+      Dispatcher.LocalClient publisher = dispatcher.connect();
+      for (int i = 0; i < 100; i++) {
+        publisher.send(new JSONObject().put("name", "a").put("value", i));
+      }
+      for (int i = 0; i < 100; i++) {
+        JSONObject message = (JSONObject)messages.poll(5, TimeUnit.SECONDS);
+        assertEquals(i, message.getInt("value"));
+      }
+      assertEquals(0, client.getOverruns());
+    } finally {
+      client.close();
+      dispatcher.close();
+    }
+  }
+
+}
@@ -0,0 +1,57 @@
+package cz.lidinsky.tools.dispatch;
+
+import cz.lidinsky.tools.CommonException;
+import org.json.JSONObject;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SignalTest {
+
+  @Test
+  public void testPool() {
+    Signal signal = Signal.obtain().set("plant1.boiler.temperature", 1000L, true, 45.5);
+    signal.retain();
+    signal.release();
+    int free = Signal.getFree();
+    signal.release();
+    assertEquals(free + 1, Signal.getFree());
+    Signal reused = Signal.obtain();
+    assertSame(signal, reused);
+    // the fields are cleared
+    assertFalse(reused.isValid());
+    assertEquals(0.0, reused.getValue(), 0.0);
+    reused.release();
+  }
+
+  @Test(expected = CommonException.class)
+  public void testReleasedTwice() {
+    Signal signal = Signal.obtain();
+    signal.release();
+    signal.release();
+  }
+
+  @Test
+  public void testName() {
+    Signal first = Signal.obtain().setName("a");
+    Signal second = Signal.obtain().setNameId(first.getNameId());
+    assertEquals("a", second.getName());
+    assertEquals(Signal.intern("a"), first.getNameId());
+  }
+
+  @Test
+  public void testToString() {
+    Signal signal = Signal.obtain().set("a", 1000L, true, 1.5).setSequence(7);
+    JSONObject message = new JSONObject(signal.toString());
+    assertEquals("a", message.getString("name"));
+    assertEquals(1000L, message.getLong("timestamp"));
+    assertTrue(message.getBoolean("valid"));
+    assertEquals(1.5, message.getDouble("value"), 0.0);
+    assertEquals(7, message.getLong("sequence"));
+    signal.setValue(Double.NaN).setSequence(0);
+    message = new JSONObject(signal.toString());
+    assertTrue(message.isNull("value"));
+    assertFalse(message.has("sequence"));
+  }
+
+}
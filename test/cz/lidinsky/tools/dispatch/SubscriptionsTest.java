@@ -0,0 +1,98 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SubscriptionsTest {
+
+  private static class Stub implements Endpoint {
+    public void send(Object object) {}
+    public String getName() { return "stub"; }
+    public long getDropped() { return 0; }
+    public int getQueued() { return 0; }
+    public void close() {}
+  }
+
+  private Subscriptions subscriptions;
+  private Endpoint all, boiler, exact;
+
+  @Before
+  public void init() {
+    subscriptions = new Subscriptions();
+    all = new Stub();
+    boiler = new Stub();
+    exact = new Stub();
+    subscriptions.add(all);
+    subscriptions.add(boiler);
+    subscriptions.add(exact);
+    subscriptions.subscribe(boiler, "plant1.boiler.*");
+    subscriptions.subscribe(exact, "plant1.boiler.temperature");
+  }
+
+  private Set<Endpoint> route(String topic) {
+    Set<Endpoint> result = new HashSet<>();
+    subscriptions.route(topic, endpoint -> assertTrue(result.add(endpoint)));
+    return result;
+  }
+
+  @Test
+  public void testExactAndPrefix() {
+    assertEquals(new HashSet<>(Arrays.asList(all, boiler, exact)),
+        route("plant1.boiler.temperature"));
+  }
+
+  @Test
+  public void testPrefixOnly() {
+    Set<Endpoint> result = route("plant1.boiler.pressure.max");
+    assertTrue(result.contains(boiler));
+    assertFalse(result.contains(exact));
+  }
+
+  @Test
+  public void testNoMatch() {
+    Set<Endpoint> result = route("plant1.boiler");
+    assertEquals(1, result.size());
+    assertTrue(result.contains(all));
+  }
+
+  @Test
+  public void testWithoutTopic() {
+    assertEquals(3, route(null).size());
+  }
+
+  @Test
+  public void testUnsubscribeAndRemove() {
+    subscriptions.subscribe(boiler, "*");
+    subscriptions.unsubscribe(boiler, "plant1.boiler.*");
+    assertTrue(route("plant2.x").contains(boiler));
+    subscriptions.remove(boiler);
+    subscriptions.remove(all);
+    assertTrue(route("plant2.x").isEmpty());
+    assertEquals(1, route("plant1.boiler.temperature").size());
+  }
+
+  @Test
+  public void testAccepts() {
+    assertTrue(subscriptions.accepts(all, "x"));
+    assertTrue(subscriptions.accepts(boiler, "plant1.boiler.pressure"));
+    assertFalse(subscriptions.accepts(boiler, "plant1.boilers"));
+    assertFalse(subscriptions.accepts(exact, "plant1.boiler.pressure"));
+    assertTrue(subscriptions.accepts(exact, null));
+  }
+
+  @Test
+  public void testReplace() {
+    subscriptions.replace(boiler, new HashSet<>(Arrays.asList("plant2.*")));
+    assertFalse(route("plant1.boiler.temperature").contains(boiler));
+    assertTrue(route("plant2.x").contains(boiler));
+    // nothing but the messages without a topic
+    subscriptions.replace(all, new HashSet<>());
+    assertFalse(route("plant2.x").contains(all));
+    assertTrue(route(null).contains(all));
+  }
+
+}
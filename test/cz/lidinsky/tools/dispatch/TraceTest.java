@@ -0,0 +1,70 @@
+package cz.lidinsky.tools.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TraceTest {
+
+  private Logger logger;
+  private List<LogRecord> records;
+
+  /** Fails if it is formatted. */
+  private static final Object MESSAGE = new Object() {
+    @Override
+    public String toString() {
+      throw new AssertionError("formatted");
+    }
+  };
+
+  @Before
+  public void init() {
+    records = new ArrayList<>();
+    logger = Logger.getAnonymousLogger();
+    logger.setUseParentHandlers(false);
+    logger.addHandler(new Handler() {
+      public void publish(LogRecord record) { records.add(record); }
+      public void flush() {}
+      public void close() {}
+    });
+  }
+
+  @Test
+  public void testDisabled() {
+    logger.setLevel(Level.INFO);
+    Trace trace = new Trace(logger, 1);
+    assertFalse(trace.isEnabled());
+    trace.message(Trace.Event.RECEIVED, "client", MESSAGE);
+    assertTrue(records.isEmpty());
+  }
+
+  @Test
+  public void testStructured() {
+    logger.setLevel(Level.FINEST);
+    Trace trace = new Trace(logger, 1);
+    trace.message(Trace.Event.RECEIVED, "client", MESSAGE);
+    assertEquals(1, records.size());
+    Object[] parameters = records.get(0).getParameters();
+    assertEquals(Trace.Event.RECEIVED, parameters[0]);
+    assertEquals("client", parameters[1]);
+    assertSame(MESSAGE, parameters[2]);
+  }
+
+  @Test
+  public void testSampled() {
+    logger.setLevel(Level.FINEST);
+    Trace trace = new Trace(logger, 4);
+    for (int i = 0; i < 10; i++) {
+      trace.message(Trace.Event.DISPATCHED, null, i);
+    }
+    assertEquals(3, records.size());
+    assertEquals(4, records.get(1).getParameters()[2]);
+  }
+
+}